@@ -37,6 +37,12 @@ public final class ArraysMDE {
 
   // Could also add linear-time orderStatistics if I liked.
 
+  // The loops over primitive arrays keep several independent accumulators,
+  // so that successive iterations do not wait on one another and the JIT
+  // compiler can vectorize them.  Math.min and Math.max are associative
+  // and commutative (even for NaN and signed zeros), so the result is the
+  // same as that of a simple loop.
+
   /**
    * Return the smallest value in the array.
    * @param a an array
@@ -47,11 +53,21 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to min(int[])");
     }
-    int result = a[0];
-    for (int i=1; i<a.length; i++) {
-      result = Math.min(result, a[i]);
+    int r0 = a[0];
+    int r1 = a[0];
+    int r2 = a[0];
+    int r3 = a[0];
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      r0 = Math.min(r0, a[i]);
+      r1 = Math.min(r1, a[i+1]);
+      r2 = Math.min(r2, a[i+2]);
+      r3 = Math.min(r3, a[i+3]);
     }
-    return result;
+    for (; i<a.length; i++) {
+      r0 = Math.min(r0, a[i]);
+    }
+    return Math.min(Math.min(r0, r1), Math.min(r2, r3));
   }
 
   /**
@@ -64,11 +80,21 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to min(long[])");
     }
-    long result = a[0];
-    for (int i=1; i<a.length; i++) {
-      result = Math.min(result, a[i]);
+    long r0 = a[0];
+    long r1 = a[0];
+    long r2 = a[0];
+    long r3 = a[0];
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      r0 = Math.min(r0, a[i]);
+      r1 = Math.min(r1, a[i+1]);
+      r2 = Math.min(r2, a[i+2]);
+      r3 = Math.min(r3, a[i+3]);
     }
-    return result;
+    for (; i<a.length; i++) {
+      r0 = Math.min(r0, a[i]);
+    }
+    return Math.min(Math.min(r0, r1), Math.min(r2, r3));
   }
 
   /**
@@ -81,11 +107,21 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to min(double[])");
     }
-    double result = a[0];
-    for (int i=1; i<a.length; i++) {
-      result = Math.min(result, a[i]);
+    double r0 = a[0];
+    double r1 = a[0];
+    double r2 = a[0];
+    double r3 = a[0];
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      r0 = Math.min(r0, a[i]);
+      r1 = Math.min(r1, a[i+1]);
+      r2 = Math.min(r2, a[i+2]);
+      r3 = Math.min(r3, a[i+3]);
     }
-    return result;
+    for (; i<a.length; i++) {
+      r0 = Math.min(r0, a[i]);
+    }
+    return Math.min(Math.min(r0, r1), Math.min(r2, r3));
   }
 
   /**
@@ -101,9 +137,10 @@ public final class ArraysMDE {
     Integer result = a[0];      // to return a value actually in the array
     int result_int = result.intValue(); // for faster comparison
     for (int i=1; i<a.length; i++) {
-      if (a[i].intValue() < result_int) {
+      int elt = a[i].intValue();
+      if (elt < result_int) {
         result = a[i];
-        result_int = result.intValue();
+        result_int = elt;
       }
     }
     return result;
@@ -122,9 +159,10 @@ public final class ArraysMDE {
     Long result = a[0]; // to return a value actually in the array
     long result_long = result.longValue();      // for faster comparison
     for (int i=1; i<a.length; i++) {
-      if (a[i].longValue() < result_long) {
+      long elt = a[i].longValue();
+      if (elt < result_long) {
         result = a[i];
-        result_long = result.longValue();
+        result_long = elt;
       }
     }
     return result;
@@ -141,11 +179,12 @@ public final class ArraysMDE {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to min(Double[])");
     }
     Double result = a[0];       // to return a value actually in the array
-    int result_int = result.intValue(); // for faster comparison
+    double result_double = result.doubleValue(); // for faster comparison
     for (int i=1; i<a.length; i++) {
-      if (a[i].intValue() < result_int) {
+      double elt = a[i].doubleValue();
+      if (elt < result_double) {
         result = a[i];
-        result_int = result.intValue();
+        result_double = elt;
       }
     }
     return result;
@@ -161,11 +200,21 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to max(int[])");
     }
-    int result = a[0];
-    for (int i=1; i<a.length; i++) {
-      result = Math.max(result, a[i]);
+    int r0 = a[0];
+    int r1 = a[0];
+    int r2 = a[0];
+    int r3 = a[0];
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      r0 = Math.max(r0, a[i]);
+      r1 = Math.max(r1, a[i+1]);
+      r2 = Math.max(r2, a[i+2]);
+      r3 = Math.max(r3, a[i+3]);
     }
-    return result;
+    for (; i<a.length; i++) {
+      r0 = Math.max(r0, a[i]);
+    }
+    return Math.max(Math.max(r0, r1), Math.max(r2, r3));
   }
 
   /**
@@ -178,11 +227,21 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to max(long[])");
     }
-    long result = a[0];
-    for (int i=1; i<a.length; i++) {
-      result = Math.max(result, a[i]);
+    long r0 = a[0];
+    long r1 = a[0];
+    long r2 = a[0];
+    long r3 = a[0];
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      r0 = Math.max(r0, a[i]);
+      r1 = Math.max(r1, a[i+1]);
+      r2 = Math.max(r2, a[i+2]);
+      r3 = Math.max(r3, a[i+3]);
     }
-    return result;
+    for (; i<a.length; i++) {
+      r0 = Math.max(r0, a[i]);
+    }
+    return Math.max(Math.max(r0, r1), Math.max(r2, r3));
   }
 
   /**
@@ -195,11 +254,21 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to max(double[])");
     }
-    double result = a[0];
-    for (int i=1; i<a.length; i++) {
-      result = Math.max(result, a[i]);
+    double r0 = a[0];
+    double r1 = a[0];
+    double r2 = a[0];
+    double r3 = a[0];
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      r0 = Math.max(r0, a[i]);
+      r1 = Math.max(r1, a[i+1]);
+      r2 = Math.max(r2, a[i+2]);
+      r3 = Math.max(r3, a[i+3]);
     }
-    return result;
+    for (; i<a.length; i++) {
+      r0 = Math.max(r0, a[i]);
+    }
+    return Math.max(Math.max(r0, r1), Math.max(r2, r3));
   }
 
   /**
@@ -215,9 +284,10 @@ public final class ArraysMDE {
     Integer result = a[0];      // to return a value actually in the array
     int result_int = result.intValue(); // for faster comparison
     for (int i=1; i<a.length; i++) {
-      if (a[i].intValue() > result_int) {
+      int elt = a[i].intValue();
+      if (elt > result_int) {
         result = a[i];
-        result_int = result.intValue();
+        result_int = elt;
       }
     }
     return result;
@@ -236,9 +306,10 @@ public final class ArraysMDE {
     Long result = a[0]; // to return a value actually in the array
     long result_long = result.longValue();      // for faster comparison
     for (int i=1; i<a.length; i++) {
-      if (a[i].longValue() > result_long) {
+      long elt = a[i].longValue();
+      if (elt > result_long) {
         result = a[i];
-        result_long = result.longValue();
+        result_long = elt;
       }
     }
     return result;
@@ -255,11 +326,12 @@ public final class ArraysMDE {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to max(Double[])");
     }
     Double result = a[0];       // to return a value actually in the array
-    int result_int = result.intValue(); // for faster comparison
+    double result_double = result.doubleValue(); // for faster comparison
     for (int i=1; i<a.length; i++) {
-      if (a[i].intValue() > result_int) {
+      double elt = a[i].doubleValue();
+      if (elt > result_double) {
         result = a[i];
-        result_int = result.intValue();
+        result_double = elt;
       }
     }
     return result;
@@ -276,13 +348,22 @@ public final class ArraysMDE {
       // return null;
       throw new ArrayIndexOutOfBoundsException("Empty array passed to min_max(int[])");
     }
-    int result_min = a[0];
-    int result_max = a[0];
-    for (int i=1; i<a.length; i++) {
-      result_min = Math.min(result_min, a[i]);
-      result_max = Math.max(result_max, a[i]);
+    int min0 = a[0];
+    int min1 = a[0];
+    int max0 = a[0];
+    int max1 = a[0];
+    int i = 0;
+    for (; i+2<=a.length; i+=2) {
+      min0 = Math.min(min0, a[i]);
+      max0 = Math.max(max0, a[i]);
+      min1 = Math.min(min1, a[i+1]);
+      max1 = Math.max(max1, a[i+1]);
     }
-    return new int[] { result_min, result_max };
+    if (i < a.length) {
+      min0 = Math.min(min0, a[i]);
+      max0 = Math.max(max0, a[i]);
+    }
+    return new int[] { Math.min(min0, min1), Math.max(max0, max1) };
   }
 
   /**
@@ -296,13 +377,22 @@ public final class ArraysMDE {
       // return null;
       throw new ArrayIndexOutOfBoundsException("Empty array passed to min_max(long[])");
     }
-    long result_min = a[0];
-    long result_max = a[0];
-    for (int i=1; i<a.length; i++) {
-      result_min = Math.min(result_min, a[i]);
-      result_max = Math.max(result_max, a[i]);
+    long min0 = a[0];
+    long min1 = a[0];
+    long max0 = a[0];
+    long max1 = a[0];
+    int i = 0;
+    for (; i+2<=a.length; i+=2) {
+      min0 = Math.min(min0, a[i]);
+      max0 = Math.max(max0, a[i]);
+      min1 = Math.min(min1, a[i+1]);
+      max1 = Math.max(max1, a[i+1]);
+    }
+    if (i < a.length) {
+      min0 = Math.min(min0, a[i]);
+      max0 = Math.max(max0, a[i]);
     }
-    return new long[] { result_min, result_max };
+    return new long[] { Math.min(min0, min1), Math.max(max0, max1) };
   }
 
   /**
@@ -315,8 +405,7 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to element_range(int[])");
     }
-    int [] min_max = min_max(a);
-    return min_max[1] - min_max[0];
+    return max(a) - min(a);
   }
 
   /**
@@ -329,8 +418,7 @@ public final class ArraysMDE {
     if (a.length == 0) {
       throw new ArrayIndexOutOfBoundsException("Empty array passed to element_range(long[])");
     }
-    long [] min_max = min_max(a);
-    return min_max[1] - min_max[0];
+    return max(a) - min(a);
   }
 
   /**
@@ -339,11 +427,22 @@ public final class ArraysMDE {
    * @return the sum of an array of integers
    */
   public static int sum(int[] a) {
-    int sum = 0;
-    for (int i = 0; i < a.length; i++) {
-      sum += a[i];
+    // Integer addition is associative, even when it overflows.
+    int s0 = 0;
+    int s1 = 0;
+    int s2 = 0;
+    int s3 = 0;
+    int i = 0;
+    for (; i+4<=a.length; i+=4) {
+      s0 += a[i];
+      s1 += a[i+1];
+      s2 += a[i+2];
+      s3 += a[i+3];
     }
-    return sum;
+    for (; i<a.length; i++) {
+      s0 += a[i];
+    }
+    return (s0 + s1) + (s2 + s3);
   }
 
   /**
@@ -354,9 +453,7 @@ public final class ArraysMDE {
   public static int sum(int[][] a) {
     int sum = 0;
     for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        sum += a[i][j];
-      }
+      sum += sum(a[i]);
     }
     return sum;
   }
@@ -367,6 +464,8 @@ public final class ArraysMDE {
    * @return the sum of an array of doubles
    */
   public static double sum(double[] a) {
+    // Floating-point addition is not associative, so the elements are
+    // added in order, to give the same result as a simple loop.
     double sum = 0;
     for (int i = 0; i < a.length; i++) {
       sum += a[i];
@@ -382,7 +481,7 @@ public final class ArraysMDE {
   public static double sum(double[][] a) {
     double sum = 0;
     for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
+      for (int j = 0; j < a[i].length; j++) {
         sum += a[i][j];
       }
     }
@@ -693,8 +792,9 @@ public final class ArraysMDE {
 
   // This is analogous to Common Lisp's "search" function.
 
-  // This implementation is very inefficient; I could use tricky Boyer-Moore
-  // search techniques if I liked, but it's not worth it to me yet.
+  // These methods take time linear in the lengths of a and sub; see
+  // SubarrayPattern.  To search repeatedly for the same subarray, create a
+  // SubarrayPattern once and reuse it.
 
 
   /**
@@ -708,13 +808,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(/*@PolyAll*/ Object[] a, Object[] sub) {
-    int a_index_max = a.length - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Objects(sub).indexIn(a);
   }
 
   /**
@@ -732,13 +826,7 @@ public final class ArraysMDE {
   // be indexOfEq(@PolyAll(1) Object[], @PolyAll(2) Object[]), but the
   // @PolyAll qualifier does not yet take an argument.
   /*@Pure*/ public static int indexOfEq(/*@PolyAll*/ Object[] a, /*@PolyAll*/ Object[] sub) {
-    int a_index_max = a.length - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarrayEq(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.ObjectsEq(sub).indexIn(a);
   }
 
   /**
@@ -752,13 +840,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(List<?> a, /*@PolyAll*/ Object[] sub) {
-    int a_index_max = a.size() - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Objects(sub).indexIn(a);
   }
 
   /**
@@ -772,13 +854,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOfEq(List<?> a, /*@PolyAll*/ Object[] sub) {
-    int a_index_max = a.size() - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarrayEq(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.ObjectsEq(sub).indexIn(a);
   }
 
   /**
@@ -792,13 +868,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(/*@PolyAll*/ Object[] a, List<?> sub) {
-    int a_index_max = a.length - sub.size() + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Objects(sub).indexIn(a);
   }
 
   /**
@@ -812,13 +882,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOfEq(/*@PolyAll*/ Object[] a, List<?> sub) {
-    int a_index_max = a.length - sub.size() + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarrayEq(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.ObjectsEq(sub).indexIn(a);
   }
 
   /**
@@ -832,13 +896,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(List<?> a, List<?> sub) {
-    int a_index_max = a.size() - sub.size() + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Objects(sub).indexIn(a);
   }
 
   /**
@@ -852,13 +910,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOfEq(List<?> a, List<?> sub) {
-    int a_index_max = a.size() - sub.size() + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarrayEq(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.ObjectsEq(sub).indexIn(a);
   }
 
   /**
@@ -871,13 +923,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(int[] a, int[] sub) {
-    int a_index_max = a.length - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Ints(sub).indexIn(a);
   }
 
   /**
@@ -890,13 +936,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(double[] a, double[] sub) {
-    int a_index_max = a.length - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Doubles(sub).indexIn(a);
   }
 
 
@@ -910,13 +950,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(long[] a, long[] sub) {
-    int a_index_max = a.length - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Longs(sub).indexIn(a);
   }
 
   /**
@@ -929,13 +963,7 @@ public final class ArraysMDE {
    * @see java.lang.String#indexOf(java.lang.String)
    */
   /*@Pure*/ public static int indexOf(boolean[] a, boolean[] sub) {
-    int a_index_max = a.length - sub.length + 1;
-    for (int i=0; i<=a_index_max; i++) {
-      if (isSubarray(a, sub, i)) {
-        return i;
-      }
-    }
-    return -1;
+    return new SubarrayPattern.Booleans(sub).indexIn(a);
   }
 
 
@@ -2200,25 +2228,42 @@ public final class ArraysMDE {
     return true;
   }
 
+  // The noDuplicates methods for primitive arrays do not box the
+  // elements.  Small arrays are checked pairwise, without allocating.
+  // An array whose elements lie in a small range is checked with a bit
+  // set.  Otherwise, the elements are added to an IntHashSet or
+  // LongHashSet, which is a single primitive array.
+
+  /**
+   * Arrays of at most this length are checked for duplicates by comparing
+   * every pair of elements, which is faster than hashing them.
+   */
+  private static final int SMALL_ARRAY_LENGTH = 16;
+
+  /**
+   * Return true if the bit for value-base is set in bits, and set it.
+   * @param bits a bit set
+   * @param value the value to test and record
+   * @param base the smallest value that might be recorded
+   * @return true if the bit was already set
+   */
+  private static boolean testAndSet(long[] bits, long value, long base) {
+    long offset = value - base;
+    int word = (int) (offset >>> 6);
+    long mask = 1L << offset;   // shift distance is taken mod 64
+    boolean result = (bits[word] & mask) != 0;
+    bits[word] |= mask;
+    return result;
+  }
+
   /**
    * Return true iff a does not contain duplicate elements,
    * using O(n) time and O(n) space.
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
   /*@Pure*/ public static boolean noDuplicates(boolean [] a) {
-    HashSet<Boolean> hs = new HashSet<Boolean>();
-    for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to add the last element,
-      // but that would make the code much less readable.
-      Boolean n = Boolean.valueOf(a[i]);
-      if (hs.contains(n)) {
-        return false;
-      }
-      hs.add(n);
-    }
-    return true;
+    return (a.length < 2) || (a.length == 2 && a[0] != a[1]);
   }
 
   /**
@@ -2227,17 +2272,26 @@ public final class ArraysMDE {
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (bit set)
   /*@Pure*/ public static boolean noDuplicates(byte[] a) {
-    HashSet<Byte> hs = new HashSet<Byte>();
+    if (a.length > 256) {
+      return false;
+    }
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (a[i] == a[j]) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    long[] bits = new long[4];
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to add the last element,
-      // but that would make the code much less readable.
-      Byte n = new Byte(a[i]);
-      if (hs.contains(n)) {
+      if (testAndSet(bits, a[i], Byte.MIN_VALUE)) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
@@ -2248,38 +2302,63 @@ public final class ArraysMDE {
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean noDuplicates(char[] a) {
-    HashSet<Character> hs = new HashSet<Character>();
+    if (a.length > 1 << 16) {
+      return false;
+    }
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (a[i] == a[j]) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    if (a.length >= 1 << 12) {
+      long[] bits = new long[1 << 10];
+      for (int i = 0; i < a.length; i++) {
+        if (testAndSet(bits, a[i], Character.MIN_VALUE)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    IntHashSet hs = new IntHashSet(a.length);
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to add the last element,
-      // but that would make the code much less readable.
-      Character n = new Character(a[i]);
-      if (hs.contains(n)) {
+      if (!hs.add(a[i])) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
 
   /**
    * Return true iff a does not contain duplicate elements,
-   * using O(n) time and O(n) space.
+   * using O(n) time and O(n) space. Equality checking
+   * uses the .equals() method for java.lang.Float.
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean noDuplicates(float[] a) {
-    HashSet<Float> hs = new HashSet<Float>();
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (Float.floatToIntBits(a[i]) == Float.floatToIntBits(a[j])) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    IntHashSet hs = new IntHashSet(a.length);
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to add the last element,
-      // but that would make the code much less readable.
-      Float n = new Float(a[i]);
-      if (hs.contains(n)) {
+      if (!hs.add(Float.floatToIntBits(a[i]))) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
@@ -2290,17 +2369,35 @@ public final class ArraysMDE {
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean noDuplicates(short[] a) {
-    HashSet<Short> hs = new HashSet<Short>();
+    if (a.length > 1 << 16) {
+      return false;
+    }
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (a[i] == a[j]) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    if (a.length >= 1 << 12) {
+      long[] bits = new long[1 << 10];
+      for (int i = 0; i < a.length; i++) {
+        if (testAndSet(bits, a[i], Short.MIN_VALUE)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    IntHashSet hs = new IntHashSet(a.length);
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to add the last element,
-      // but that would make the code much less readable.
-      Short n = new Short(a[i]);
-      if (hs.contains(n)) {
+      if (!hs.add(a[i])) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
@@ -2311,17 +2408,38 @@ public final class ArraysMDE {
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean noDuplicates(int[] a) {
-    HashSet<Integer> hs = new HashSet<Integer>();
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (a[i] == a[j]) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    int min = min(a);
+    long range = (long) max(a) - min + 1;
+    if (range < a.length) {
+      return false;
+    }
+    // A bit set for the range is no bigger than a hash set for the elements.
+    if (range <= 64L * a.length) {
+      long[] bits = new long[(int) ((range + 63) >>> 6)];
+      for (int i = 0; i < a.length; i++) {
+        if (testAndSet(bits, a[i], min)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    IntHashSet hs = new IntHashSet(a.length);
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to add the last element,
-      // but that would make the code much less readable.
-      Integer n = new Integer(a[i]);
-      if (hs.contains(n)) {
+      if (!hs.add(a[i])) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
@@ -2334,17 +2452,23 @@ public final class ArraysMDE {
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean noDuplicates(double[] a) {
-    HashSet<Double> hs = new HashSet<Double>();
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (Double.doubleToLongBits(a[i]) == Double.doubleToLongBits(a[j])) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    LongHashSet hs = new LongHashSet(a.length);
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to create the last element,
-      // but that would make the code much less readable.
-      Double n = new Double(a[i]);
-      if (hs.contains(n)) {
+      if (!hs.add(Double.doubleToLongBits(a[i]))) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
@@ -2356,17 +2480,38 @@ public final class ArraysMDE {
    * @param a an array
    * @return true iff a does not contain duplicate elements
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean noDuplicates(long[] a) {
-    HashSet<Long> hs = new HashSet<Long>();
+    if (a.length <= SMALL_ARRAY_LENGTH) {
+      for (int i = 1; i < a.length; i++) {
+        for (int j = 0; j < i; j++) {
+          if (a[i] == a[j]) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    long min = min(a);
+    long range = max(a) - min + 1;  // non-positive if the subtraction overflows
+    if (range > 0 && range < a.length) {
+      return false;
+    }
+    // A bit set for the range is no bigger than a hash set for the elements.
+    if (range > 0 && range <= 128L * a.length) {
+      long[] bits = new long[(int) ((range + 63) >>> 6)];
+      for (int i = 0; i < a.length; i++) {
+        if (testAndSet(bits, a[i], min)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    LongHashSet hs = new LongHashSet(a.length);
     for (int i = 0; i < a.length; i++) {
-      // Could be optimized not to create the last element,
-      // but that would make the code much less readable.
-      Long n = new Long(a[i]);
-      if (hs.contains(n)) {
+      if (!hs.add(a[i])) {
         return false;
       }
-      hs.add(n);
     }
     return true;
   }
@@ -2542,24 +2687,32 @@ public final class ArraysMDE {
   // might be quicker when it is not.  Sorting both sets has (minimum
   // and maximum) running time of Theta(n log n).
   /**
-   * Return whether smaller is a subset of bigger.  The implementation is to
-   * use collections because we want to take advantage of HashSet's
-   * constant time membership tests.
+   * Return whether smaller is a subset of bigger.  The implementation
+   * uses a {@link LongHashSet}, for constant time membership tests
+   * without boxing.
    * @param smaller first set to test
    * @param bigger second set to test
    * @return true iff smaller is a subset of bigger
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean isSubset(long[] smaller, long[] bigger) {
-    Set<Long> setBigger = new HashSet<Long>();
+    if ((long) smaller.length * bigger.length <= SMALL_ARRAY_LENGTH * SMALL_ARRAY_LENGTH) {
+      for (int i = 0; i < smaller.length; i++) {
+        if (indexOf(bigger, smaller[i]) == -1) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    LongHashSet setBigger = new LongHashSet(bigger.length);
 
     for (int i = 0; i < bigger.length; i++) {
-      setBigger.add(new Long(bigger[i]));
+      setBigger.add(bigger[i]);
     }
 
     for (int i = 0; i < smaller.length; i++) {
-      Long elt = new Long(smaller[i]);
-      if (!setBigger.contains(elt)) {
+      if (!setBigger.contains(smaller[i])) {
         return false;
       }
     }
@@ -2572,24 +2725,24 @@ public final class ArraysMDE {
   // might be quicker when it is not.  Sorting both sets has (minimum
   // and maximum) running time of Theta(n log n).
   /**
-   * Return whether smaller is a subset of bigger.  The implementation is to
-   * use collections because we want to take advantage of HashSet's
-   * constant time membership tests.
+   * Return whether smaller is a subset of bigger.  The implementation
+   * uses a {@link LongHashSet}, for constant time membership tests
+   * without boxing.
    * @param smaller first set to test
    * @param bigger second set to test
    * @return true iff smaller is a subset of bigger
    */
-  @SuppressWarnings("purity")   // side effect to local state (HashSet)
+  @SuppressWarnings("purity")   // side effect to local state (set)
   /*@Pure*/ public static boolean isSubset(double[] smaller, double[] bigger) {
-    Set<Double> setBigger = new HashSet<Double>();
+    // Compare bit patterns, as Double.equals does.
+    LongHashSet setBigger = new LongHashSet(bigger.length);
 
     for (int i = 0; i < bigger.length; i++) {
-      setBigger.add(new Double(bigger[i]));
+      setBigger.add(Double.doubleToLongBits(bigger[i]));
     }
 
     for (int i = 0; i < smaller.length; i++) {
-      Double elt = new Double(smaller[i]);
-      if (!setBigger.contains(elt)) {
+      if (!setBigger.contains(Double.doubleToLongBits(smaller[i]))) {
         return false;
       }
     }
@@ -0,0 +1,294 @@
+package plume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A thread-safe version of {@link MultiRandSelector}'s fixed sample mode,
+ * with a bound on the memory it uses:  selects up to num_elts elements
+ * uniformly at random from each partition of the elements it accepts.
+ *
+ * <p>{@link #acceptParallel} splits a list of elements among the threads
+ * of a fork-join pool.  Each thread samples its share of the list into
+ * its own per-partition reservoirs, with no locking, and the reservoirs
+ * for each partition are then merged pairwise.  The merge weights each
+ * reservoir by the number of elements it observed, so each partition's
+ * sample is uniform over all its elements, as if they had been accepted
+ * one at a time.  {@link #accept} is thread-safe, but calls to it are
+ * serialized.
+ *
+ * <p>Between calls, the number of selected elements retained, over all
+ * partitions, is at most max_retained.  When accepting an element would exceed that
+ * budget, the selector evicts the partitions that have been seen least
+ * often (until the retained elements fit in 3/4 of the budget, so that
+ * evictions are infrequent).  An evicted partition's selected elements
+ * are discarded; if more of its elements arrive later, it is sampled
+ * afresh from them.  Thus keys of high cardinality cannot exhaust the
+ * heap, and the partitions that are seen most often are sampled
+ * faithfully.  getEvicted() reports how many partitions were evicted.
+ * Within acceptParallel, each task enforces the budget on its own
+ * reservoirs, so a partition may be evicted because it is rare in one
+ * task's share of the list, even if it is common elsewhere.
+ *
+ * <p>The budget is not global while acceptParallel runs.  Every task
+ * result that has not yet been merged may hold up to max_retained
+ * elements, and each pool thread can hold one such result per level of
+ * the task tree.  So for a list of n elements and a pool of P threads,
+ * the peak is roughly max_retained &times; P &times; (1 +
+ * log<sub>2</sub>(n / 4096)) elements, in
+ * addition to those already retained.  Sharing one budget among the
+ * tasks would avoid that, but would evict common partitions, since each
+ * task keeps its own copy of every partition's reservoir.
+ *
+ * <p>The Partitioner must be thread-safe.
+ *
+ * @param <T> the type of elements to be selected among
+ * @see MultiRandSelector
+ * @see ConcurrentRandomSelector
+ */
+public class ConcurrentMultiRandSelector<T> {
+
+    /** acceptParallel() has each task sample at most this many elements itself. */
+    static final int ACCEPT_TASK_SIZE = 1 << 12;
+
+    private final int num_elts;
+    private final Partitioner<T,T> eq;
+    private final long max_retained;
+
+    /** The samples of all partitions.  Guarded by this. */
+    private final Buckets<T> buckets;
+
+    /** @param num_elts the number of elements to select from each bucket;
+     *  must be at least 1
+     *  @param eq partioner that determines how to partition the objects from
+     *  the iteration.
+     *  @param max_retained the maximum number of selected elements to
+     *  retain, over all buckets, between calls; must be at least
+     *  num_elts.  During acceptParallel, each unmerged task result may
+     *  also hold this many; see the class documentation for the peak.
+     */
+    public ConcurrentMultiRandSelector(int num_elts, Partitioner<T,T> eq,
+                                       long max_retained) {
+        // With no elements retained, empty buckets would never be evicted.
+        if (num_elts < 1) {
+            throw new IllegalArgumentException("num_elts " + num_elts + " < 1");
+        }
+        if (max_retained < num_elts) {
+            throw new IllegalArgumentException("max_retained " + max_retained
+                                               + " < num_elts " + num_elts);
+        }
+        this.num_elts = num_elts;
+        this.eq = eq;
+        this.max_retained = max_retained;
+        buckets = new Buckets<T>();
+    }
+
+    /** Accepts one element.
+     * @param next the element to accept
+     */
+    public synchronized void accept(T next) {
+        T equivClass = eq.assignToBucket(next);
+        if (equivClass == null) {
+            return;
+        }
+        buckets.accept(equivClass, next, num_elts);
+        buckets.enforce(max_retained);
+    }
+
+    /** Accepts every element of elts, using multiple threads.  While
+     * it runs, the selector may retain more than max_retained elements;
+     * see the class documentation.
+     * @param elts the elements to accept
+     */
+    public void acceptParallel(List<? extends T> elts) {
+        Buckets<T> result = AcceptPool.pool.invoke(new AcceptTask<T>(this, elts, 0, elts.size()));
+        synchronized (this) {
+            buckets.addAll(result, num_elts);
+            buckets.evicted += result.evicted;
+            buckets.enforce(max_retained);
+        }
+    }
+
+    /** Returns the elements selected from each bucket.
+     * @return a new map from each bucket to the elements selected from it
+     */
+    public synchronized Map<T,List<T>> values() {
+        Map<T,List<T>> result = new HashMap<T,List<T>>();
+        for (Map.Entry<T,Bucket<T>> e : buckets.map.entrySet()) {
+            result.put(e.getKey(), new ArrayList<T>(e.getValue().values));
+        }
+        return result;
+    }
+
+    /** Returns an iterator of all objects selected.
+     * @return an iterator of all objects selected. */
+    public synchronized Iterator<T> valuesIter() {
+        ArrayList<T> ret = new ArrayList<T>();
+        for (Bucket<T> b : buckets.map.values()) {
+            ret.addAll(b.values);
+        }
+        return ret.iterator();
+    }
+
+    /** Returns the number of selected elements retained, over all buckets.
+     * @return the number of selected elements retained */
+    public synchronized long getRetained() {
+        return buckets.retained;
+    }
+
+    /** Returns the number of times a bucket has been evicted.
+     * @return the number of times a bucket has been evicted */
+    public synchronized long getEvicted() {
+        return buckets.evicted;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////
+    /// Samples
+    ///
+
+    /** The sample of one partition. */
+    private static final class Bucket<T> {
+        /** The number of elements of the partition accepted. */
+        long observed = 0;
+        /** A uniform sample of min(num_elts, observed) of those elements. */
+        ArrayList<T> values = new ArrayList<T>(1);
+    }
+
+    /** The samples of a set of partitions, and their total size.  Not thread-safe. */
+    private static final class Buckets<T> {
+        final HashMap<T,Bucket<T>> map = new HashMap<T,Bucket<T>>();
+        /** The total number of elements in the samples. */
+        long retained = 0;
+        /** The number of partitions evicted. */
+        long evicted = 0;
+
+        /** Accepts an element, as RandomSelector.accept does. */
+        void accept(T key, T next, int num_elts) {
+            Bucket<T> b = map.get(key);
+            if (b == null) {
+                b = new Bucket<T>();
+                map.put(key, b);
+            }
+            ThreadLocalRandom generator = ThreadLocalRandom.current();
+            // The i-th element has a k/i chance of being accepted.
+            if (generator.nextDouble() < ((double) num_elts / (++b.observed))) {
+                if (b.values.size() < num_elts) {
+                    b.values.add(next);
+                    retained++;
+                } else {
+                    b.values.set(generator.nextInt(num_elts), next);
+                }
+            }
+        }
+
+        /** Adds the samples of other to these, merging the samples of
+         * each partition present in both.  Modifies other. */
+        void addAll(Buckets<T> other, int num_elts) {
+            for (Map.Entry<T,Bucket<T>> e : other.map.entrySet()) {
+                Bucket<T> b = map.get(e.getKey());
+                Bucket<T> ob = e.getValue();
+                if (b == null) {
+                    map.put(e.getKey(), ob);
+                    retained += ob.values.size();
+                    continue;
+                }
+                retained -= b.values.size();
+                List<ArrayList<T>> samples = new ArrayList<ArrayList<T>>(2);
+                samples.add(b.values);
+                samples.add(ob.values);
+                long observed = b.observed + ob.observed;
+                b.values = ConcurrentRandomSelector.mergeSamples(num_elts, samples,
+                                                                 new long[] { b.observed, ob.observed });
+                b.observed = observed;
+                retained += b.values.size();
+            }
+        }
+
+        /** If more than max_retained elements are retained, evicts the
+         * least-often seen partitions, until at most 3/4 of max_retained
+         * are. */
+        void enforce(long max_retained) {
+            if (retained <= max_retained) {
+                return;
+            }
+            long target = max_retained - max_retained / 4;
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Map.Entry<T,Bucket<T>>[] entries = map.entrySet().toArray(new Map.Entry[map.size()]);
+            Arrays.sort(entries, new Comparator<Map.Entry<T,Bucket<T>>>() {
+                    public int compare(Map.Entry<T,Bucket<T>> e1, Map.Entry<T,Bucket<T>> e2) {
+                        long o1 = e1.getValue().observed;
+                        long o2 = e2.getValue().observed;
+                        return (o1 < o2) ? -1 : ((o1 == o2) ? 0 : 1);
+                    }
+                });
+            for (int i=0; i<entries.length && retained > target; i++) {
+                map.remove(entries[i].getKey());
+                retained -= entries[i].getValue().values.size();
+                evicted++;
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////
+    /// Parallel acceptance
+    ///
+
+    /**
+     * Holder for the fork-join pool used by acceptParallel.  The pool is
+     * created the first time acceptParallel is called.
+     */
+    private static final class AcceptPool {
+        static final ForkJoinPool pool = new ForkJoinPool();
+    }
+
+    /** Samples elts[lo..hi-1] into new Buckets. */
+    private static final class AcceptTask<T> extends RecursiveTask<Buckets<T>> {
+        static final long serialVersionUID = 20151111L;
+        private final ConcurrentMultiRandSelector<T> selector;
+        private final List<? extends T> elts;
+        private final int lo;
+        private final int hi;
+
+        AcceptTask(ConcurrentMultiRandSelector<T> selector, List<? extends T> elts, int lo, int hi) {
+            this.selector = selector;
+            this.elts = elts;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected Buckets<T> compute() {
+            if (hi - lo <= ACCEPT_TASK_SIZE) {
+                Buckets<T> result = new Buckets<T>();
+                for (T next : elts.subList(lo, hi)) {
+                    T equivClass = selector.eq.assignToBucket(next);
+                    if (equivClass != null) {
+                        result.accept(equivClass, next, selector.num_elts);
+                        result.enforce(selector.max_retained);
+                    }
+                }
+                return result;
+            }
+            int mid = (lo + hi) >>> 1;
+            AcceptTask<T> left = new AcceptTask<T>(selector, elts, lo, mid);
+            AcceptTask<T> right = new AcceptTask<T>(selector, elts, mid, hi);
+            invokeAll(left, right);
+            Buckets<T> result = left.join();
+            Buckets<T> rightResult = right.join();
+            result.addAll(rightResult, selector.num_elts);
+            result.evicted += rightResult.evicted;
+            result.enforce(selector.max_retained);
+            return result;
+        }
+    }
+
+}
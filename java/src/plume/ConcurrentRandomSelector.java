@@ -0,0 +1,170 @@
+package plume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A thread-safe version of {@link RandomSelector}'s fixed sample mode:
+ * selects k elements uniformly at random from all the elements accepted
+ * by any thread, using O(k) space per accepting thread.
+ *
+ * <p>Each thread that calls accept() fills its own reservoir, so
+ * producer threads never contend with one another and share no random
+ * number generator:  each uses {@link ThreadLocalRandom}.  getValues()
+ * merges the per-thread reservoirs into a single sample.  The merge
+ * weights each reservoir by the number of elements its thread observed,
+ * so the result is a uniform sample of all the elements accepted, not
+ * of each thread's elements separately.
+ *
+ * <p>Unlike RandomSelector, this class cannot be given a Random, so its
+ * selections are not reproducible.  getValues() may be called while
+ * other threads are calling accept(); it then reflects some prefix of
+ * each thread's elements.
+ *
+ * @param <T> the type of elements being selected over
+ * @see RandomSelector
+ */
+public class ConcurrentRandomSelector<T> {
+
+    /** The number of elements to select. */
+    private final int num_elts;
+
+    /** The reservoir of each thread that has called accept(). */
+    private final List<Reservoir<T>> reservoirs = new CopyOnWriteArrayList<Reservoir<T>>();
+
+    /** The reservoir of the current thread. */
+    private final ThreadLocal<Reservoir<T>> local = new ThreadLocal<Reservoir<T>>() {
+            protected Reservoir<T> initialValue() {
+                Reservoir<T> r = new Reservoir<T>();
+                reservoirs.add(r);
+                return r;
+            }
+        };
+
+    /**
+     * A sample of the elements accepted by one thread.  Only that thread
+     * modifies it; the lock is taken by that thread and, briefly, by
+     * getValues(), so it is almost never contended.
+     */
+    private static final class Reservoir<T> {
+        /** The number of elements the thread has accepted. */
+        long observed = 0;
+        /** A uniform sample of min(num_elts, observed) of those elements. */
+        final ArrayList<T> values = new ArrayList<T>();
+    }
+
+    /** @param num_elts The number of elements intended to be selected
+     * from the input elements
+     */
+    public ConcurrentRandomSelector(int num_elts) {
+        this.num_elts = num_elts;
+    }
+
+    /** Accepts an element, exactly as {@link RandomSelector#accept} does
+     * in fixed sample mode, but into the current thread's reservoir.
+     *
+     * @param next value to be added to this selector
+     */
+    public void accept(T next) {
+        Reservoir<T> r = local.get();
+        ThreadLocalRandom generator = ThreadLocalRandom.current();
+        synchronized (r) {
+            // The i-th element has a k/i chance of being accepted.
+            if (generator.nextDouble() < ((double) num_elts / (++r.observed))) {
+                if (r.values.size() < num_elts) {
+                    r.values.add(next);
+                } else {
+                    r.values.set(generator.nextInt(r.values.size()), next);
+                }
+            }
+        }
+    }
+
+    /** Returns the number of elements accepted so far, by all threads.
+     * @return the number of elements accepted so far
+     */
+    public long getObserved() {
+        long result = 0;
+        for (Reservoir<T> r : reservoirs) {
+            synchronized (r) {
+                result += r.observed;
+            }
+        }
+        return result;
+    }
+
+    /** Returns a uniform random selection of num_elts of the elements
+     * accepted so far by all threads, or all of them if fewer than
+     * num_elts have been accepted.
+     *
+     * <p>Each element of the result is drawn from some thread's
+     * reservoir, chosen with probability proportional to the number of
+     * that thread's elements not yet accounted for.  Because each
+     * reservoir is itself a uniform sample of its thread's elements, a
+     * random element not yet drawn from it is a uniform choice among
+     * those elements.
+     *
+     * @return the selected elements
+     */
+    public List<T> getValues() {
+        // Snapshot each reservoir, so that accept() may proceed during
+        // the merge.
+        List<Reservoir<T>> current = new ArrayList<Reservoir<T>>(reservoirs);
+        int n = current.size();
+        List<ArrayList<T>> samples = new ArrayList<ArrayList<T>>(n);
+        long[] remaining = new long[n];
+        for (int i=0; i<n; i++) {
+            Reservoir<T> r = current.get(i);
+            synchronized (r) {
+                samples.add(new ArrayList<T>(r.values));
+                remaining[i] = r.observed;
+            }
+        }
+        return mergeSamples(num_elts, samples, remaining);
+    }
+
+    /** Merges uniform samples of several streams into a uniform sample
+     * of their concatenation.
+     *
+     * @param num_elts the maximum size of the result
+     * @param samples samples.get(i) is a uniform sample of
+     * min(num_elts, observed[i]) elements of stream i; these lists are
+     * modified
+     * @param observed observed[i] is the number of elements in stream i;
+     * this array is modified
+     * @return a uniform sample of min(num_elts, sum(observed)) elements
+     * of all the streams
+     */
+    static <T> ArrayList<T> mergeSamples(int num_elts, List<ArrayList<T>> samples, long[] observed) {
+        // Each observed[i] counts the elements of stream i not yet
+        // accounted for by the result.
+        long total = 0;
+        for (long n : observed) {
+            total += n;
+        }
+        ThreadLocalRandom generator = ThreadLocalRandom.current();
+        int result_size = (int) Math.min(num_elts, total);
+        ArrayList<T> result = new ArrayList<T>(result_size);
+        while (result.size() < result_size) {
+            // Choose a sample, weighted by its unaccounted-for elements.
+            long pick = generator.nextLong(total);
+            int s = 0;
+            while (pick >= observed[s]) {
+                pick -= observed[s];
+                s++;
+            }
+            // Take a random element of the sample, without replacement.
+            ArrayList<T> sample = samples.get(s);
+            int j = generator.nextInt(sample.size());
+            result.add(sample.get(j));
+            sample.set(j, sample.get(sample.size() - 1));
+            sample.remove(sample.size() - 1);
+            observed[s]--;
+            total--;
+        }
+        return result;
+    }
+
+}
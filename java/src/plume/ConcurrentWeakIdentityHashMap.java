@@ -0,0 +1,363 @@
+package plume;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A thread-safe version of {@link WeakIdentityHashMap}:  a
+ * {@link ConcurrentMap} whose keys are compared by identity
+ * (<code>==</code>) and are held weakly.  An entry is removed
+ * automatically once its key is no longer in ordinary use.
+ * <p>
+ *
+ * The map is backed by a {@link ConcurrentHashMap}, so retrievals do not
+ * block and updates lock only part of the table.  Entries whose keys have
+ * been garbage-collected are removed by ordinary map operations, one at a
+ * time, without locking the whole map.  Iterators are weakly consistent,
+ * as for <code>ConcurrentHashMap</code>:  they never throw
+ * {@link java.util.ConcurrentModificationException}, and they skip
+ * entries whose keys have been garbage-collected.
+ * <p>
+ *
+ * Unlike <code>WeakIdentityHashMap</code>, this map does not permit null
+ * keys or null values.  As with <code>WeakIdentityHashMap</code>, a value
+ * should not strongly refer to its own key, or the key will never be
+ * discarded.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class ConcurrentWeakIdentityHashMap<K,V>
+  extends AbstractMap<K,V>
+  implements ConcurrentMap<K,V> {
+
+  /** The underlying map. */
+  private final ConcurrentHashMap<IdentityKey<K>,V> map;
+
+  /** Keys whose referents have been garbage-collected. */
+  private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+  /** Lazily-created view of the entries. */
+  private transient /*@Nullable*/ Set<Map.Entry<K,V>> entrySet = null;
+
+  /** Create a new, empty map. */
+  public ConcurrentWeakIdentityHashMap() {
+    map = new ConcurrentHashMap<IdentityKey<K>,V>();
+  }
+
+  /**
+   * Create a new, empty map with the given initial capacity.
+   * @param initialCapacity the initial capacity
+   */
+  public ConcurrentWeakIdentityHashMap(int initialCapacity) {
+    map = new ConcurrentHashMap<IdentityKey<K>,V>(initialCapacity);
+  }
+
+  /**
+   * Create a new, empty map with the given parameters; see
+   * {@link ConcurrentHashMap#ConcurrentHashMap(int, float, int)}.
+   * @param initialCapacity the initial capacity
+   * @param loadFactor the load factor
+   * @param concurrencyLevel the estimated number of concurrently updating
+   * threads
+   */
+  public ConcurrentWeakIdentityHashMap(int initialCapacity, float loadFactor, int concurrencyLevel) {
+    map = new ConcurrentHashMap<IdentityKey<K>,V>(initialCapacity, loadFactor, concurrencyLevel);
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Keys
+  ///
+
+  /**
+   * A key of the underlying map.  Two keys are equal if they refer to the
+   * same non-null object.
+   */
+  private static interface IdentityKey<K> {
+    /*@Nullable*/ K get();
+  }
+
+  /** A key stored in the underlying map. */
+  private static final class WeakKey<K> extends WeakReference<K> implements IdentityKey<K> {
+    /** The identity hash code of the referent, which may have been cleared. */
+    private final int hash;
+
+    WeakKey(K key, ReferenceQueue<? super K> queue) {
+      super(key, queue);
+      hash = System.identityHashCode(key);
+    }
+
+    /*@Pure*/ public int hashCode() {
+      return hash;
+    }
+
+    /*@Pure*/ public boolean equals(/*@Nullable*/ Object o) {
+      return (this == o) || sameReferent(this, o);
+    }
+  }
+
+  /**
+   * A key used only to look up entries in the underlying map, so that
+   * lookups do not create a weak reference.
+   */
+  private static final class LookupKey<K> implements IdentityKey<K> {
+    private final K key;
+
+    LookupKey(K key) {
+      this.key = key;
+    }
+
+    /*@Pure*/ public K get() {
+      return key;
+    }
+
+    /*@Pure*/ public int hashCode() {
+      return System.identityHashCode(key);
+    }
+
+    /*@Pure*/ public boolean equals(/*@Nullable*/ Object o) {
+      return sameReferent(this, o);
+    }
+  }
+
+  /**
+   * Return true if o is an IdentityKey that refers to the same non-null
+   * object as k.
+   */
+  /*@Pure*/ private static boolean sameReferent(IdentityKey<?> k, /*@Nullable*/ Object o) {
+    if (!(o instanceof IdentityKey)) {
+      return false;
+    }
+    Object referent = k.get();
+    return referent != null && referent == ((IdentityKey<?>) o).get();
+  }
+
+  private LookupKey<K> lookupKey(/*@Nullable*/ Object key) {
+    if (key == null) {
+      throw new NullPointerException();
+    }
+    @SuppressWarnings("unchecked") // a lookup key is never stored in the map
+    LookupKey<K> result = new LookupKey<K>((K) key);
+    return result;
+  }
+
+  private WeakKey<K> weakKey(K key) {
+    if (key == null) {
+      throw new NullPointerException();
+    }
+    return new WeakKey<K>(key, queue);
+  }
+
+  /**
+   * Remove entries whose keys have been garbage-collected.  Each removal
+   * locks only the part of the underlying map that holds the entry.
+   */
+  @SuppressWarnings("unchecked") // the queue contains only WeakKey<K> objects
+  private void expungeStaleEntries() {
+    WeakKey<K> k;
+    while ((k = (WeakKey<K>) queue.poll()) != null) {
+      map.remove(k);
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Map operations
+  ///
+
+  /**
+   * Return the number of entries in the map.  The result may include
+   * entries whose keys have been garbage-collected but not yet removed.
+   */
+  /*@Pure*/ public int size() {
+    expungeStaleEntries();
+    return map.size();
+  }
+
+  /*@Pure*/ public boolean isEmpty() {
+    expungeStaleEntries();
+    return map.isEmpty();
+  }
+
+  /*@Pure*/ public /*@Nullable*/ V get(/*@Nullable*/ Object key) {
+    expungeStaleEntries();
+    return map.get(lookupKey(key));
+  }
+
+  /*@Pure*/ public boolean containsKey(/*@Nullable*/ Object key) {
+    expungeStaleEntries();
+    return map.containsKey(lookupKey(key));
+  }
+
+  /*@Pure*/ public boolean containsValue(/*@Nullable*/ Object value) {
+    expungeStaleEntries();
+    return map.containsValue(value);
+  }
+
+  public /*@Nullable*/ V put(K key, V value) {
+    expungeStaleEntries();
+    return map.put(weakKey(key), value);
+  }
+
+  public /*@Nullable*/ V putIfAbsent(K key, V value) {
+    expungeStaleEntries();
+    // Look first, to avoid creating a weak reference in the common case
+    // that the key is already present.
+    V old = map.get(lookupKey(key));
+    if (old != null) {
+      return old;
+    }
+    return map.putIfAbsent(weakKey(key), value);
+  }
+
+  public /*@Nullable*/ V remove(/*@Nullable*/ Object key) {
+    expungeStaleEntries();
+    return map.remove(lookupKey(key));
+  }
+
+  public boolean remove(/*@Nullable*/ Object key, /*@Nullable*/ Object value) {
+    expungeStaleEntries();
+    return (value != null) && map.remove(lookupKey(key), value);
+  }
+
+  public boolean replace(K key, V oldValue, V newValue) {
+    expungeStaleEntries();
+    if (oldValue == null || newValue == null) {
+      throw new NullPointerException();
+    }
+    return map.replace(lookupKey(key), oldValue, newValue);
+  }
+
+  public /*@Nullable*/ V replace(K key, V value) {
+    expungeStaleEntries();
+    return map.replace(lookupKey(key), value);
+  }
+
+  public void clear() {
+    // The queue may still hold keys from the cleared map; removing them
+    // later is harmless, because a WeakKey equals only itself once its
+    // referent is cleared.
+    map.clear();
+    expungeStaleEntries();
+  }
+
+  /**
+   * Return a view of the entries in the map.  Its iterator is weakly
+   * consistent and skips entries whose keys have been garbage-collected.
+   * Removing an element of the view removes the entry from the map, and
+   * <code>setValue</code> on an element updates the map.
+   */
+  /*@SideEffectFree*/ public Set<Map.Entry<K,V>> entrySet() {
+    Set<Map.Entry<K,V>> es = entrySet;
+    if (es == null) {
+      es = new EntrySet();
+      entrySet = es;
+    }
+    return es;
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+    public Iterator<Map.Entry<K,V>> iterator() {
+      expungeStaleEntries();
+      return new EntryIterator();
+    }
+
+    /*@Pure*/ public int size() {
+      return ConcurrentWeakIdentityHashMap.this.size();
+    }
+
+    public void clear() {
+      ConcurrentWeakIdentityHashMap.this.clear();
+    }
+  }
+
+  /**
+   * An iterator over the underlying map that skips entries whose keys have
+   * been garbage-collected.  It holds a strong reference to the key of the
+   * next entry, so that the key cannot be discarded between hasNext() and
+   * next().
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+    private final Iterator<Map.Entry<IdentityKey<K>,V>> itor = map.entrySet().iterator();
+    private /*@Nullable*/ IdentityKey<K> nextIdentityKey = null;
+    private /*@Nullable*/ K nextKey = null;
+    private /*@Nullable*/ V nextValue = null;
+    /** The key of the entry most recently returned by next(). */
+    private /*@Nullable*/ IdentityKey<K> lastReturned = null;
+
+    public boolean hasNext() {
+      while (nextKey == null && itor.hasNext()) {
+        Map.Entry<IdentityKey<K>,V> e = itor.next();
+        nextIdentityKey = e.getKey();
+        nextKey = nextIdentityKey.get();
+        nextValue = e.getValue();
+      }
+      return nextKey != null;
+    }
+
+    public Map.Entry<K,V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<K,V> result = new WriteThroughEntry(nextKey, nextValue);
+      lastReturned = nextIdentityKey;
+      nextIdentityKey = null;
+      nextKey = null;
+      nextValue = null;
+      return result;
+    }
+
+    public void remove() {
+      if (lastReturned == null) {
+        throw new IllegalStateException();
+      }
+      // Not itor.remove(), because hasNext() may have advanced itor.
+      map.remove(lastReturned);
+      lastReturned = null;
+    }
+  }
+
+  /** An entry whose setValue method updates the map. */
+  private final class WriteThroughEntry extends AbstractMap.SimpleEntry<K,V> {
+    static final long serialVersionUID = 20151102L;
+
+    WriteThroughEntry(K key, V value) {
+      super(key, value);
+    }
+
+    public V setValue(V value) {
+      if (value == null) {
+        throw new NullPointerException();
+      }
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+
+    // AbstractMap.SimpleEntry compares keys with equals(); use identity.
+    /*@Pure*/ public boolean equals(/*@Nullable*/ Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+      return getKey() == e.getKey() && getValue().equals(e.getValue());
+    }
+
+    /*@Pure*/ public int hashCode() {
+      return System.identityHashCode(getKey()) ^ getValue().hashCode();
+    }
+  }
+}
@@ -9,7 +9,10 @@ import java.io.LineNumberReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Stack;
 import java.util.regex.Matcher;
@@ -58,6 +61,9 @@ import org.checkerframework.checker.regex.qual.*;
  *  }
  * </pre>
  *
+ * For very large files, {@link MappedEntryReader} reads the same syntax
+ * without copying each line and entry into a new String.
+ *
  * @see #get_entry() and @see #set_entry_start_stop(String,String)
  */
 public class EntryReader extends LineNumberReader implements Iterable<String>, Iterator<String> {
@@ -187,6 +193,167 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
     }
   }
 
+  /**
+   * An entry whose body is not built until it is needed.
+   * {@link #get_lazy_entry} reads the same lines as {@link #get_entry},
+   * but keeps them rather than copying them into a body string.  The
+   * first line, file, and line number are available at once.  The body
+   * is available as a CharSequence view of the lines, which can be
+   * searched (for example, by a regular expression) without being
+   * copied, and as a String, which is built the first time it is
+   * requested.  Thus a client that rejects most entries, by their first
+   * line or by searching the view, builds no body for them.
+   */
+  public static class LazyEntry {
+    /** First line of the entry. */
+    public final String first_line;
+    /** True if this is a short entry (blank-line-separated). */
+    final boolean short_entry;
+    /** Filename in which the entry was found. */
+    public final String filename;
+    /** Line number of first line of entry. */
+    public final long line_number;
+    /** The lines of the body, including the first line. */
+    private final List<String> lines;
+    /** The body, once it has been built. */
+    private /*@Nullable*/ String body = null;
+
+    LazyEntry(String first_line, List<String> lines, String filename, long line_number,
+              boolean short_entry) {
+      this.first_line = first_line;
+      this.lines = lines;
+      this.filename = filename;
+      this.line_number = line_number;
+      this.short_entry = short_entry;
+    }
+
+    /**
+     * Return the complete body of the entry including the first line,
+     * building it if necessary.
+     * @return the body of the entry
+     */
+    public String get_body() {
+      String result = body;
+      if (result == null) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+          sb.append(line);
+          sb.append(lineSep);
+        }
+        result = sb.toString();
+        body = result;
+      }
+      return result;
+    }
+
+    /**
+     * Return a view of the body of the entry, which does not copy the
+     * lines.  The view has the same characters as {@link #get_body}.
+     * @return a view of the body of the entry
+     */
+    public CharSequence get_body_view() {
+      String result = body;
+      if (result != null) {
+        return result;
+      }
+      return new LinesView(lines);
+    }
+
+    /**
+     * Return a substring of the entry body that matches the specified
+     * regular expression, as {@link Entry} does.  Searches the view of
+     * the body, so does not build it.  If no match is found, returns
+     * the first_line.
+     * @param re regex to match
+     * @return a substring that matches re
+     */
+    public String get_description(/*@Nullable*/ Pattern re) {
+
+      if (re == null) {
+        return first_line;
+      }
+
+      Matcher descr = re.matcher(get_body_view());
+      if (descr.find()) {
+        return descr.group();
+      } else {
+        return first_line;
+      }
+    }
+
+    /**
+     * Return an Entry with the same contents, building the body if
+     * necessary.
+     * @return an Entry with the same contents
+     */
+    public Entry toEntry() {
+      return new Entry(first_line, get_body(), filename, line_number, short_entry);
+    }
+  }
+
+  /**
+   * A view of a list of lines, each followed by lineSep, as a single
+   * CharSequence.  Not thread-safe:  it caches the line that contains
+   * the last character read, so that reading characters in order takes
+   * constant time per character.
+   */
+  private static final class LinesView implements CharSequence {
+    private final List<String> lines;
+    /**
+     * starts[i] is the index of the first character of line i;
+     * starts[lines.size()] is the length of the view.
+     */
+    private final int[] starts;
+    /** The line that contains the last character read. */
+    private int current = 0;
+
+    LinesView(List<String> lines) {
+      this.lines = lines;
+      starts = new int[lines.size() + 1];
+      for (int i=0; i<lines.size(); i++) {
+        starts[i + 1] = starts[i] + lines.get(i).length() + lineSep.length();
+      }
+    }
+
+    public int length() {
+      return starts[lines.size()];
+    }
+
+    public char charAt(int index) {
+      if (index < 0 || index >= length()) {
+        throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+      }
+      int i = current;
+      if (index < starts[i] || index >= starts[i + 1]) {
+        // Each line is followed by a non-empty separator, so starts is
+        // strictly increasing.
+        i = Arrays.binarySearch(starts, 0, lines.size(), index);
+        if (i < 0) {
+          i = -i - 2;
+        }
+        current = i;
+      }
+      String line = lines.get(i);
+      int offset = index - starts[i];
+      return (offset < line.length()) ? line.charAt(offset) : lineSep.charAt(offset - line.length());
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      if (start < 0 || start > end || end > length()) {
+        throw new IndexOutOfBoundsException("subSequence(" + start + ", " + end + "), length " + length());
+      }
+      StringBuilder result = new StringBuilder(end - start);
+      for (int i=start; i<end; i++) {
+        result.append(charAt(i));
+      }
+      return result.toString();
+    }
+
+    public String toString() {
+      return subSequence(0, length()).toString();
+    }
+  }
+
   ///
   /// Constructors
   ///
@@ -582,6 +749,19 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
    * @throws IOException if there is a problem reading the file
    */
   public /*@Nullable*/ Entry get_entry() throws IOException {
+    LazyEntry entry = get_lazy_entry();
+    return (entry == null) ? null : entry.toEntry();
+  }
+
+  /**
+   * Returns the next entry (paragraph) in the file, as
+   * {@link #get_entry} does, but without building its body.  If no more
+   * entries are available, returns null.
+   * @return the next entry (paragraph) in the file
+   * @throws IOException if there is a problem reading the file
+   * @see LazyEntry
+   */
+  public /*@Nullable*/ LazyEntry get_lazy_entry() throws IOException {
 
     // Skip any preceding blank lines
     String line = readLine();
@@ -592,8 +772,8 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
       return (null);
     }
 
-    StringBuilder body = new StringBuilder(10000);
-    Entry entry = null;
+    List<String> body = new ArrayList<String>();
+    LazyEntry entry = null;
     String filename = getFileName();
     long line_number = getLineNumber();
 
@@ -622,8 +802,7 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
              && !entry_match.find()
              && !end_entry_match.find()
              && filename.equals(getFileName())) {
-        body.append(line);
-        body.append(lineSep);
+        body.add(line);
         line = readLine();
         if (line == null) {
           break; // end of file serves as entry terminator
@@ -639,8 +818,7 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
         putback(line);
       }
 
-      entry = new Entry(description, body.toString(), filename,
-                                     line_number, false);
+      entry = new LazyEntry(description, body, filename, line_number, false);
 
     } else { // blank-separated entry
 
@@ -649,8 +827,7 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
       // Read until we find another blank line
       while ((line != null) && (line.trim().length() != 0)
              && filename.equals(getFileName())) {
-        body.append(line);
-        body.append(lineSep);
+        body.add(line);
         line = readLine();
       }
 
@@ -660,8 +837,7 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
         putback(line);
       }
 
-      entry = new Entry(description, body.toString(), filename, line_number,
-                         true);
+      entry = new LazyEntry(description, body, filename, line_number, true);
     }
 
     return (entry);
@@ -769,6 +945,56 @@ public class EntryReader extends LineNumberReader implements Iterable<String>, I
     pushback_line = line;
   }
 
+  /**
+   * Close every file still being read, including included files.
+   * @throws IOException if there is a problem closing a file
+   */
+  @Override
+  public void close() throws IOException {
+    while (!readers.empty()) {
+      readers.pop().close();
+    }
+    super.close();
+  }
+
+  /**
+   * Position this reader so that the next line it reads is the given
+   * line of the outermost file.  Closes any included files being read
+   * and discards any pushed-back line, then reads and discards lines of
+   * the outermost file (without processing comments or include
+   * directives).  Does nothing, and returns false, if the outermost file
+   * has already been read past the line before the given one, unless the
+   * given line is the pushed-back line.
+   * <p>
+   *
+   * An entry does not depend on the lines before it, so get_entry()
+   * after skip_to_line(n) returns the entry that starts at line n, if
+   * one does.  This is used by {@link LookupIndex} to fetch entries.
+   * @param line_number the line number of the next line to read
+   * @return true if the reader was positioned at the given line
+   * @throws IOException if there is a problem reading the file
+   */
+  boolean skip_to_line(long line_number) throws IOException {
+    if (readers.empty()) {
+      return false;
+    }
+    FlnReader outer = readers.get(0);
+    if (outer.getLineNumber() >= line_number) {
+      return (readers.size() == 1 && pushback_line != null
+              && outer.getLineNumber() == line_number);
+    }
+    pushback_line = null;
+    while (readers.size() > 1) {
+      readers.pop().close();
+    }
+    while (outer.getLineNumber() < line_number - 1) {
+      if (outer.readLine() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /** Mark the present position in the stream. */
   @Override
   public void mark(int readAheadLimit) {
@@ -2,6 +2,7 @@ package plume;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
 
 /*>>>
@@ -184,6 +185,131 @@ public class FuzzyFloat {
     return ((d1 >= d2) || eq(d1, d2));
   }
 
+  ///////////////////////////////////////////////////////////////////////////
+  /// Elementwise comparisons of arrays
+  ///
+
+  // These compare a1[i] to a2[i] for every i.  Each processes the arrays
+  // 64 elements at a time, computing one word of results per block with a
+  // branch-free loop that the JIT compiler can vectorize.  The result for
+  // each element is the same as that of the corresponding scalar method.
+
+  /**
+   * Returns the set of indices i for which eq(a1[i], a2[i]).
+   * @param a1 the first array to compare
+   * @param a2 the second array to compare; must have the same length as a1
+   * @return the indices at which a1 and a2 are equal
+   * @see #eq
+   */
+  /*@SideEffectFree*/ public BitSet eqElementwise(double[] a1, double[] a2) {
+    long[] words = new long[wordCount(a1, a2)];
+    for (int w=0; w<words.length; w++) {
+      words[w] = eqWord(a1, a2, w << 6);
+    }
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * Returns the set of indices i for which lt(a1[i], a2[i]).
+   * @param a1 the first array to compare
+   * @param a2 the second array to compare; must have the same length as a1
+   * @return the indices at which a1 is less than a2
+   * @see #lt
+   */
+  /*@SideEffectFree*/ public BitSet ltElementwise(double[] a1, double[] a2) {
+    long[] words = new long[wordCount(a1, a2)];
+    for (int w=0; w<words.length; w++) {
+      words[w] = lessWord(a1, a2, w << 6) & ~eqWord(a1, a2, w << 6);
+    }
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * Returns the set of indices i for which gt(a1[i], a2[i]).
+   * @param a1 the first array to compare
+   * @param a2 the second array to compare; must have the same length as a1
+   * @return the indices at which a1 is greater than a2
+   * @see #gt
+   */
+  /*@SideEffectFree*/ public BitSet gtElementwise(double[] a1, double[] a2) {
+    long[] words = new long[wordCount(a1, a2)];
+    for (int w=0; w<words.length; w++) {
+      words[w] = lessWord(a2, a1, w << 6) & ~eqWord(a1, a2, w << 6);
+    }
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * Returns the number of indices i for which eq(a1[i], a2[i]).
+   * @param a1 the first array to compare
+   * @param a2 the second array to compare; must have the same length as a1
+   * @return the number of indices at which a1 and a2 are equal
+   * @see #eq
+   */
+  /*@Pure*/ public int countEqElementwise(double[] a1, double[] a2) {
+    int words = wordCount(a1, a2);
+    int result = 0;
+    for (int w=0; w<words; w++) {
+      result += Long.bitCount(eqWord(a1, a2, w << 6));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of 64-bit words needed to hold one bit per
+   * element of a1 and a2.
+   */
+  /*@Pure*/ private static int wordCount(double[] a1, double[] a2) {
+    if (a1.length != a2.length) {
+      throw new IllegalArgumentException("Arrays have different lengths: "
+                                         + a1.length + ", " + a2.length);
+    }
+    return (a1.length + 63) >>> 6;
+  }
+
+  /**
+   * Returns a word whose bit j is set if eq(a1[from+j], a2[from+j]), for
+   * each j &lt; 64 such that from+j is an index of the arrays.
+   */
+  /*@Pure*/ private long eqWord(double[] a1, double[] a2, int from) {
+    int to = Math.min(from + 64, a1.length);
+    long result = 0;
+    if (off) {
+      for (int i=from; i<to; i++) {
+        result |= (a1[i] == a2[i] ? 1L : 0L) << (i - from);
+      }
+      return result;
+    }
+    double zero_tolerance = Math.pow((max_ratio - 1), 2);
+    for (int i=from; i<to; i++) {
+      double d1 = a1[i];
+      double d2 = a2[i];
+      // The same cases as in eq(double, double), computed without
+      // branching.  If either value is zero, abs(d1 + d2) is the absolute
+      // value of the other.  NaN fails every comparison.
+      double ratio = d1 / d2;
+      boolean zero = (d1 == 0.0) | (d2 == 0.0);
+      boolean byZero = Math.abs(d1 + d2) < zero_tolerance;
+      boolean byRatio = (ratio >= min_ratio) & (ratio <= max_ratio);
+      boolean eq = (d1 == d2) | (zero & byZero) | (!zero & byRatio);
+      result |= (eq ? 1L : 0L) << (i - from);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a word whose bit j is set if a1[from+j] &lt; a2[from+j], for
+   * each j &lt; 64 such that from+j is an index of the arrays.
+   */
+  /*@Pure*/ private static long lessWord(double[] a1, double[] a2, int from) {
+    int to = Math.min(from + 64, a1.length);
+    long result = 0;
+    for (int i=from; i<to; i++) {
+      result |= (a1[i] < a2[i] ? 1L : 0L) << (i - from);
+    }
+    return result;
+  }
+
   /**
    * Searches for the first occurrence of elt in a.  elt is considered
    * equal to a[i] if it passes the {@link #eq} test.
@@ -193,6 +319,7 @@ public class FuzzyFloat {
    * @return the first index containing the specified element,
    *    or -1 if the element is not found in the array.
    * @see java.util.Vector#indexOf(java.lang.Object)
+   * @see Index#indexOf
    */
   /*@Pure*/ public int indexOf(double[] a, double elt) {
     for (int i=0; i<a.length; i++) {
@@ -321,6 +448,239 @@ public class FuzzyFloat {
 
 
 
+  /**
+   * Returns an index of a, which answers repeated fuzzy membership and
+   * subset queries against a faster than this class's methods do.  The
+   * index uses the current relative difference; later calls to
+   * {@link #set_rel_diff} do not affect it.
+   * @param a the array to index
+   * @return an index of a
+   */
+  public Index index(double[] a) {
+    return new Index(this, a);
+  }
+
+  /**
+   * A sorted copy of an array, for answering fuzzy queries against the
+   * array by binary search.  Each query examines only the elements that
+   * lie within the tolerance window of the query value, and it neither
+   * clones nor sorts its arguments.  The answers are the same as those
+   * of the corresponding FuzzyFloat methods:  {@link #contains},
+   * {@link #indexOf}, and {@link #containsAll} correspond to
+   * {@link FuzzyFloat#indexOf(double[], double)} and
+   * {@link FuzzyFloat#isSubset}. <p>
+   *
+   * Building an index takes O(n log n) time for an array of length n,
+   * and a query for a single value takes O(log n) time plus the number
+   * of elements in the window.  The index copies the array, so the array
+   * may be changed after the index is built.
+   */
+  public static final class Index {
+
+    /**
+     * The window around a value is widened by this relative amount, to
+     * allow for rounding in the computation of its bounds.  Every element
+     * in the window is compared with {@link FuzzyFloat#eq}, so a wider
+     * window changes only the speed of a query, not its result.
+     */
+    private static final double WINDOW_SLOP = 1e-9;
+
+    /** The comparison, with the parameters in force when the index was built. */
+    private final FuzzyFloat ff;
+
+    /** The non-NaN elements of the array, in ascending order. */
+    private final double[] sorted;
+
+    /** positions[i] is the index in the array of sorted[i]. */
+    private final int[] positions;
+
+    /** The zero tolerance of {@link FuzzyFloat#eq}. */
+    private final double zero_tolerance;
+
+    /**
+     * Creates an index of a that compares values using the current
+     * parameters of ff.
+     * @param ff the comparison to use
+     * @param a the array to index
+     */
+    public Index(FuzzyFloat ff, double[] a) {
+      this.ff = new FuzzyFloat();
+      this.ff.min_ratio = ff.min_ratio;
+      this.ff.max_ratio = ff.max_ratio;
+      this.ff.off = ff.off;
+      zero_tolerance = Math.pow((ff.max_ratio - 1), 2);
+
+      // NaN is not equal to anything, so leave it out.
+      int n = 0;
+      for (double d : a) {
+        if (!Double.isNaN(d)) {
+          n++;
+        }
+      }
+      int[] pos = new int[n];
+      n = 0;
+      for (int i=0; i<a.length; i++) {
+        if (!Double.isNaN(a[i])) {
+          pos[n++] = i;
+        }
+      }
+      sortPositions(pos, a);
+      positions = pos;
+      sorted = new double[n];
+      for (int i=0; i<n; i++) {
+        sorted[i] = a[positions[i]];
+      }
+    }
+
+    /**
+     * Sorts positions by the value of a at each position, keeping equal
+     * values in order of position.  This is a merge sort, so that the
+     * positions need not be boxed.
+     */
+    private static void sortPositions(int[] positions, double[] a) {
+      int n = positions.length;
+      int[] src = positions;
+      int[] dst = new int[n];
+      for (int width=1; width<n; width*=2) {
+        for (int lo=0; lo<n; lo+=2*width) {
+          int mid = Math.min(lo + width, n);
+          int hi = Math.min(lo + 2*width, n);
+          int i = lo;
+          int j = mid;
+          for (int k=lo; k<hi; k++) {
+            if (i < mid && (j >= hi || a[src[i]] <= a[src[j]])) {
+              dst[k] = src[i++];
+            } else {
+              dst[k] = src[j++];
+            }
+          }
+        }
+        int[] tmp = src;
+        src = dst;
+        dst = tmp;
+      }
+      if (src != positions) {
+        System.arraycopy(src, 0, positions, 0, n);
+      }
+    }
+
+    /**
+     * Returns the index in sorted of the first element that is not less
+     * than d.
+     */
+    /*@Pure*/ private int lowerBound(double d) {
+      int lo = 0;
+      int hi = sorted.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (sorted[mid] < d) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * Returns the position in the indexed array of an element that is
+     * equal to elt, or -1 if there is none.  If first is true, returns
+     * the first such position; otherwise returns any of them.
+     */
+    /*@Pure*/ private int find(double elt, boolean first) {
+      if (Double.isNaN(elt)) {
+        return -1;
+      }
+      // Compute a window [low, high] that contains every value equal to
+      // elt, then compare elt to each element in the window.
+      double low;
+      double high;
+      if (ff.off || Double.isInfinite(elt)) {
+        low = elt;
+        high = elt;
+      } else if (ff.min_ratio <= 0) {
+        // Values of either sign may be equal to elt.
+        low = Double.NEGATIVE_INFINITY;
+        high = Double.POSITIVE_INFINITY;
+      } else {
+        if (elt == 0.0) {
+          low = -zero_tolerance;
+          high = zero_tolerance;
+        } else {
+          double b1 = elt / ff.max_ratio;
+          double b2 = elt / ff.min_ratio;
+          low = Math.min(b1, b2);
+          high = Math.max(b1, b2);
+          if (Math.abs(elt) < zero_tolerance) {
+            // elt is also equal to zero.
+            low = Math.min(low, 0.0);
+            high = Math.max(high, 0.0);
+          }
+        }
+        low -= Math.abs(low) * WINDOW_SLOP + Double.MIN_NORMAL;
+        high += Math.abs(high) * WINDOW_SLOP + Double.MIN_NORMAL;
+      }
+
+      int result = -1;
+      for (int i = lowerBound(low); i < sorted.length && sorted[i] <= high; i++) {
+        if ((result == -1 || positions[i] < result) && ff.eq(elt, sorted[i])) {
+          result = positions[i];
+          if (!first) {
+            break;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Returns the length of the indexed array, not counting NaN elements.
+     * @return the number of non-NaN elements in the indexed array
+     */
+    /*@Pure*/ public int size() {
+      return sorted.length;
+    }
+
+    /**
+     * Returns true if some element of the indexed array is equal to elt,
+     * using {@link FuzzyFloat#eq}.
+     * @param elt the element to search for
+     * @return true if the indexed array contains elt
+     */
+    /*@Pure*/ public boolean contains(double elt) {
+      return find(elt, false) != -1;
+    }
+
+    /**
+     * Searches for the first occurrence of elt in the indexed array.
+     * The result is the same as that of
+     * {@link FuzzyFloat#indexOf(double[], double)}.
+     * @param elt the element to search for
+     * @return the first index containing the specified element,
+     *    or -1 if the element is not found in the array.
+     */
+    /*@Pure*/ public int indexOf(double elt) {
+      return find(elt, true);
+    }
+
+    /**
+     * Determines whether smaller is a subset of the indexed array:
+     * whether each element of smaller is equal to some element of the
+     * indexed array, using {@link FuzzyFloat#eq}.  Unlike
+     * {@link FuzzyFloat#isSubset}, this does not clone or sort smaller.
+     * @param smaller the possibly-smaller subset
+     * @return true if smaller is a subset of the indexed array
+     */
+    /*@Pure*/ public boolean containsAll(double[] smaller) {
+      for (double d : smaller) {
+        if (!contains(d)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
   /**
    * Lexically compares two double arrays.
    */
@@ -355,7 +715,8 @@ public class FuzzyFloat {
    *
    * Note that this implementation is optimized for cases where the
    * elements are actually the same, since it does a sort of both
-   * arrays before starting the comparisons.
+   * arrays before starting the comparisons.  To test many arrays against
+   * the same bigger array, use {@link Index#containsAll} instead.
    *
    * @param smaller the possibly-smaller subset
    * @param bigger the possibly-larger set
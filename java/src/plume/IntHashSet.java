@@ -0,0 +1,198 @@
+package plume;
+
+import java.util.Arrays;
+
+/*>>>
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A set of <code>int</code> values.  Unlike a
+ * <code>HashSet&lt;Integer&gt;</code>, it does not box its elements:  it
+ * stores them in a single <code>int[]</code> table, using open addressing
+ * with linear probing, and allocates nothing else except when it grows.
+ * <p>
+ *
+ * Other primitive types can be stored by mapping them to
+ * <code>int</code> values.  For example, {@link ArraysMDE} stores a
+ * <code>float</code> as its {@link Float#floatToIntBits} value, so that
+ * set membership agrees with {@link Float#equals}.
+ * <p>
+ *
+ * Like most collection classes, this class is not synchronized.
+ *
+ * @see LongHashSet
+ */
+public final class IntHashSet {
+
+  /**
+   * The value that marks an empty slot of the table.  The set records
+   * whether it contains this value in the field containsFree.
+   */
+  private static final int FREE = 0;
+
+  /** The hash table.  Its length is always a power of two. */
+  private int[] table;
+
+  /** True if the set contains FREE, which is not stored in the table. */
+  private boolean containsFree = false;
+
+  /** The number of elements in the table (not counting FREE). */
+  private int size = 0;
+
+  /** The maximum number of elements in the table before it grows. */
+  private int threshold;
+
+  /**
+   * The largest length of a table:  the largest power of two that is a
+   * legal array length.
+   */
+  static final int MAX_CAPACITY = 1 << 30;
+
+  /**
+   * The largest length of this set's table.  Lowered only by tests, so
+   * that they can fill the table.
+   */
+  int maxCapacity = MAX_CAPACITY;
+
+  /** Create an empty set. */
+  public IntHashSet() {
+    this(16);
+  }
+
+  /**
+   * Create an empty set that can hold the given number of elements
+   * without growing.  A set holds at most 2<sup>30</sup>-1 elements.
+   * @param expectedSize the number of elements that the set will hold
+   */
+  public IntHashSet(int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("Negative expected size: " + expectedSize);
+    }
+    int capacity = tableCapacity(expectedSize);
+    table = new int[capacity];
+    threshold = capacity / 2;
+  }
+
+  /**
+   * Return the length of a hash table that can hold the given number of
+   * elements at a load factor of at most 1/2, so that probe runs are
+   * short:  the smallest power of two, at least 4, that is at least
+   * twice expectedSize.  The result is at most {@link #MAX_CAPACITY},
+   * so for a very large expectedSize the load factor is higher.
+   * @param expectedSize the number of elements that the table will hold
+   * @return the length of the table
+   */
+  /*@Pure*/ static int tableCapacity(long expectedSize) {
+    int capacity = 4;
+    while (capacity < 2 * expectedSize && capacity < MAX_CAPACITY) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  /*@Pure*/ private static int index(int value, int mask) {
+    // Spread the bits, because many sets contain consecutive values.
+    int h = value * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * Add the value to the set.
+   * @param value the value to add
+   * @return true if the set did not already contain the value
+   */
+  public boolean add(int value) {
+    if (value == FREE) {
+      boolean result = !containsFree;
+      containsFree = true;
+      return result;
+    }
+    int mask = table.length - 1;
+    int i = index(value, mask);
+    while (table[i] != FREE) {
+      if (table[i] == value) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    if (size == threshold) {
+      grow();
+      // The table may have been rehashed, so find the free slot again.
+      mask = table.length - 1;
+      i = index(value, mask);
+      while (table[i] != FREE) {
+        i = (i + 1) & mask;
+      }
+    }
+    table[i] = value;
+    size++;
+    return true;
+  }
+
+  /**
+   * Return true if the set contains the value.
+   * @param value the value to look for
+   * @return true if the set contains the value
+   */
+  /*@Pure*/ public boolean contains(int value) {
+    if (value == FREE) {
+      return containsFree;
+    }
+    int mask = table.length - 1;
+    for (int i = index(value, mask); table[i] != FREE; i = (i + 1) & mask) {
+      if (table[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the number of elements in the set.
+   * @return the number of elements in the set
+   */
+  /*@Pure*/ public int size() {
+    return containsFree ? size + 1 : size;
+  }
+
+  /** Remove every element from the set, keeping its current capacity. */
+  public void clear() {
+    Arrays.fill(table, FREE);
+    containsFree = false;
+    size = 0;
+  }
+
+  /**
+   * Make room for one more element in the table:  double the table, or,
+   * if it is already as large as possible, raise the load factor.  At
+   * least one slot of the table is always left free, so that every
+   * probe run ends.
+   * @throws IllegalStateException if the table is full
+   */
+  private void grow() {
+    if (table.length < maxCapacity) {
+      rehash(table.length * 2);
+    } else if (threshold < table.length - 1) {
+      threshold = table.length - 1;
+    } else {
+      throw new IllegalStateException("IntHashSet is full: " + size() + " elements");
+    }
+  }
+
+  private void rehash(int newCapacity) {
+    int[] oldTable = table;
+    table = new int[newCapacity];
+    threshold = newCapacity / 2;
+    int mask = newCapacity - 1;
+    for (int value : oldTable) {
+      if (value != FREE) {
+        int i = index(value, mask);
+        while (table[i] != FREE) {
+          i = (i + 1) & mask;
+        }
+        table[i] = value;
+      }
+    }
+  }
+}
@@ -1,8 +1,20 @@
 package plume;
 
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /*>>>
 import org.checkerframework.checker.interning.qual.*;
@@ -22,6 +34,11 @@ import org.checkerframework.dataflow.qual.*;
  *
  * Java builds in interning for Strings, but not for other objects.  The
  * methods in this class extend interning to all Java objects.
+ * <p>
+ *
+ * For programs that intern so many <code>long[]</code> or
+ * <code>double[]</code> arrays that the canonical arrays crowd the heap,
+ * see {@link OffHeapInternPool}.
  */
 public final class Intern {
 
@@ -133,131 +150,803 @@ public final class Intern {
   }
 
   /**
-   * Hasher object which hashes and compares int[] objects according
-   * to their contents.
+   * Hasher object which hashes and compares Doubles.
    * @see Hasher
-   * @see Arrays#equals(int[], int[])
    */
-  private static final class IntArrayHasher implements Hasher {
+  private static final class DoubleHasher implements Hasher {
     @Override
     public boolean equals(Object a1, Object a2) {
-      return Arrays.equals((int[])a1, (int[])a2);
+      return a1.equals(a2);
     }
     @Override
     public int hashCode(Object o) {
-      return Arrays.hashCode((int[])o);
+      Double d = (Double) o;
+      return d.hashCode();
     }
   }
 
   /**
-   * Hasher object which hashes and compares long[] objects according
+   * Hasher object which hashes and compares String[] objects according
    * to their contents.
    * @see Hasher
-   * @see Arrays#equals (long[], long[])
+   * Arrays.equals
    */
-  private static final class LongArrayHasher implements Hasher {
+  private static final class StringArrayHasher implements Hasher {
     @Override
     public boolean equals(Object a1, Object a2) {
-      return Arrays.equals((long[])a1, (long[])a2);
+      return Arrays.equals((String[])a1, (String[])a2);
     }
     @Override
     public int hashCode(Object o) {
-      return Arrays.hashCode((long[])o);
+      return Arrays.hashCode((String[])o);
     }
   }
 
-  private static final int FACTOR = 23;
-  // private static final double DOUBLE_FACTOR = 65537;
-  private static final double DOUBLE_FACTOR = 263;
-
   /**
-   * Hasher object which hashes and compares Doubles.
+   * Hasher object which hashes and compares Object[] objects according
+   * to their contents.
    * @see Hasher
+   * @see Arrays#equals(Object[], Object[])
    */
-  private static final class DoubleHasher implements Hasher {
+  private static final class ObjectArrayHasher implements Hasher {
     @Override
     public boolean equals(Object a1, Object a2) {
-      return a1.equals(a2);
+      return Arrays.equals((/*@Nullable*/ Object[])a1, (/*@Nullable*/ Object[])a2);
     }
     @Override
     public int hashCode(Object o) {
-      Double d = (Double) o;
-      return d.hashCode();
+      return Arrays.hashCode((Object[])o);
     }
   }
 
+  ///////////////////////////////////////////////////////////////////////////
+  /// Thread safety
+  ///
+
   /**
-   * Hasher object which hashes and compares double[] objects according
-   * to their contents.
-   * @see Hasher
-   * @see Arrays#equals(Object[],Object[])
+   * If true, every interning table is locked before it is read or
+   * modified, so that the intern methods may be called concurrently from
+   * multiple threads.  The lock is per-segment (see {@link #NUM_SEGMENTS}),
+   * so threads that intern different values rarely contend.
    */
-  private static final class DoubleArrayHasher implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      // "Arrays.equals" considers +0.0 != -0.0.
-      // Also, it gives inconsistent results (on different JVMs/classpaths?).
-      // return Arrays.equals((double[])a1, (double[])a2);
-      double[] da1 = (double[])a1;
-      double[] da2 = (double[])a2;
-      if (da1.length != da2.length) {
-        return false;
+  private static volatile boolean threadSafe = false;
+
+  /**
+   * Number of independently-locked segments in each interning table.
+   * Must be a power of two.
+   */
+  private static final int NUM_SEGMENTS = 16;
+
+  /**
+   * Enable or disable thread-safe interning.  When enabled, the intern
+   * methods of this class may be called concurrently from any number of
+   * threads; each table is divided into segments that are locked
+   * independently, so throughput scales with the number of threads.
+   * When disabled (the default), no locking is done, and clients that
+   * intern from multiple threads must synchronize externally.
+   * <p>
+   * This should be called before multiple threads start interning.
+   * @param b whether interning should be thread-safe
+   */
+  public static void setThreadSafe(boolean b) {
+    threadSafe = b;
+  }
+
+  /**
+   * Return true if interning is thread-safe.
+   * @return true if the intern methods may be called concurrently
+   * @see #setThreadSafe(boolean)
+   */
+  public static boolean isThreadSafe() {
+    return threadSafe;
+  }
+
+  /**
+   * Superclass of the interning tables.  Holds the statistics for the
+   * table; see {@link Statistics}.
+   */
+  private abstract static class Table {
+    /** A description of what the table interns, such as "int[]". */
+    final String type;
+    // These counters are updated only when statistics are enabled.
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong bytesSaved = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+
+    Table(String type) {
+      this.type = type;
+      tables.put(type, this);
+    }
+
+    /**
+     * Return the number of entries in the table.
+     * @return the number of entries in the table
+     */
+    abstract int size();
+
+    /**
+     * Return the number of lookups, or -1 if the table does not count them.
+     * @return the number of lookups
+     */
+    abstract long lookups();
+
+    /**
+     * Return the number of slots probed by all lookups, or -1 if the
+     * table does not count them.
+     * @return the number of slots probed
+     */
+    abstract long probes();
+
+    /**
+     * Return the number of entries removed because their keys were
+     * garbage-collected.
+     * @return the number of entries removed because their keys were
+     * garbage-collected
+     */
+    abstract long reclaimed();
+
+    /**
+     * Record a call to intern(arg) that returned result, when statistics
+     * are enabled.  The call is a hit if it found an entry already in the
+     * table, even if that entry is arg itself.  Bytes are saved only if
+     * result is a different object, so that the client can discard arg.
+     */
+    void record(boolean hit, Object arg, Object result, long startNanos) {
+      nanos.addAndGet(System.nanoTime() - startNanos);
+      if (hit) {
+        hits.incrementAndGet();
+        if (result != arg) {
+          bytesSaved.addAndGet(estimatedSize(arg));
+        }
+      } else {
+        misses.incrementAndGet();
       }
-      for (int i=0; i<da1.length; i++) {
-        if (! ((da1[i] == da2[i])
-               || (Double.isNaN(da1[i]) && Double.isNaN(da2[i])))) {
-          return false;
+    }
+
+    /**
+     * Record a call to internSubsequence, when statistics are enabled.
+     * The call is a hit if it did not need to compute the subsequence.
+     */
+    void recordSubsequence(boolean hit, Object subseq, long startNanos) {
+      nanos.addAndGet(System.nanoTime() - startNanos);
+      if (hit) {
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(estimatedSize(subseq));
+      } else {
+        misses.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * An interning table, divided into NUM_SEGMENTS WeakHasherMaps.
+   * A key's segment is determined by its hash code, so equal keys are
+   * always in the same segment.  Each segment is its own lock.
+   */
+  private static final class InternTable<K,V> extends Table {
+    private final Hasher hasher;
+    private final WeakHasherMap<K,V>[] segments;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    InternTable(String type, Hasher hasher) {
+      super(type);
+      this.hasher = hasher;
+      segments = (WeakHasherMap<K,V>[]) new WeakHasherMap[NUM_SEGMENTS];
+      for (int i=0; i<NUM_SEGMENTS; i++) {
+        segments[i] = new WeakHasherMap<K,V>(hasher);
+      }
+    }
+
+    /**
+     * Return the segment that contains key, if key is in the table.
+     * @param key the key to look up
+     * @return the segment for key
+     */
+    WeakHasherMap<K,V> segment(Object key) {
+      int h = hasher.hashCode(key);
+      // Mix in the high bits, which the segment index would otherwise ignore.
+      h ^= (h >>> 16);
+      return segments[h & (NUM_SEGMENTS - 1)];
+    }
+
+    int size() {
+      int result = 0;
+      for (WeakHasherMap<K,V> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.size();
+          }
+        } else {
+          result += seg.size();
         }
       }
-      return true;
+      return result;
     }
-    @Override
-    public int hashCode(Object o) {
-      double[] a = (double[])o;
-      // Not Arrays.hashCode(a), for consistency with equals method
-      // immediately above.
-      double running = 0;
-      for (int i=0; i<a.length; i++) {
-        double elt = (Double.isNaN(a[i]) ? 0.0 : a[i]);
-        running = running * FACTOR + elt * DOUBLE_FACTOR;
+
+    long lookups() {
+      return -1;
+    }
+
+    long probes() {
+      return -1;
+    }
+
+    long reclaimed() {
+      long result = 0;
+      for (WeakHasherMap<K,V> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.reclaimedCount();
+          }
+        } else {
+          result += seg.reclaimedCount();
+        }
       }
-      // Could add "... % Integer.MAX_VALUE" here; is that good to do?
-      long result = Math.round(running);
-      return (int) (result % Integer.MAX_VALUE);
+      return result;
+    }
+
+    /**
+     * Return an iterator over a snapshot of the keys in the table.
+     * @return an iterator over the keys in the table
+     */
+    Iterator<K> keys() {
+      List<K> result = new ArrayList<K>();
+      for (WeakHasherMap<K,V> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result.addAll(seg.keySet());
+          }
+        } else {
+          result.addAll(seg.keySet());
+        }
+      }
+      return result.iterator();
     }
   }
 
   /**
-   * Hasher object which hashes and compares String[] objects according
-   * to their contents.
-   * @see Hasher
-   * Arrays.equals
+   * An interning table for primitive arrays, divided into NUM_SEGMENTS
+   * WeakArrayInternTables.  Like InternTable, each segment is its own lock.
    */
-  private static final class StringArrayHasher implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      return Arrays.equals((String[])a1, (String[])a2);
+  private static final class ArrayInternTable<A> extends Table {
+    private final WeakArrayInternTable<A>[] segments;
+
+    /**
+     * @param type a description of what the table interns
+     * @param segments NUM_SEGMENTS empty tables
+     */
+    ArrayInternTable(String type, WeakArrayInternTable<A>[] segments) {
+      super(type);
+      assert segments.length == NUM_SEGMENTS;
+      this.segments = segments;
     }
-    @Override
-    public int hashCode(Object o) {
-      return Arrays.hashCode((String[])o);
+
+    /**
+     * Return the canonical array equal to a, adding a to the table if
+     * no equal array is already present.
+     * @param a the array to canonicalize
+     * @return the canonical array equal to a
+     */
+    A intern(A a) {
+      boolean stats = statisticsEnabled;
+      long start = stats ? System.nanoTime() : 0;
+      return internInSegment(a, hash(a), stats, start);
     }
+
+    /**
+     * Replace each non-null element of arrays by its canonical version.
+     * The tables are grown up front for a moderate batch, and the hash
+     * codes of a large batch are computed in parallel.
+     * @param arrays the arrays to canonicalize; side-effected
+     */
+    void internAll(A[] arrays) {
+      int n = arrays.length;
+      long[] hashes = new long[n];
+      if (n >= PARALLEL_BATCH_SIZE) {
+        HashPool.pool.invoke(new HashTask<A>(segments[0], arrays, hashes, 0, n));
+      } else {
+        for (int i=0; i<n; i++) {
+          if (arrays[i] != null) {
+            hashes[i] = hash(arrays[i]);
+          }
+        }
+      }
+      for (WeakArrayInternTable<A> seg : segments) {
+        // Assume the arrays are spread evenly among the segments.
+        int expected = Math.min(n / NUM_SEGMENTS + 1, MAX_PRESIZE);
+        if (threadSafe) {
+          synchronized (seg) {
+            seg.ensureCapacity(expected);
+          }
+        } else {
+          seg.ensureCapacity(expected);
+        }
+      }
+      boolean stats = statisticsEnabled;
+      for (int i=0; i<n; i++) {
+        A a = arrays[i];
+        if (a != null) {
+          long start = stats ? System.nanoTime() : 0;
+          arrays[i] = internInSegment(a, hashes[i], stats, start);
+        }
+      }
+    }
+
+    /** Return the hash code of a; all segments use the same hash function. */
+    private long hash(A a) {
+      return segments[0].hash(a);
+    }
+
+    /**
+     * Intern a, whose hash code is h, in its segment.
+     * @param a the array to canonicalize
+     * @param h the hash code of a
+     * @param stats whether to record statistics for the call
+     * @param start the time the call started, if stats is true
+     * @return the canonical array equal to a
+     */
+    private A internInSegment(A a, long h, boolean stats, long start) {
+      // A segment uses the low bits of the hash code, so use high bits here.
+      WeakArrayInternTable<A> seg = segments[(int) (h >>> 32) & (NUM_SEGMENTS - 1)];
+      if (threadSafe) {
+        synchronized (seg) {
+          return internInSegment(seg, a, h, stats, start);
+        }
+      }
+      return internInSegment(seg, a, h, stats, start);
+    }
+
+    /**
+     * Helper for {@link #internInSegment(Object,long,boolean,long)}; the
+     * caller holds the segment's lock, if necessary.
+     */
+    private A internInSegment(WeakArrayInternTable<A> seg, A a, long h,
+                              boolean stats, long start) {
+      if (!stats) {
+        return seg.intern(a, h);
+      }
+      long hitsBefore = seg.hitCount();
+      A result = seg.intern(a, h);
+      record(seg.hitCount() != hitsBefore, a, result, start);
+      return result;
+    }
+
+    int size() {
+      int result = 0;
+      for (WeakArrayInternTable<A> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.size();
+          }
+        } else {
+          result += seg.size();
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Return an iterator over a snapshot of the arrays in the table.
+     * @return an iterator over the arrays in the table
+     */
+    Iterator<A> keys() {
+      List<A> result = new ArrayList<A>();
+      for (WeakArrayInternTable<A> seg : segments) {
+        Iterator<A> itor;
+        if (threadSafe) {
+          synchronized (seg) {
+            itor = seg.iterator();
+          }
+        } else {
+          itor = seg.iterator();
+        }
+        while (itor.hasNext()) {
+          result.add(itor.next());
+        }
+      }
+      return result.iterator();
+    }
+
+    long lookups() {
+      long result = 0;
+      for (WeakArrayInternTable<A> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.lookupCount();
+          }
+        } else {
+          result += seg.lookupCount();
+        }
+      }
+      return result;
+    }
+
+    long probes() {
+      long result = 0;
+      for (WeakArrayInternTable<A> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.probeCount();
+          }
+        } else {
+          result += seg.probeCount();
+        }
+      }
+      return result;
+    }
+
+    long reclaimed() {
+      long result = 0;
+      for (WeakArrayInternTable<A> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.reclaimedCount();
+          }
+        } else {
+          result += seg.reclaimedCount();
+        }
+      }
+      return result;
+    }
+  }
+
+  private static ArrayInternTable<int /*@Interned*/ []> newIntArrayTable() {
+    WeakArrayInternTable.IntArrays[] segments = new WeakArrayInternTable.IntArrays[NUM_SEGMENTS];
+    for (int i=0; i<NUM_SEGMENTS; i++) {
+      segments[i] = new WeakArrayInternTable.IntArrays();
+    }
+    return new ArrayInternTable<int /*@Interned*/ []>("int[]", segments);
+  }
+
+  private static ArrayInternTable<long /*@Interned*/ []> newLongArrayTable() {
+    WeakArrayInternTable.LongArrays[] segments = new WeakArrayInternTable.LongArrays[NUM_SEGMENTS];
+    for (int i=0; i<NUM_SEGMENTS; i++) {
+      segments[i] = new WeakArrayInternTable.LongArrays();
+    }
+    return new ArrayInternTable<long /*@Interned*/ []>("long[]", segments);
+  }
+
+  private static ArrayInternTable<double /*@Interned*/ []> newDoubleArrayTable() {
+    WeakArrayInternTable.DoubleArrays[] segments = new WeakArrayInternTable.DoubleArrays[NUM_SEGMENTS];
+    for (int i=0; i<NUM_SEGMENTS; i++) {
+      segments[i] = new WeakArrayInternTable.DoubleArrays();
+    }
+    return new ArrayInternTable<double /*@Interned*/ []>("double[]", segments);
   }
 
   /**
-   * Hasher object which hashes and compares Object[] objects according
-   * to their contents.
-   * @see Hasher
-   * @see Arrays#equals(Object[], Object[])
+   * Batches of at least this many arrays are hashed in parallel by
+   * {@link ArrayInternTable#internAll}.
    */
-  private static final class ObjectArrayHasher implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      return Arrays.equals((/*@Nullable*/ Object[])a1, (/*@Nullable*/ Object[])a2);
+  private static final int PARALLEL_BATCH_SIZE = 1 << 13;
+
+  /**
+   * The most arrays for which {@link ArrayInternTable#internAll} grows
+   * each segment up front.  A batch may be mostly duplicates, and a
+   * segment never shrinks, so beyond this the segments grow as needed.
+   */
+  private static final int MAX_PRESIZE = 1 << 10;
+
+  /** Each HashTask hashes at most this many arrays itself. */
+  private static final int HASH_TASK_SIZE = 1 << 11;
+
+  /**
+   * Holder for the fork-join pool that hashes large batches.  The pool is
+   * created the first time a large batch is interned.
+   */
+  private static final class HashPool {
+    static final ForkJoinPool pool = new ForkJoinPool();
+  }
+
+  /** Sets hashes[i] to the hash code of arrays[i], for lo &le; i &lt; hi. */
+  private static final class HashTask<A> extends RecursiveAction {
+    static final long serialVersionUID = 20151101L;
+    private final WeakArrayInternTable<A> hasher;
+    private final A[] arrays;
+    private final long[] hashes;
+    private final int lo;
+    private final int hi;
+
+    HashTask(WeakArrayInternTable<A> hasher, A[] arrays, long[] hashes, int lo, int hi) {
+      this.hasher = hasher;
+      this.arrays = arrays;
+      this.hashes = hashes;
+      this.lo = lo;
+      this.hi = hi;
     }
-    @Override
-    public int hashCode(Object o) {
-      return Arrays.hashCode((Object[])o);
+
+    protected void compute() {
+      if (hi - lo <= HASH_TASK_SIZE) {
+        for (int i=lo; i<hi; i++) {
+          if (arrays[i] != null) {
+            hashes[i] = hasher.hash(arrays[i]);
+          }
+        }
+      } else {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new HashTask<A>(hasher, arrays, hashes, lo, mid),
+                  new HashTask<A>(hasher, arrays, hashes, mid, hi));
+      }
+    }
+  }
+
+  /**
+   * Return the canonical representative of a, adding a to the table if
+   * no equal object is already present.  This is atomic with respect to
+   * other calls on the same table when interning is thread-safe.
+   * @param table the table of canonical objects
+   * @param a the object to canonicalize
+   * @return the canonical representative of a
+   */
+  @SuppressWarnings({"interning", "purity"}) // interning implementation
+  private static <T> T internIn(InternTable<T,WeakReference<T>> table, T a) {
+    boolean stats = statisticsEnabled;
+    long start = stats ? System.nanoTime() : 0;
+    WeakHasherMap<T,WeakReference<T>> seg = table.segment(a);
+    if (threadSafe) {
+      synchronized (seg) {
+        return internInSegment(table, seg, a, stats, start);
+      }
+    }
+    return internInSegment(table, seg, a, stats, start);
+  }
+
+  /**
+   * Helper for {@link #internIn}; the caller holds the segment's lock,
+   * if necessary.  If stats is true, records the call, which started at
+   * time start, in table's statistics.
+   */
+  private static <T> T internInSegment(InternTable<T,WeakReference<T>> table,
+                                       WeakHasherMap<T,WeakReference<T>> seg,
+                                       T a, boolean stats, long start) {
+    WeakReference<T> lookup = seg.get(a);
+    if (lookup != null) {
+      T result = lookup.get();
+      // result is null if the referent was cleared after the lookup
+      if (result != null) {
+        if (stats) {
+          table.record(true, a, result, start);
+        }
+        return result;
+      }
+    }
+    seg.put(a, new WeakReference<T>(a));
+    if (stats) {
+      table.record(false, a, a, start);
+    }
+    return a;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Statistics
+  ///
+
+  /** If true, the intern methods record statistics; see {@link Statistics}. */
+  private static volatile boolean statisticsEnabled = false;
+
+  /** Every interning table, indexed by the type it interns. */
+  private static final Map<String,Table> tables = new LinkedHashMap<String,Table>();
+
+  /** The single Statistics object. */
+  private static final Statistics statistics = new Statistics();
+
+  /**
+   * Return an object that reports statistics about interning, such as
+   * how often each intern method finds an existing canonical object.
+   * @return the interning statistics
+   */
+  public static Statistics statistics() {
+    return statistics;
+  }
+
+  /**
+   * Return an estimate of the number of bytes that the object occupies,
+   * assuming a 64-bit JVM with compressed references.
+   */
+  /*@Pure*/ private static long estimatedSize(/*@Nullable*/ Object o) {
+    final int header = 16;
+    if (o == null) {
+      return 0;
+    } else if (o instanceof int[]) {
+      return header + 4L * ((int[]) o).length;
+    } else if (o instanceof long[]) {
+      return header + 8L * ((long[]) o).length;
+    } else if (o instanceof double[]) {
+      return header + 8L * ((double[]) o).length;
+    } else if (o instanceof Object[]) {
+      return header + 4L * ((Object[]) o).length;
+    } else if (o instanceof Integer) {
+      return 16;
+    } else {
+      // Long or Double
+      return 24;
+    }
+  }
+
+  /**
+   * The management interface of {@link Statistics}, for monitoring
+   * interning via JMX.
+   * @see Statistics#registerMBean()
+   */
+  public static interface StatisticsMXBean {
+    /**
+     * Return true if statistics are being recorded.
+     * @return true if statistics are being recorded
+     */
+    boolean isEnabled();
+    /**
+     * Start or stop recording statistics.
+     * @param enabled whether to record statistics
+     */
+    void setEnabled(boolean enabled);
+    /** Reset the hit, miss, bytes-saved, and time counters to zero. */
+    void reset();
+    /**
+     * Return the types for which statistics are available.
+     * @return the types for which statistics are available
+     */
+    String[] getTypes();
+    /**
+     * Return the number of calls that returned an existing canonical object.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the number of hits
+     */
+    long getHits(String type);
+    /**
+     * Return the number of calls that did not find an existing canonical object.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the number of misses
+     */
+    long getMisses(String type);
+    /**
+     * Return the estimated number of bytes in objects that hits made
+     * redundant.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the estimated number of bytes saved
+     */
+    long getBytesSaved(String type);
+    /**
+     * Return the total time spent in intern or internSubsequence, in nanoseconds.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the total time spent interning
+     */
+    long getNanos(String type);
+    /**
+     * Return the average number of hash table slots examined per lookup,
+     * or NaN if the table does not record it.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the average probe length
+     */
+    double getAverageProbeLength(String type);
+    /**
+     * Return the number of entries removed because their keys were
+     * garbage-collected.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the number of reclaimed entries
+     */
+    long getReclaimed(String type);
+    /**
+     * Return the number of entries in the table.
+     * @param type one of the results of {@link #getTypes()}
+     * @return the number of entries in the table
+     */
+    int getSize(String type);
+    /**
+     * Return a human-readable table of all the statistics.
+     * @return a human-readable table of all the statistics
+     */
+    String getReport();
+  }
+
+  /**
+   * Statistics about interning, for deciding whether interning a given
+   * type pays for itself.  The hit, miss, bytes-saved, and time counters
+   * are updated only while statistics are enabled, which they are not by
+   * default; when disabled, the only overhead is a test of a flag.  The
+   * size, probe-length, and reclamation figures are always available.
+   * <p>
+   * Obtain the single instance via {@link Intern#statistics()}.
+   */
+  public static final class Statistics implements StatisticsMXBean {
+
+    private Statistics() { }
+
+    private static Table table(String type) {
+      Table result = tables.get(type);
+      if (result == null) {
+        throw new IllegalArgumentException("No interning statistics for type " + type);
+      }
+      return result;
+    }
+
+    public boolean isEnabled() {
+      return statisticsEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      statisticsEnabled = enabled;
+    }
+
+    public void reset() {
+      for (Table t : tables.values()) {
+        t.hits.set(0);
+        t.misses.set(0);
+        t.bytesSaved.set(0);
+        t.nanos.set(0);
+      }
+    }
+
+    public String[] getTypes() {
+      return tables.keySet().toArray(new String[tables.size()]);
+    }
+
+    public long getHits(String type) {
+      return table(type).hits.get();
+    }
+
+    public long getMisses(String type) {
+      return table(type).misses.get();
+    }
+
+    public long getBytesSaved(String type) {
+      return table(type).bytesSaved.get();
+    }
+
+    public long getNanos(String type) {
+      return table(type).nanos.get();
+    }
+
+    public double getAverageProbeLength(String type) {
+      Table t = table(type);
+      long lookups = t.lookups();
+      if (lookups <= 0) {
+        return Double.NaN;
+      }
+      return ((double) t.probes()) / lookups;
+    }
+
+    public long getReclaimed(String type) {
+      return table(type).reclaimed();
+    }
+
+    public int getSize(String type) {
+      return table(type).size();
+    }
+
+    public String getReport() {
+      StringBuilder sb = new StringBuilder();
+      String lineSep = System.getProperty("line.separator");
+      sb.append(String.format("%-20s %10s %10s %10s %12s %12s %8s %10s%s",
+                              "type", "size", "hits", "misses", "bytes saved",
+                              "msec", "probes", "reclaimed", lineSep));
+      for (Table t : tables.values()) {
+        sb.append(String.format("%-20s %10d %10d %10d %12d %12.3f %8.2f %10d%s",
+                                t.type, t.size(), t.hits.get(), t.misses.get(),
+                                t.bytesSaved.get(), t.nanos.get() / 1000000.0,
+                                getAverageProbeLength(t.type), t.reclaimed(), lineSep));
+      }
+      return sb.toString();
+    }
+
+    /*@SideEffectFree*/ public String toString() {
+      return getReport();
+    }
+
+    /**
+     * Register this object with the platform MBean server, under the name
+     * "plume:type=Intern".
+     */
+    public void registerMBean() {
+      try {
+        ObjectName name = new ObjectName("plume:type=Intern");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+          server.registerMBean(this, name);
+        }
+      } catch (JMException e) {
+        throw new Error("Cannot register interning statistics MBean", e);
+      }
     }
   }
 
@@ -266,39 +955,40 @@ public final class Intern {
   //   value = a WeakReference for the object itself.
   // They can be looked up using a non-interned value; equality tests know
   // nothing of the interning types.
+  // The primitive array tables hold only the weak reference.
 
-  private static WeakHasherMap</*@Interned*/ Integer,WeakReference</*@Interned*/ Integer>> internedIntegers;
-  private static WeakHasherMap</*@Interned*/ Long,WeakReference</*@Interned*/ Long>> internedLongs;
-  private static WeakHasherMap<int /*@Interned*/ [],WeakReference<int /*@Interned*/ []>> internedIntArrays;
-  private static WeakHasherMap<long /*@Interned*/ [],WeakReference<long /*@Interned*/ []>> internedLongArrays;
-  private static WeakHasherMap</*@Interned*/ Double,WeakReference</*@Interned*/ Double>> internedDoubles;
+  private static InternTable</*@Interned*/ Integer,WeakReference</*@Interned*/ Integer>> internedIntegers;
+  private static InternTable</*@Interned*/ Long,WeakReference</*@Interned*/ Long>> internedLongs;
+  private static ArrayInternTable<int /*@Interned*/ []> internedIntArrays;
+  private static ArrayInternTable<long /*@Interned*/ []> internedLongArrays;
+  private static InternTable</*@Interned*/ Double,WeakReference</*@Interned*/ Double>> internedDoubles;
   private static /*@Interned*/ Double internedDoubleNaN;
   private static /*@Interned*/ Double internedDoubleZero;
-  private static WeakHasherMap<double /*@Interned*/ [],WeakReference<double /*@Interned*/ []>> internedDoubleArrays;
-  private static WeakHasherMap</*@Nullable*/ /*@Interned*/ String /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>> internedStringArrays;
-  private static WeakHasherMap</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>> internedObjectArrays;
-  private static WeakHasherMap<SequenceAndIndices<int /*@Interned*/ []>,WeakReference<int /*@Interned*/ []>> internedIntSequenceAndIndices;
-  private static WeakHasherMap<SequenceAndIndices<long /*@Interned*/ []>,WeakReference<long /*@Interned*/ []>> internedLongSequenceAndIndices;
-  private static WeakHasherMap<SequenceAndIndices<double /*@Interned*/ []>,WeakReference<double /*@Interned*/ []>> internedDoubleSequenceAndIndices;
-  private static WeakHasherMap<SequenceAndIndices</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>,WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>> internedObjectSequenceAndIndices;
-  private static WeakHasherMap<SequenceAndIndices</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>,WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>> internedStringSequenceAndIndices;
+  private static ArrayInternTable<double /*@Interned*/ []> internedDoubleArrays;
+  private static InternTable</*@Nullable*/ /*@Interned*/ String /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>> internedStringArrays;
+  private static InternTable</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>> internedObjectArrays;
+  private static SubsequenceTable<int /*@Interned*/ []> internedIntSubsequences;
+  private static SubsequenceTable<long /*@Interned*/ []> internedLongSubsequences;
+  private static SubsequenceTable<double /*@Interned*/ []> internedDoubleSubsequences;
+  private static SubsequenceTable</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []> internedObjectSubsequences;
+  private static SubsequenceTable</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []> internedStringSubsequences;
 
   static {
-    internedIntegers = new WeakHasherMap</*@Interned*/ Integer,WeakReference</*@Interned*/ Integer>>(new IntegerHasher());
-    internedLongs = new WeakHasherMap</*@Interned*/ Long,WeakReference</*@Interned*/ Long>>(new LongHasher());
-    internedIntArrays = new WeakHasherMap<int /*@Interned*/ [],WeakReference<int /*@Interned*/ []>>(new IntArrayHasher());
-    internedLongArrays = new WeakHasherMap<long /*@Interned*/ [],WeakReference<long /*@Interned*/ []>>(new LongArrayHasher());
-    internedDoubles = new WeakHasherMap</*@Interned*/ Double,WeakReference</*@Interned*/ Double>>(new DoubleHasher());
+    internedIntegers = new InternTable</*@Interned*/ Integer,WeakReference</*@Interned*/ Integer>>("Integer", new IntegerHasher());
+    internedLongs = new InternTable</*@Interned*/ Long,WeakReference</*@Interned*/ Long>>("Long", new LongHasher());
+    internedIntArrays = newIntArrayTable();
+    internedLongArrays = newLongArrayTable();
+    internedDoubles = new InternTable</*@Interned*/ Double,WeakReference</*@Interned*/ Double>>("Double", new DoubleHasher());
     internedDoubleNaN = new /*@Interned*/ Double(Double.NaN);
     internedDoubleZero = new /*@Interned*/ Double(0);
-    internedDoubleArrays = new WeakHasherMap<double /*@Interned*/ [],WeakReference<double /*@Interned*/ []>>(new DoubleArrayHasher());
-    internedStringArrays = new WeakHasherMap</*@Nullable*/ /*@Interned*/ String /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>>(new StringArrayHasher());
-    internedObjectArrays = new WeakHasherMap</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>>(new ObjectArrayHasher());
-    internedIntSequenceAndIndices = new WeakHasherMap<SequenceAndIndices<int /*@Interned*/ []>,WeakReference<int /*@Interned*/ []>>(new SequenceAndIndicesHasher<int /*@Interned*/ []>());
-    internedLongSequenceAndIndices = new WeakHasherMap<SequenceAndIndices<long /*@Interned*/ []>,WeakReference<long /*@Interned*/ []>>(new SequenceAndIndicesHasher<long /*@Interned*/ []>());
-    internedDoubleSequenceAndIndices = new WeakHasherMap<SequenceAndIndices<double /*@Interned*/ []>,WeakReference<double /*@Interned*/ []>>(new SequenceAndIndicesHasher<double /*@Interned*/ []>());
-    internedObjectSequenceAndIndices = new WeakHasherMap<SequenceAndIndices</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>,WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>>(new SequenceAndIndicesHasher</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>());
-    internedStringSequenceAndIndices = new WeakHasherMap<SequenceAndIndices</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>,WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>>(new SequenceAndIndicesHasher</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>());
+    internedDoubleArrays = newDoubleArrayTable();
+    internedStringArrays = new InternTable</*@Nullable*/ /*@Interned*/ String /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>>("String[]", new StringArrayHasher());
+    internedObjectArrays = new InternTable</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ [],WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>>("Object[]", new ObjectArrayHasher());
+    internedIntSubsequences = new SubsequenceTable<int /*@Interned*/ []>("int[] subsequence");
+    internedLongSubsequences = new SubsequenceTable<long /*@Interned*/ []>("long[] subsequence");
+    internedDoubleSubsequences = new SubsequenceTable<double /*@Interned*/ []>("double[] subsequence");
+    internedObjectSubsequences = new SubsequenceTable</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>("Object[] subsequence");
+    internedStringSubsequences = new SubsequenceTable</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>("String[] subsequence");
   }
 
   // For testing only
@@ -327,28 +1017,28 @@ public final class Intern {
     return internedObjectArrays.size();
   }
   public static Iterator</*@Interned*/ Integer> integers() {
-    return internedIntegers.keySet().iterator();
+    return internedIntegers.keys();
   }
   public static Iterator</*@Interned*/ Long> longs() {
-    return internedLongs.keySet().iterator();
+    return internedLongs.keys();
   }
   public static Iterator<int /*@Interned*/ []> intArrays() {
-    return internedIntArrays.keySet().iterator();
+    return internedIntArrays.keys();
   }
   public static Iterator<long /*@Interned*/ []> longArrays() {
-    return internedLongArrays.keySet().iterator();
+    return internedLongArrays.keys();
   }
   public static Iterator</*@Interned*/ Double> doubles() {
-    return internedDoubles.keySet().iterator();
+    return internedDoubles.keys();
   }
   public static Iterator<double /*@Interned*/ []> doubleArrays() {
-    return internedDoubleArrays.keySet().iterator();
+    return internedDoubleArrays.keys();
   }
   public static Iterator</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []> stringArrays() {
-    return internedStringArrays.keySet().iterator();
+    return internedStringArrays.keys();
   }
   public static Iterator</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []> objectArrays() {
-    return internedObjectArrays.keySet().iterator();
+    return internedObjectArrays.keys();
   }
 
   /**
@@ -394,15 +1084,9 @@ public final class Intern {
   // the same).  This does not currently take advantage of that.
   @SuppressWarnings({"interning", "purity"}) // interning implementation
   /*@Pure*/ public static /*@Interned*/ Integer intern(Integer a) {
-    WeakReference</*@Interned*/ Integer> lookup = internedIntegers.get(a);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
-      @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
-      /*@Interned*/ Integer result = (/*@Interned*/ Integer) a;
-      internedIntegers.put(result, new WeakReference</*@Interned*/ Integer>(result));
-      return result;
-    }
+    @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
+    /*@Interned*/ Integer result = internIn(internedIntegers, (/*@Interned*/ Integer) a);
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -435,15 +1119,9 @@ public final class Intern {
   // the same).  This could take advantage of that.
   @SuppressWarnings({"interning", "purity"})
   /*@Pure*/ public static /*@Interned*/ Long intern(Long a) {
-    WeakReference</*@Interned*/ Long> lookup =  internedLongs.get(a);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
-      @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
-      /*@Interned*/ Long result = (/*@Interned*/ Long) a;
-      internedLongs.put(result, new WeakReference</*@Interned*/ Long>(result));
-      return result;
-    }
+    @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
+    /*@Interned*/ Long result = internIn(internedLongs, (/*@Interned*/ Long) a);
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -483,15 +1161,9 @@ public final class Intern {
     // stack.fillInStackTrace();
     // stack.printStackTrace();
 
-    WeakReference<int /*@Interned*/ []> lookup = internedIntArrays.get(a);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
-      @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
-      /*@Interned*/ int[] result = (int /*@Interned*/ []) a;
-      internedIntArrays.put(result, new WeakReference<int /*@Interned*/ []>(result));
-      return result;
-    }
+    @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
+    /*@Interned*/ int[] result = internedIntArrays.intern((int /*@Interned*/ []) a);
+    return result;
   }
 
   /**
@@ -505,15 +1177,9 @@ public final class Intern {
   /*@Pure*/ public static long /*@Interned*/ [] intern(long[] a) {
     //System.out.printf ("intern %s %s long[] %s%n", a.getClass(),
     //                   a, Arrays.toString (a));
-    WeakReference<long /*@Interned*/ []> lookup = internedLongArrays.get(a);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
-      @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
-      /*@Interned*/ long[] result = (long /*@Interned*/ []) a;
-      internedLongArrays.put(result, new WeakReference<long /*@Interned*/ []>(result));
-      return result;
-    }
+    @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
+    /*@Interned*/ long[] result = internedLongArrays.intern((long /*@Interned*/ []) a);
+    return result;
   }
 
   /**
@@ -535,15 +1201,9 @@ public final class Intern {
     if (a.doubleValue() == 0) {   // catches both positive and negative zero
       return internedDoubleZero;
     }
-    WeakReference</*@Interned*/ Double> lookup = internedDoubles.get(a);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
-      @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
-      /*@Interned*/ Double result = (/*@Interned*/ Double) a;
-      internedDoubles.put(result, new WeakReference</*@Interned*/ Double>(result));
-      return result;
-    }
+    @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
+    /*@Interned*/ Double result = internIn(internedDoubles, (/*@Interned*/ Double) a);
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -579,15 +1239,9 @@ public final class Intern {
    */
   @SuppressWarnings({"interning", "purity"})
   /*@Pure*/ public static double /*@Interned*/ [] intern(double[] a) {
-    WeakReference<double /*@Interned*/ []> lookup = internedDoubleArrays.get(a);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
-      @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
-      /*@Interned*/ double[] result = (double /*@Interned*/ []) a;
-      internedDoubleArrays.put(result, new WeakReference<double /*@Interned*/ []>(result));
-      return result;
-    }
+    @SuppressWarnings("cast") // cast is redundant (except in JSR 308)
+    /*@Interned*/ double[] result = internedDoubleArrays.intern((double /*@Interned*/ []) a);
+    return result;
   }
 
   /**
@@ -609,14 +1263,8 @@ public final class Intern {
       assert a[k] == Intern.intern(a[k]);
     }
 
-    WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []> lookup = internedStringArrays.get(a);
-    /*@Nullable*/ /*@Interned*/ String /*@Interned*/ [] result;
-    if (lookup != null) {
-      result = lookup.get();
-    } else {
-      result = (/*@Nullable*/ /*@Interned*/ String /*@Interned*/ []) a;
-      internedStringArrays.put(result, new WeakReference</*@Nullable*/ /*@Interned*/ String /*@Interned*/ []>(result));
-    }
+    /*@Nullable*/ /*@Interned*/ String /*@Interned*/ [] result
+      = internIn(internedStringArrays, (/*@Nullable*/ /*@Interned*/ String /*@Interned*/ []) a);
     @SuppressWarnings("nullness") // Polynull because value = parameter a, so same type & nullness as for parameter a
     /*@PolyNull*/ /*@Interned*/ String /*@Interned*/ [] polyresult = result;
     return polyresult;
@@ -635,15 +1283,8 @@ public final class Intern {
       "purity",
       "cast"}) // cast is redundant (except in JSR 308)
   /*@Pure*/ public static /*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ [] intern(/*@PolyNull*/ /*@Interned*/ Object[] a) {
-    @SuppressWarnings("nullness") // Polynull because value = parameter a, so same type & nullness as for parameter a
-    WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []> lookup = internedObjectArrays.get(a);
-    /*@Nullable*/ /*@Interned*/ Object /*@Interned*/ [] result;
-    if (lookup != null) {
-      result = lookup.get();
-    } else {
-      result = (/*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []) a;
-      internedObjectArrays.put(result, new WeakReference</*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []>(result));
-    }
+    /*@Nullable*/ /*@Interned*/ Object /*@Interned*/ [] result
+      = internIn(internedObjectArrays, (/*@Nullable*/ /*@Interned*/ Object /*@Interned*/ []) a);
     @SuppressWarnings("nullness") // Polynull because value = parameter a, so same type & nullness as for parameter a
     /*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ [] polyresult = result;
     return polyresult;
@@ -691,6 +1332,87 @@ public final class Intern {
     }
   }
 
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Batch interning
+  ///
+
+  // These methods are faster than interning the elements one at a time:
+  // the tables are grown once, up front, and the hash codes of a large
+  // batch are computed in parallel.
+
+  /**
+   * Replace each element of the array by its interned version.
+   * Side-effects the array, but also returns it.
+   * Null elements are left unchanged.
+   * @param a the array whose elements to intern in place
+   * @return a, whose elements are now interned
+   * @see #intern(int[])
+   */
+  @SuppressWarnings({"interning", // side-effects the array in place
+      "cast"}) // cast is redundant (except in JSR 308)
+  public static int /*@Interned*/ [][] internElements(int[][] a) {
+    internedIntArrays.internAll((int /*@Interned*/ [][]) a);
+    return (int /*@Interned*/ [][]) a;
+  }
+
+  /**
+   * Replace each element of the array by its interned version.
+   * Side-effects the array, but also returns it.
+   * Null elements are left unchanged.
+   * @param a the array whose elements to intern in place
+   * @return a, whose elements are now interned
+   * @see #intern(long[])
+   */
+  @SuppressWarnings({"interning", // side-effects the array in place
+      "cast"}) // cast is redundant (except in JSR 308)
+  public static long /*@Interned*/ [][] internElements(long[][] a) {
+    internedLongArrays.internAll((long /*@Interned*/ [][]) a);
+    return (long /*@Interned*/ [][]) a;
+  }
+
+  /**
+   * Replace each element of the array by its interned version.
+   * Side-effects the array, but also returns it.
+   * Null elements are left unchanged.
+   * @param a the array whose elements to intern in place
+   * @return a, whose elements are now interned
+   * @see #intern(double[])
+   */
+  @SuppressWarnings({"interning", // side-effects the array in place
+      "cast"}) // cast is redundant (except in JSR 308)
+  public static double /*@Interned*/ [][] internElements(double[][] a) {
+    internedDoubleArrays.internAll((double /*@Interned*/ [][]) a);
+    return (double /*@Interned*/ [][]) a;
+  }
+
+  /**
+   * Replace each element of the array by its interned version, as
+   * computed by {@link #intern(Object)}.
+   * Side-effects the array, but also returns it.
+   * Null elements are left unchanged.
+   * If a is an int[][], long[][], or double[][], this is the same as the
+   * corresponding overloading of internElements.
+   * @param a the array whose elements to intern in place
+   * @return a, whose elements are now interned
+   */
+  @SuppressWarnings("interning") // side-effects the array in place
+  public static /*@Interned*/ Object[] internElements(/*@Nullable*/ Object[] a) {
+    if (a instanceof int[][]) {
+      return internElements((int[][]) a);
+    } else if (a instanceof long[][]) {
+      return internElements((long[][]) a);
+    } else if (a instanceof double[][]) {
+      return internElements((double[][]) a);
+    } else if (a instanceof String[]) {
+      return internStrings((String[]) a);
+    }
+    for (int i=0; i<a.length; i++) {
+      a[i] = intern(a[i]);
+    }
+    return a;
+  }
+
   /**
    * Return the subsequence of seq from start (inclusive) to end
    * (exclusive) that is interned.  What's different about this method
@@ -702,6 +1424,9 @@ public final class Intern {
    * when there may be many derived variables that are non-canonical,
    * since they are guaranteed to be ==.
    * <p>
+   * If the subsequence has been requested before, this method allocates
+   * nothing.
+   * <p>
    * Requires that seq is already interned.
    * @param seq the sequence whose subsequence should be interned
    * @param start the index of the start of the subsequence to be interned
@@ -710,16 +1435,19 @@ public final class Intern {
    */
   public static int /*@Interned*/ [] internSubsequence(int /*@Interned*/ [] seq, int start, int end) {
     assert Intern.isInterned(seq);
-    SequenceAndIndices<int /*@Interned*/ []> sai = new SequenceAndIndices<int /*@Interned*/ []>(seq, start, end);
-    WeakReference<int /*@Interned*/ []> lookup = internedIntSequenceAndIndices.get(sai);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
+    boolean stats = statisticsEnabled;
+    long startNanos = stats ? System.nanoTime() : 0;
+    int /*@Interned*/ [] subseq = internedIntSubsequences.get(seq, start, end);
+    boolean hit = (subseq != null);
+    if (!hit) {
       int[] subseqUninterned = ArraysMDE.subarray(seq, start, end - start);
-      int /*@Interned*/ [] subseq = Intern.intern(subseqUninterned);
-      internedIntSequenceAndIndices.put(sai, new WeakReference<int /*@Interned*/ []>(subseq));
-      return subseq;
+      subseq = Intern.intern(subseqUninterned);
+      internedIntSubsequences.put(seq, start, end, subseq);
+    }
+    if (stats) {
+      internedIntSubsequences.recordSubsequence(hit, subseq, startNanos);
     }
+    return subseq;
   }
 
   /**
@@ -731,16 +1459,19 @@ public final class Intern {
    */
   public static long /*@Interned*/ [] internSubsequence(long /*@Interned*/ [] seq, int start, int end) {
     assert Intern.isInterned(seq);
-    SequenceAndIndices<long /*@Interned*/ []> sai = new SequenceAndIndices<long /*@Interned*/ []>(seq, start, end);
-    WeakReference<long /*@Interned*/ []> lookup = internedLongSequenceAndIndices.get(sai);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
+    boolean stats = statisticsEnabled;
+    long startNanos = stats ? System.nanoTime() : 0;
+    long /*@Interned*/ [] subseq = internedLongSubsequences.get(seq, start, end);
+    boolean hit = (subseq != null);
+    if (!hit) {
       long[] subseq_uninterned = ArraysMDE.subarray(seq, start, end - start);
-      long /*@Interned*/ [] subseq = Intern.intern(subseq_uninterned);
-      internedLongSequenceAndIndices.put(sai, new WeakReference<long /*@Interned*/ []>(subseq));
-      return subseq;
+      subseq = Intern.intern(subseq_uninterned);
+      internedLongSubsequences.put(seq, start, end, subseq);
     }
+    if (stats) {
+      internedLongSubsequences.recordSubsequence(hit, subseq, startNanos);
+    }
+    return subseq;
   }
 
   /**
@@ -752,16 +1483,19 @@ public final class Intern {
    */
   public static double /*@Interned*/ [] internSubsequence(double /*@Interned*/ [] seq, int start, int end) {
     assert Intern.isInterned(seq);
-    SequenceAndIndices<double /*@Interned*/ []> sai = new SequenceAndIndices<double /*@Interned*/ []>(seq, start, end);
-    WeakReference<double /*@Interned*/ []> lookup = internedDoubleSequenceAndIndices.get(sai);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
+    boolean stats = statisticsEnabled;
+    long startNanos = stats ? System.nanoTime() : 0;
+    double /*@Interned*/ [] subseq = internedDoubleSubsequences.get(seq, start, end);
+    boolean hit = (subseq != null);
+    if (!hit) {
       double[] subseq_uninterned = ArraysMDE.subarray(seq, start, end - start);
-      double /*@Interned*/ [] subseq = Intern.intern(subseq_uninterned);
-      internedDoubleSequenceAndIndices.put(sai, new WeakReference<double /*@Interned*/ []>(subseq));
-      return subseq;
+      subseq = Intern.intern(subseq_uninterned);
+      internedDoubleSubsequences.put(seq, start, end, subseq);
+    }
+    if (stats) {
+      internedDoubleSubsequences.recordSubsequence(hit, subseq, startNanos);
     }
+    return subseq;
   }
 
   /**
@@ -773,19 +1507,20 @@ public final class Intern {
    */
   public static /*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ [] internSubsequence(/*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ [] seq, int start, int end) {
     assert Intern.isInterned(seq);
-    SequenceAndIndices</*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ []> sai = new SequenceAndIndices</*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ []>(seq, start, end);
+    boolean stats = statisticsEnabled;
+    long startNanos = stats ? System.nanoTime() : 0;
     @SuppressWarnings("nullness")                   // same nullness as key
-    WeakReference</*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ []> lookup = internedObjectSequenceAndIndices.get(sai);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
+    /*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ [] subseq = internedObjectSubsequences.get(seq, start, end);
+    boolean hit = (subseq != null);
+    if (!hit) {
       /*@PolyNull*/ /*@Interned*/ Object[] subseq_uninterned = ArraysMDE.subarray(seq, start, end - start);
-      /*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ [] subseq = Intern.intern(subseq_uninterned);
-      @SuppressWarnings("nullness") // safe because map does no side effects
-      Object ignore = // assignment just so there is a place to hang the @SuppressWarnings annotation
-      internedObjectSequenceAndIndices.put(sai, new WeakReference</*@PolyNull*/ /*@Interned*/ Object /*@Interned*/ []>(subseq));
-      return subseq;
+      subseq = Intern.intern(subseq_uninterned);
+      internedObjectSubsequences.put(seq, start, end, subseq);
     }
+    if (stats) {
+      internedObjectSubsequences.recordSubsequence(hit, subseq, startNanos);
+    }
+    return subseq;
   }
 
   /**
@@ -797,87 +1532,287 @@ public final class Intern {
    */
   public static /*@PolyNull*/ /*@Interned*/ String /*@Interned*/ [] internSubsequence(/*@PolyNull*/ /*@Interned*/ String /*@Interned*/ [] seq, int start, int end) {
     assert Intern.isInterned(seq);
-    SequenceAndIndices</*@PolyNull*/ /*@Interned*/ String /*@Interned*/ []> sai = new SequenceAndIndices</*@PolyNull*/ /*@Interned*/ String /*@Interned*/ []>(seq, start, end);
+    boolean stats = statisticsEnabled;
+    long startNanos = stats ? System.nanoTime() : 0;
     @SuppressWarnings("nullness")                   // same nullness as key
-    WeakReference</*@PolyNull*/ /*@Interned*/ String /*@Interned*/ []> lookup = internedStringSequenceAndIndices.get(sai);
-    if (lookup != null) {
-      return lookup.get();
-    } else {
+    /*@PolyNull*/ /*@Interned*/ String /*@Interned*/ [] subseq = internedStringSubsequences.get(seq, start, end);
+    boolean hit = (subseq != null);
+    if (!hit) {
       /*@PolyNull*/ /*@Interned*/ String[] subseq_uninterned = ArraysMDE.subarray(seq, start, end - start);
-      /*@PolyNull*/ /*@Interned*/ String /*@Interned*/ [] subseq = Intern.intern(subseq_uninterned);
-      @SuppressWarnings("nullness") // safe because map does no side effects
-      Object ignore = // assignment just so there is a place to hang the @SuppressWarnings annotation
-      internedStringSequenceAndIndices.put(sai, new WeakReference</*@PolyNull*/ /*@Interned*/ String /*@Interned*/ []>(subseq));
-      return subseq;
+      subseq = Intern.intern(subseq_uninterned);
+      internedStringSubsequences.put(seq, start, end, subseq);
     }
+    if (stats) {
+      internedStringSubsequences.recordSubsequence(hit, subseq, startNanos);
+    }
+    return subseq;
   }
 
   /**
-   * Data structure for storing triples of a sequence and start and
-   * end indices, to represent a subsequence.  Requires that the
-   * sequence be interned.  Used for interning the repeated finding
-   * of subsequences on the same sequence.
+   * A table that maps a subsequence, represented by an interned sequence
+   * and start and end indices, to the interned subsequence.  Used for
+   * interning the repeated finding of subsequences on the same sequence.
+   * <p>
+   * Sequences are compared by identity, and the key is never
+   * materialized as an object, so a lookup allocates nothing.  Both the
+   * sequence and the subsequence are held weakly.  Like InternTable, the
+   * table is divided into NUM_SEGMENTS segments, each its own lock.
    */
-  private static final class SequenceAndIndices<T extends /*@Interned*/ Object> {
-    public T seq;
-    public int start;
-    public int end;
+  private static final class SubsequenceTable<T extends /*@Interned*/ Object> extends Table {
+    private final SubsequenceSegment<T>[] segments;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    SubsequenceTable(String type) {
+      super(type);
+      segments = (SubsequenceSegment<T>[]) new SubsequenceSegment[NUM_SEGMENTS];
+      for (int i=0; i<NUM_SEGMENTS; i++) {
+        segments[i] = new SubsequenceSegment<T>();
+      }
+    }
+
+    /*@Pure*/ private static int hash(Object seq, int start, int end) {
+      int h = System.identityHashCode(seq);
+      h = h * 31 + start;
+      h = h * 31 + end;
+      return h;
+    }
+
+    private SubsequenceSegment<T> segment(int hash) {
+      return segments[(hash ^ (hash >>> 16)) & (NUM_SEGMENTS - 1)];
+    }
 
     /**
-     * @param seq An interned array
+     * Return the interned subsequence of seq from start to end, or null
+     * if it is not in the table.
      */
-    public SequenceAndIndices(T seq, int start, int end) {
-      this.seq = seq;
-      this.start = start;
-      this.end = end;
-      assert isInterned(seq);
+    /*@Nullable*/ T get(T seq, int start, int end) {
+      int h = hash(seq, start, end);
+      SubsequenceSegment<T> seg = segment(h);
+      if (threadSafe) {
+        synchronized (seg) {
+          return seg.get(seq, start, end, h);
+        }
+      }
+      return seg.get(seq, start, end, h);
     }
 
-    @SuppressWarnings("unchecked")
-    /*@Pure*/ public boolean equals(/*@Nullable*/ Object other) {
-      if (other instanceof SequenceAndIndices<?>) {
-        @SuppressWarnings("unchecked")
-        SequenceAndIndices<T> other_sai = (SequenceAndIndices<T>) other;
-        return equals(other_sai);
+    /** Record that subseq is the interned subsequence of seq from start to end. */
+    void put(T seq, int start, int end, T subseq) {
+      int h = hash(seq, start, end);
+      SubsequenceSegment<T> seg = segment(h);
+      if (threadSafe) {
+        synchronized (seg) {
+          seg.put(seq, start, end, h, subseq);
+        }
       } else {
-        return false;
+        seg.put(seq, start, end, h, subseq);
+      }
+    }
+
+    int size() {
+      int result = 0;
+      for (SubsequenceSegment<T> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.size();
+          }
+        } else {
+          result += seg.size();
+        }
       }
+      return result;
     }
 
-    /*@Pure*/ public boolean equals(SequenceAndIndices<T> other) {
-      return ((this.seq == other.seq)
-              && this.start == other.start
-              && this.end == other.end);
+    long lookups() {
+      long result = 0;
+      for (SubsequenceSegment<T> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.lookups;
+          }
+        } else {
+          result += seg.lookups;
+        }
+      }
+      return result;
     }
 
-    /*@Pure*/ public int hashCode() {
-      return seq.hashCode() + start * 30 - end * 2;
+    long probes() {
+      long result = 0;
+      for (SubsequenceSegment<T> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.probes;
+          }
+        } else {
+          result += seg.probes;
+        }
+      }
+      return result;
     }
 
-    // For debugging
-    /*@SideEffectFree*/ public String toString() {
-      return "SAI(" + start + "," + end + ") from: " + ArraysMDE.toString(seq);
+    long reclaimed() {
+      long result = 0;
+      for (SubsequenceSegment<T> seg : segments) {
+        if (threadSafe) {
+          synchronized (seg) {
+            result += seg.reclaimed;
+          }
+        } else {
+          result += seg.reclaimed;
+        }
+      }
+      return result;
     }
+  }
 
+  /**
+   * An entry in a SubsequenceSegment:  a weak reference to the sequence,
+   * the start and end indices, and a weak reference to the subsequence.
+   */
+  private static final class SubsequenceEntry<T> extends WeakReference<T> {
+    final int start;
+    final int end;
+    final int hash;
+    WeakReference<T> subseq;
+
+    SubsequenceEntry(T seq, int start, int end, int hash, T subseq, ReferenceQueue<? super T> queue) {
+      super(seq, queue);
+      this.start = start;
+      this.end = end;
+      this.hash = hash;
+      this.subseq = new WeakReference<T>(subseq);
+    }
   }
 
   /**
-   * Hasher object which hashes and compares String[] objects according
-   * to their contents.
-   * @see Hasher
+   * One segment of a SubsequenceTable:  an open-addressing hash table
+   * with linear probing.  An entry is removed when its sequence is
+   * garbage-collected; an entry whose subsequence has been
+   * garbage-collected is reused when the subsequence is next interned.
    */
-  private static final class SequenceAndIndicesHasher<T extends /*@Interned*/ Object> implements Hasher {
-    public boolean equals(Object a1, Object a2) {
-      @SuppressWarnings("unchecked")
-      SequenceAndIndices<T> sai1 = (SequenceAndIndices<T>) a1;
-      @SuppressWarnings("unchecked")
-      SequenceAndIndices<T> sai2 = (SequenceAndIndices<T>) a2;
-      // The SAI objects are *not* interned, but the arrays inside them are.
-      return sai1.equals(sai2);
+  private static final class SubsequenceSegment<T> {
+    /** The hash table.  Its length is always a power of two. */
+    private /*@Nullable*/ SubsequenceEntry<T>[] table = newTable(16);
+    /** The number of entries in the table, including stale ones. */
+    private int size = 0;
+    /** Entries whose sequences have been garbage-collected. */
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+    /** The number of calls to find. */
+    long lookups = 0;
+    /** The number of slots examined by all calls to find. */
+    long probes = 0;
+    /** The number of entries removed because their sequence was collected. */
+    long reclaimed = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    private static <T> /*@Nullable*/ SubsequenceEntry<T>[] newTable(int capacity) {
+      return (/*@Nullable*/ SubsequenceEntry<T>[]) new SubsequenceEntry[capacity];
     }
 
-    public int hashCode(Object o) {
-      return o.hashCode();
+    /*@Pure*/ private static int index(int hash, int mask) {
+      int h = hash * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** Return the entry for the given key, or null if there is none. */
+    private /*@Nullable*/ SubsequenceEntry<T> find(T seq, int start, int end, int hash) {
+      lookups++;
+      int mask = table.length - 1;
+      for (int i = index(hash, mask); ; i = (i + 1) & mask) {
+        probes++;
+        SubsequenceEntry<T> e = table[i];
+        if (e == null) {
+          return null;
+        }
+        if (e.hash == hash && e.start == start && e.end == end && e.get() == seq) {
+          return e;
+        }
+      }
+    }
+
+    /*@Nullable*/ T get(T seq, int start, int end, int hash) {
+      SubsequenceEntry<T> e = find(seq, start, end, hash);
+      return (e == null) ? null : e.subseq.get();
+    }
+
+    void put(T seq, int start, int end, int hash, T subseq) {
+      expungeStaleEntries();
+      SubsequenceEntry<T> e = find(seq, start, end, hash);
+      if (e != null) {
+        if (e.subseq.get() == null) {
+          e.subseq = new WeakReference<T>(subseq);
+        }
+        return;
+      }
+      if ((size + 1) * 3 > table.length * 2) {
+        resize(table.length * 2);
+      }
+      insert(new SubsequenceEntry<T>(seq, start, end, hash, subseq, queue));
+      size++;
+    }
+
+    /** Return the number of entries whose sequence has not been collected. */
+    int size() {
+      expungeStaleEntries();
+      int result = 0;
+      for (SubsequenceEntry<T> e : table) {
+        if (e != null && e.get() != null) {
+          result++;
+        }
+      }
+      return result;
+    }
+
+    private void insert(SubsequenceEntry<T> e) {
+      int mask = table.length - 1;
+      int i = index(e.hash, mask);
+      while (table[i] != null) {
+        i = (i + 1) & mask;
+      }
+      table[i] = e;
+    }
+
+    private void resize(int newCapacity) {
+      /*@Nullable*/ SubsequenceEntry<T>[] oldTable = table;
+      table = newTable(newCapacity);
+      for (SubsequenceEntry<T> e : oldTable) {
+        if (e != null) {
+          insert(e);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked") // the queue contains only SubsequenceEntry<T> objects
+    private void expungeStaleEntries() {
+      SubsequenceEntry<T> e;
+      while ((e = (SubsequenceEntry<T>) queue.poll()) != null) {
+        remove(e);
+        reclaimed++;
+      }
+    }
+
+    /** Remove e from the table, using backward-shift deletion. */
+    private void remove(SubsequenceEntry<T> e) {
+      int mask = table.length - 1;
+      int i = index(e.hash, mask);
+      while (table[i] != e) {
+        if (table[i] == null) {
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      table[i] = null;
+      size--;
+      for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+        int home = index(table[j].hash, mask);
+        boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+        if (!stays) {
+          table[i] = table[j];
+          table[j] = null;
+          i = j;
+        }
+      }
     }
   }
 
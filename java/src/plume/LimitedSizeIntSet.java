@@ -1,7 +1,11 @@
 package plume;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*>>>
 import org.checkerframework.checker.nullness.qual.*;
@@ -14,6 +18,10 @@ import org.checkerframework.dataflow.qual.*;
  * <p>
  * The advantage of this class over LimitedSizeSet&lt;Integer&gt; is that
  * it does not autobox the int values, so it takes less memory.
+ * <p>
+ * A small set searches its values linearly.  A set whose limit is larger
+ * than LINEAR_SEARCH_LIMIT also keeps a hash index of its values once it
+ * holds that many, so that add and contains take constant expected time.
  *
  * @see LimitedSizeSet
  */
@@ -36,6 +44,23 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
   /** The number of active elements (equivalently, the first unused index). */
   int num_values;
 
+  /**
+   * A set whose max_values is at most this large always uses linear
+   * search.  A larger set also keeps a hash index, once it contains this
+   * many values.
+   */
+  static final int LINEAR_SEARCH_LIMIT = 16;
+
+  /**
+   * If non-null, a hash table that maps each value to its position in
+   * values.  Each slot holds one more than a position, or 0 if it is
+   * free.  Its length is a power of two that is at least twice
+   * values.length, so it never needs to grow.  It is not serialized, so
+   * the serialized form is unchanged; it is rebuilt when the set is
+   * deserialized.
+   */
+  private transient int /*@Nullable*/ [] index;
+
   /** Create a new LimitedSizeIntSet that can hold max_values values. */
   public LimitedSizeIntSet(int max_values) {
     assert max_values > 0;
@@ -54,11 +79,17 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     }
     if (num_values == values.length) {
       values = null;
+      index = null;
       num_values++;
       return;
     }
     values[num_values] = elt;
     num_values++;
+    if (index != null) {
+      indexInsert(index, num_values - 1);
+    } else {
+      maybeBuildIndex();
+    }
   }
 
   public void addAll(LimitedSizeIntSet s) {
@@ -78,6 +109,7 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
       if (s.size() > values_length) {
         num_values = values_length+1;
         values = null;
+        index = null;
         return;
       } else {
         throw new Error("Arg is rep-nulled, so we don't know its values and can't add them to this.");
@@ -98,6 +130,9 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     if (values == null) {
       throw new UnsupportedOperationException();
     }
+    if (index != null) {
+      return indexContains(index, elt);
+    }
     for (int i=0; i < num_values; i++) {
       if (values[i] == elt) {
         return true;
@@ -148,6 +183,9 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     if (values != null) {
       result.values = values.clone();
     }
+    if (index != null) {
+      result.index = index.clone();
+    }
     return result;
   }
 
@@ -155,18 +193,164 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
    * Merges a list of LimitedSizeIntSet objects into a single object that
    * represents the values seen by the entire list.  Returns the new
    * object, whose max_values is the given integer.
+   * <p>
+   * As for {@link LimitedSizeSet#merge}, a long list is merged in
+   * parallel, and the merge stops as soon as the result's rep is nulled.
+   * The result is the same as if the sets were added to it one at a time.
    * @param max_values the maximum size for the returned LimitedSizeIntSet
    * @param slist a list of LimitedSizeIntSet, whose elements will be merged
    * @return a LimitedSizeIntSet that merges the elements of slist
    */
   public static LimitedSizeIntSet merge(int max_values, List<LimitedSizeIntSet> slist) {
+    LimitedSizeIntSet[] sets = slist.toArray(new LimitedSizeIntSet[slist.size()]);
+    // Only the sets before the first rep-nulled one can be merged
+    // individually; see LimitedSizeSet.merge.
+    int end = 0;
+    while (end < sets.length && !sets[end].repNulled()) {
+      end++;
+    }
+    LimitedSizeIntSet result;
+    if (end <= LimitedSizeSet.MERGE_TASK_SIZE) {
+      result = mergeRange(max_values, sets, 0, end, null);
+    } else {
+      result = LimitedSizeSet.MergePool.pool.invoke(new MergeTask(max_values, sets, 0, end, new AtomicBoolean()));
+      if (result == null) {
+        result = new LimitedSizeIntSet(max_values);
+        result.num_values = max_values + 1;
+        result.values = null;
+      }
+    }
+    if (end < sets.length) {
+      result.addAll(sets[end]);
+    }
+    return result;
+  }
+
+  /**
+   * Merge sets[lo..hi-1], none of which is rep-nulled.  Stops early if the
+   * result's rep is nulled, or if saturated is non-null and becomes true.
+   * @return the merged set, or null if saturated is true
+   */
+  private static /*@Nullable*/ LimitedSizeIntSet mergeRange(int max_values, LimitedSizeIntSet[] sets, int lo, int hi, /*@Nullable*/ AtomicBoolean saturated) {
     LimitedSizeIntSet result = new LimitedSizeIntSet(max_values);
-    for (LimitedSizeIntSet s : slist) {
-      result.addAll(s);
+    for (int i=lo; i<hi; i++) {
+      if (saturated != null && saturated.get()) {
+        return null;
+      }
+      result.addAll(sets[i]);
+      if (result.repNulled()) {
+        break;
+      }
     }
     return result;
   }
 
+  /**
+   * Merges sets[lo..hi-1], none of which is rep-nulled.  Returns null if
+   * the rep of the merged set is nulled; then saturated is set, so that
+   * other tasks stop early too.
+   */
+  private static final class MergeTask extends RecursiveTask</*@Nullable*/ LimitedSizeIntSet> {
+    static final long serialVersionUID = 20151106L;
+    private final int max_values;
+    private final LimitedSizeIntSet[] sets;
+    private final int lo;
+    private final int hi;
+    private final AtomicBoolean saturated;
+
+    MergeTask(int max_values, LimitedSizeIntSet[] sets, int lo, int hi, AtomicBoolean saturated) {
+      this.max_values = max_values;
+      this.sets = sets;
+      this.lo = lo;
+      this.hi = hi;
+      this.saturated = saturated;
+    }
+
+    protected /*@Nullable*/ LimitedSizeIntSet compute() {
+      LimitedSizeIntSet result;
+      if (hi - lo <= LimitedSizeSet.MERGE_TASK_SIZE) {
+        result = mergeRange(max_values, sets, lo, hi, saturated);
+      } else {
+        int mid = (lo + hi) >>> 1;
+        MergeTask left = new MergeTask(max_values, sets, lo, mid, saturated);
+        MergeTask right = new MergeTask(max_values, sets, mid, hi, saturated);
+        invokeAll(left, right);
+        result = left.join();
+        LimitedSizeIntSet rightResult = right.join();
+        if (result == null || rightResult == null) {
+          return null;
+        }
+        // Adding the right half after the left half keeps the values in
+        // the same order as a sequential merge.
+        result.addAll(rightResult);
+      }
+      if (result == null || result.repNulled()) {
+        saturated.set(true);
+        return null;
+      }
+      return result;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Hash index
+  ///
+
+  /*@Pure*/ private static int hash(int elt) {
+    // Spread the bits, because many sets contain consecutive values.
+    int h = elt * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Build the index, if the set is large enough to need one.
+   */
+  private void maybeBuildIndex() {
+    if (values == null
+        || values.length <= LINEAR_SEARCH_LIMIT
+        || num_values < LINEAR_SEARCH_LIMIT) {
+      return;
+    }
+    int capacity = IntHashSet.tableCapacity(values.length);
+    if (values.length >= capacity) {
+      // Too many values for the largest index to keep a free slot; the
+      // set uses linear search.
+      return;
+    }
+    int[] new_index = new int[capacity];
+    for (int i=0; i<num_values; i++) {
+      indexInsert(new_index, i);
+    }
+    index = new_index;
+  }
+
+  /** Add the value at the given position in values to the index. */
+  private void indexInsert(int[] index, int position) {
+    assert values != null : "@AssumeAssertion(nullness): index is non-null only if values is";
+    int mask = index.length - 1;
+    int i = hash(values[position]) & mask;
+    while (index[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    index[i] = position + 1;
+  }
+
+  /*@Pure*/ private boolean indexContains(int[] index, int elt) {
+    assert values != null : "@AssumeAssertion(nullness): index is non-null only if values is";
+    int mask = index.length - 1;
+    for (int i = hash(elt) & mask; index[i] != 0; i = (i + 1) & mask) {
+      if (values[index[i] - 1] == elt) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    maybeBuildIndex();
+  }
+
   /*@SideEffectFree*/ public String toString() {
     return ("[size=" + size() + "; "
             + ((values == null) ? "null" : ArraysMDE.toString(values))
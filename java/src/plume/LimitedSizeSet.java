@@ -1,7 +1,12 @@
 package plume;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*>>>
 import org.checkerframework.checker.nullness.qual.*;
@@ -11,6 +16,10 @@ import org.checkerframework.dataflow.qual.*;
 /**
  * LimitedSizeSet stores up to some maximum number of unique
  * values, at which point its rep is nulled, in order to save space.
+ * <p>
+ * A small set searches its values linearly.  A set whose limit is larger
+ * than LINEAR_SEARCH_LIMIT also keeps a hash index of its values once it
+ * holds that many, so that add and contains take constant expected time.
  * @param <T> the type of elements in the set
  */
 public class LimitedSizeSet<T> implements Serializable, Cloneable {
@@ -29,6 +38,23 @@ public class LimitedSizeSet<T> implements Serializable, Cloneable {
   /** The number of active elements (equivalently, the first unused index). */
   int num_values;
 
+  /**
+   * A set whose max_values is at most this large always uses linear
+   * search.  A larger set also keeps a hash index, once it contains this
+   * many values.
+   */
+  static final int LINEAR_SEARCH_LIMIT = 16;
+
+  /**
+   * If non-null, a hash table that maps each value to its position in
+   * values.  Each slot holds one more than a position, or 0 if it is
+   * free.  Its length is a power of two that is at least twice
+   * values.length, so it never needs to grow.  It is not serialized, so
+   * the serialized form is unchanged; it is rebuilt when the set is
+   * deserialized.
+   */
+  private transient int /*@Nullable*/ [] index;
+
   /** Create a new LimitedSizeSet that can hold max_values values. */
   public LimitedSizeSet(int max_values) {
     assert max_values > 0;
@@ -49,11 +75,17 @@ public class LimitedSizeSet<T> implements Serializable, Cloneable {
     }
     if (num_values == values.length) {
       values = null;
+      index = null;
       num_values++;
       return;
     }
     values[num_values] = elt;
     num_values++;
+    if (index != null) {
+      indexInsert(index, num_values - 1);
+    } else {
+      maybeBuildIndex();
+    }
   }
 
   public void addAll(LimitedSizeSet<? extends T> s) {
@@ -73,6 +105,7 @@ public class LimitedSizeSet<T> implements Serializable, Cloneable {
       if (s.size() > values_length) {
         num_values = values_length+1;
         values = null;
+        index = null;
         return;
       } else {
         throw new Error("Arg is rep-nulled, so we don't know its values and can't add them to this.");
@@ -94,6 +127,9 @@ public class LimitedSizeSet<T> implements Serializable, Cloneable {
     if (values == null) {
       throw new UnsupportedOperationException();
     }
+    if (index != null) {
+      return indexContains(index, elt);
+    }
     for (int i=0; i < num_values; i++) {
       @SuppressWarnings("nullness") // object invariant: used portion of array
       T value = values[i];
@@ -150,6 +186,9 @@ public class LimitedSizeSet<T> implements Serializable, Cloneable {
     if (values != null) {
       result.values = values.clone();
     }
+    if (index != null) {
+      result.index = index.clone();
+    }
     return result;
   }
 
@@ -158,19 +197,192 @@ public class LimitedSizeSet<T> implements Serializable, Cloneable {
    * Merges a list of LimitedSizeSet&lt;T&gt; objects into a single object that
    * represents the values seen by the entire list.  Returns the new
    * object, whose max_values is the given integer.
+   * <p>
+   * A long list is merged in parallel, by combining sets pairwise in a
+   * tree.  The merge stops as soon as the result's rep is nulled, because
+   * the remaining sets cannot change the result.  The result, including
+   * the order of its values, is the same as if the sets were added to it
+   * one at a time.
    * @param <T> (super)type of elements of the sets
    * @param max_values the maximum size for the returned LimitedSizeSet
    * @param slist a list of LimitedSizeSet, whose elements will be merged
    * @return a LimitedSizeSet that merges the elements of slist
    */
   public static <T> LimitedSizeSet<T> merge(int max_values, List<LimitedSizeSet<? extends T>> slist) {
+    @SuppressWarnings("unchecked")
+    LimitedSizeSet<? extends T>[] sets
+      = (LimitedSizeSet<? extends T>[]) slist.toArray(new LimitedSizeSet<?>[slist.size()]);
+    // Only the sets before the first rep-nulled one can be merged
+    // individually.  The rep-nulled one either nulls the rep of the result
+    // or cannot be added to it; either way, the rest of the list is
+    // irrelevant.
+    int end = 0;
+    while (end < sets.length && !sets[end].repNulled()) {
+      end++;
+    }
+    LimitedSizeSet<T> result;
+    if (end <= MERGE_TASK_SIZE) {
+      result = mergeRange(max_values, sets, 0, end, null);
+    } else {
+      result = MergePool.pool.invoke(new MergeTask<T>(max_values, sets, 0, end, new AtomicBoolean()));
+      if (result == null) {
+        result = new LimitedSizeSet<T>(max_values);
+        result.num_values = max_values + 1;
+        result.values = null;
+      }
+    }
+    if (end < sets.length) {
+      result.addAll(sets[end]);
+    }
+    return result;
+  }
+
+  /**
+   * Lists of more than this many sets are merged in parallel, and each
+   * MergeTask merges at most this many sets itself.
+   */
+  static final int MERGE_TASK_SIZE = 16;
+
+  /**
+   * Holder for the fork-join pool that merges long lists of sets, both
+   * LimitedSizeSet and LimitedSizeIntSet.  The pool is created the first
+   * time a long list is merged.
+   */
+  static final class MergePool {
+    static final ForkJoinPool pool = new ForkJoinPool();
+  }
+
+  /**
+   * Merge sets[lo..hi-1], none of which is rep-nulled.  Stops early if the
+   * result's rep is nulled, or if saturated is non-null and becomes true.
+   * @return the merged set, or null if saturated is true
+   */
+  private static <T> /*@Nullable*/ LimitedSizeSet<T> mergeRange(int max_values, LimitedSizeSet<? extends T>[] sets, int lo, int hi, /*@Nullable*/ AtomicBoolean saturated) {
     LimitedSizeSet<T> result = new LimitedSizeSet<T>(max_values);
-    for (LimitedSizeSet<? extends T> s : slist) {
-      result.addAll(s);
+    for (int i=lo; i<hi; i++) {
+      if (saturated != null && saturated.get()) {
+        return null;
+      }
+      result.addAll(sets[i]);
+      if (result.repNulled()) {
+        break;
+      }
     }
     return result;
   }
 
+  /**
+   * Merges sets[lo..hi-1], none of which is rep-nulled.  Returns null if
+   * the rep of the merged set is nulled; then saturated is set, so that
+   * other tasks stop early too.
+   */
+  private static final class MergeTask<T> extends RecursiveTask</*@Nullable*/ LimitedSizeSet<T>> {
+    static final long serialVersionUID = 20151106L;
+    private final int max_values;
+    private final LimitedSizeSet<? extends T>[] sets;
+    private final int lo;
+    private final int hi;
+    private final AtomicBoolean saturated;
+
+    MergeTask(int max_values, LimitedSizeSet<? extends T>[] sets, int lo, int hi, AtomicBoolean saturated) {
+      this.max_values = max_values;
+      this.sets = sets;
+      this.lo = lo;
+      this.hi = hi;
+      this.saturated = saturated;
+    }
+
+    protected /*@Nullable*/ LimitedSizeSet<T> compute() {
+      LimitedSizeSet<T> result;
+      if (hi - lo <= MERGE_TASK_SIZE) {
+        result = mergeRange(max_values, sets, lo, hi, saturated);
+      } else {
+        int mid = (lo + hi) >>> 1;
+        MergeTask<T> left = new MergeTask<T>(max_values, sets, lo, mid, saturated);
+        MergeTask<T> right = new MergeTask<T>(max_values, sets, mid, hi, saturated);
+        invokeAll(left, right);
+        result = left.join();
+        LimitedSizeSet<T> rightResult = right.join();
+        if (result == null || rightResult == null) {
+          return null;
+        }
+        // Adding the right half after the left half keeps the values in
+        // the same order as a sequential merge.
+        result.addAll(rightResult);
+      }
+      if (result == null || result.repNulled()) {
+        saturated.set(true);
+        return null;
+      }
+      return result;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Hash index
+  ///
+
+  /*@Pure*/ private static int hash(/*@Nullable*/ Object elt) {
+    if (elt == null) {
+      return 0;
+    }
+    // Spread the bits, because many hashCode methods leave the high bits
+    // unused.
+    int h = elt.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Build the index, if the set is large enough to need one.
+   */
+  private void maybeBuildIndex() {
+    if (values == null
+        || values.length <= LINEAR_SEARCH_LIMIT
+        || num_values < LINEAR_SEARCH_LIMIT) {
+      return;
+    }
+    int capacity = IntHashSet.tableCapacity(values.length);
+    if (values.length >= capacity) {
+      // Too many values for the largest index to keep a free slot; the
+      // set uses linear search.
+      return;
+    }
+    int[] new_index = new int[capacity];
+    for (int i=0; i<num_values; i++) {
+      indexInsert(new_index, i);
+    }
+    index = new_index;
+  }
+
+  /** Add the value at the given position in values to the index. */
+  private void indexInsert(int[] index, int position) {
+    assert values != null : "@AssumeAssertion(nullness): index is non-null only if values is";
+    int mask = index.length - 1;
+    int i = hash(values[position]) & mask;
+    while (index[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    index[i] = position + 1;
+  }
+
+  /*@Pure*/ private boolean indexContains(int[] index, T elt) {
+    assert values != null : "@AssumeAssertion(nullness): index is non-null only if values is";
+    int mask = index.length - 1;
+    for (int i = hash(elt) & mask; index[i] != 0; i = (i + 1) & mask) {
+      @SuppressWarnings("nullness") // object invariant: used portion of array
+      T value = values[index[i] - 1];
+      if (value == elt || (value != null && value.equals(elt))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    maybeBuildIndex();
+  }
+
   @SuppressWarnings("nullness") // bug in flow; to fix later
   /*@SideEffectFree*/ public String toString() {
     return ("[size=" + size() + "; "
@@ -0,0 +1,176 @@
+package plume;
+
+import java.util.Arrays;
+
+/*>>>
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A set of <code>long</code> values.  Unlike a
+ * <code>HashSet&lt;Long&gt;</code>, it does not box its elements:  it
+ * stores them in a single <code>long[]</code> table, using open
+ * addressing with linear probing, and allocates nothing else except when
+ * it grows.
+ * <p>
+ *
+ * A <code>double</code> can be stored as its
+ * {@link Double#doubleToLongBits} value, so that set membership agrees
+ * with {@link Double#equals}.
+ * <p>
+ *
+ * Like most collection classes, this class is not synchronized.
+ *
+ * @see IntHashSet
+ */
+public final class LongHashSet {
+
+  /**
+   * The value that marks an empty slot of the table.  The set records
+   * whether it contains this value in the field containsFree.
+   */
+  private static final long FREE = 0L;
+
+  /** The hash table.  Its length is always a power of two. */
+  private long[] table;
+
+  /** True if the set contains FREE, which is not stored in the table. */
+  private boolean containsFree = false;
+
+  /** The number of elements in the table (not counting FREE). */
+  private int size = 0;
+
+  /** The maximum number of elements in the table before it grows. */
+  private int threshold;
+
+  /**
+   * The largest length of this set's table.  Lowered only by tests, so
+   * that they can fill the table.
+   */
+  int maxCapacity = IntHashSet.MAX_CAPACITY;
+
+  /** Create an empty set. */
+  public LongHashSet() {
+    this(16);
+  }
+
+  /**
+   * Create an empty set that can hold the given number of elements
+   * without growing.  A set holds at most 2<sup>30</sup>-1 elements.
+   * @param expectedSize the number of elements that the set will hold
+   */
+  public LongHashSet(int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("Negative expected size: " + expectedSize);
+    }
+    int capacity = IntHashSet.tableCapacity(expectedSize);
+    table = new long[capacity];
+    threshold = capacity / 2;
+  }
+
+  /*@Pure*/ private static int index(long value, int mask) {
+    // Spread the bits, because many sets contain consecutive values, and
+    // the bits of a double are concentrated at the high end.
+    long h = value * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32) ^ (h >>> 48)) & mask;
+  }
+
+  /**
+   * Add the value to the set.
+   * @param value the value to add
+   * @return true if the set did not already contain the value
+   */
+  public boolean add(long value) {
+    if (value == FREE) {
+      boolean result = !containsFree;
+      containsFree = true;
+      return result;
+    }
+    int mask = table.length - 1;
+    int i = index(value, mask);
+    while (table[i] != FREE) {
+      if (table[i] == value) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    if (size == threshold) {
+      grow();
+      // The table may have been rehashed, so find the free slot again.
+      mask = table.length - 1;
+      i = index(value, mask);
+      while (table[i] != FREE) {
+        i = (i + 1) & mask;
+      }
+    }
+    table[i] = value;
+    size++;
+    return true;
+  }
+
+  /**
+   * Return true if the set contains the value.
+   * @param value the value to look for
+   * @return true if the set contains the value
+   */
+  /*@Pure*/ public boolean contains(long value) {
+    if (value == FREE) {
+      return containsFree;
+    }
+    int mask = table.length - 1;
+    for (int i = index(value, mask); table[i] != FREE; i = (i + 1) & mask) {
+      if (table[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the number of elements in the set.
+   * @return the number of elements in the set
+   */
+  /*@Pure*/ public int size() {
+    return containsFree ? size + 1 : size;
+  }
+
+  /** Remove every element from the set, keeping its current capacity. */
+  public void clear() {
+    Arrays.fill(table, FREE);
+    containsFree = false;
+    size = 0;
+  }
+
+  /**
+   * Make room for one more element in the table:  double the table, or,
+   * if it is already as large as possible, raise the load factor.  At
+   * least one slot of the table is always left free, so that every
+   * probe run ends.
+   * @throws IllegalStateException if the table is full
+   */
+  private void grow() {
+    if (table.length < maxCapacity) {
+      rehash(table.length * 2);
+    } else if (threshold < table.length - 1) {
+      threshold = table.length - 1;
+    } else {
+      throw new IllegalStateException("LongHashSet is full: " + size() + " elements");
+    }
+  }
+
+  private void rehash(int newCapacity) {
+    long[] oldTable = table;
+    table = new long[newCapacity];
+    threshold = newCapacity / 2;
+    int mask = newCapacity - 1;
+    for (long value : oldTable) {
+      if (value != FREE) {
+        int i = index(value, mask);
+        while (table[i] != FREE) {
+          i = (i + 1) & mask;
+        }
+        table[i] = value;
+      }
+    }
+  }
+}
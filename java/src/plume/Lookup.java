@@ -1,16 +1,23 @@
 package plume;
 
 import static plume.EntryReader.Entry;
+import static plume.EntryReader.LazyEntry;
 
 // import com.sun.javadoc.*;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /*>>>
 import org.checkerframework.checker.nullness.qual.*;
@@ -68,6 +75,13 @@ import org.checkerframework.checker.regex.qual.*;
  *  Print progress information [default false]</li>
  *     </ul>
  *   </li>
+ *   <li id="optiongroup:Performance">Performance
+ *     <ul>
+ *       <li id="option:parallel"><b>-p</b> <b>--parallel=</b><i>boolean</i>.
+ *  Match entries against the keywords using multiple threads.  Entries
+ *  are still read, and matches printed, in file order. [default false]</li>
+ *     </ul>
+ *   </li>
  *   <li id="optiongroup:Where-to-search">Where to search
  *     <ul>
  *       <li id="option:entry-file"><b>-f</b> <b>--entry-file=</b><i>string</i>.
@@ -77,6 +91,12 @@ import org.checkerframework.checker.regex.qual.*;
  *       <li id="option:search-body"><b>-b</b> <b>--search-body=</b><i>boolean</i>.
  *  Search the body of long entries in addition to the entry's
  *  description.  The bodies of short entries are always searched. [default false]</li>
+ *       <li id="option:index-file"><b>--index-file=</b><i>string</i>.
+ *  File that holds an index of the entry files.  If given, Lookup reads
+ *  only the entries that the index shows might match, rather than every
+ *  entry.  The index is created if the file does not exist, and updated
+ *  if any entry file has changed.  It is not used when keywords are
+ *  regular expressions.</li>
  *     </ul>
  *   </li>
  *   <li id="optiongroup:What-to-search-for">What to search for
@@ -138,6 +158,14 @@ public final class Lookup {
   @Option ("-v Print progress information")
   public static boolean verbose = false;
 
+  /**
+   * Match entries against the keywords using multiple threads.  Entries
+   * are still read, and matches printed, in file order.
+   */
+  @OptionGroup("Performance")
+  @Option ("-p Match entries using multiple threads")
+  public static boolean parallel = false;
+
   // This uses only the first file because the default search path might be
   // something like user:system and you might want only your version of the
   // system files.  It might be useful to also support (via another flag,
@@ -159,6 +187,16 @@ public final class Lookup {
   @Option ("-b Search body of long entries for matches")
   public static boolean search_body = false;
 
+  /**
+   * File that holds an index of the entry files.  If given, Lookup reads
+   * only the entries that the index shows might match, rather than every
+   * entry.  The index is created if the file does not exist, and updated
+   * if any entry file has changed.  It is not used when keywords are
+   * regular expressions.
+   */
+  @Option ("File that holds an index of the entry files, to speed up searches")
+  public static /*@Nullable*/ String index_file = null;
+
   /**
    * Specifies that keywords are regular expressions.  If false, keywords
    * are text matches.
@@ -221,6 +259,18 @@ public final class Lookup {
   @Option ("Regex that matches an include directive; group 1 is the file name")
   public static /*@Regex(1)*/ String include_re = "\\\\include\\{(.*)\\}";
 
+  /**
+   * In parallel mode, entries are matched in batches of this many.  Each
+   * batch is matched by a fork-join task while the entry files are read.
+   */
+  static final int MATCH_BATCH_SIZE = 1024;
+
+  /**
+   * In parallel mode, at most this many batches per thread are read
+   * ahead of the oldest batch whose matches have not been collected.
+   */
+  static final int MATCH_BATCHES_PER_THREAD = 4;
+
   /** Platform-specific line separator. */
   private static final String lineSep = System.getProperty("line.separator");
 
@@ -278,6 +328,7 @@ public final class Lookup {
 
     // Open the first readable root file
     EntryReader reader = null;
+    String root_file = null;
     String[] entry_files = entry_file.split(":");
     List<Exception> file_errors = new ArrayList<Exception>();
     for (String ef : entry_files) {
@@ -288,6 +339,7 @@ public final class Lookup {
         file_errors.add(e);
       }
       if (reader != null) {
+        root_file = ef;
         break;
       }
     }
@@ -302,64 +354,62 @@ public final class Lookup {
     // Setup the regular expressions for long entries
     reader.set_entry_start_stop(entry_start_re, entry_stop_re);
 
+    if (regular_expressions) {
+      for (String keyword : keywords) {
+        if (! RegexUtil.isRegex(keyword)) {
+          System.out.println("Error: not a regex: " + keyword);
+          System.exit(254);
+        }
+      }
+    }
+
+    Query query = new Query(keywords);
     List<Entry> matching_entries = new ArrayList<Entry>();
 
+    // Text keywords can be looked up in the index.
+    boolean use_index = (index_file != null) && ! regular_expressions;
+
     try {
-      // Process each entry looking for matches
-      int entry_cnt = 0;
-      Entry entry = reader.get_entry();
-      while (entry != null) {
-        entry_cnt++;
-        if (verbose && ((entry_cnt % 1000) == 0)) {
-          System.out.printf("%d matches in %d entries\r",
-                             matching_entries.size(), entry_cnt);
-        }
-        int matchcount = 0;
-        for (String keyword : keywords) {
-          String search = entry.get_description(description_re);
-          if (search_body || entry.short_entry) {
-            search = entry.body;
+      if (use_index) {
+        assert index_file != null && root_file != null
+          : "@AssumeAssertion(nullness): use_index and the reader was opened";
+        // The index reads the entries itself.
+        reader.close();
+        LookupIndex index
+          = LookupIndex.load(new File(UtilMDE.expandFilename(index_file)), root_file,
+                             comment_re, include_re, entry_start_re, entry_stop_re);
+        for (Entry entry : index.candidates(keywords)) {
+          if (query.matches(entry)) {
+            matching_entries.add(entry);
           }
-          if (!case_sensitive) {
-            search = search.toLowerCase();
+        }
+      } else if (parallel) {
+        matching_entries = parallel_matching_entries(reader, query);
+      } else {
+        // Process each entry looking for matches.  The body of an entry
+        // is built only if the entry matches.
+        int entry_cnt = 0;
+        LazyEntry entry = reader.get_lazy_entry();
+        while (entry != null) {
+          entry_cnt++;
+          if (verbose && ((entry_cnt % 1000) == 0)) {
+            System.out.printf("%d matches in %d entries\r",
+                               matching_entries.size(), entry_cnt);
           }
-          if (regular_expressions) {
-            int flags = Pattern.CASE_INSENSITIVE;
-            if (case_sensitive) {
-              flags = 0;
-            }
-
-            if (! RegexUtil.isRegex(keyword)) {
-              System.out.println("Error: not a regex: " + keyword);
-              System.exit(254);
-            }
-
-            if (Pattern.compile(keyword, flags).matcher(search).find()) {
-              matchcount++;
-            }
-          } else {
-            if (!case_sensitive) {
-              keyword = keyword.toLowerCase();
-            }
-            if (word_match) {
-              String keyword_re = "\\b" + Pattern.quote(keyword) + "\\b";
-              if (Pattern.compile(keyword_re).matcher(search).find()) {
-                matchcount++;
-              }
-            } else if (search.contains(keyword)) {
-              matchcount++;
-            }
+          if (query.matches(entry)) {
+            matching_entries.add(entry.toEntry());
           }
+          entry = reader.get_lazy_entry();
         }
-        if (matchcount == keywords.length) {
-          matching_entries.add(entry);
-        }
-        entry = reader.get_entry();
       }
     } catch (FileNotFoundException e) {
-      System.out.printf("Error: Can't read %s at line %d in file %s%n",
-                         e.getMessage(), reader.getLineNumber(),
-                         reader.getFileName());
+      if (use_index) {
+        System.out.printf("Error: Can't read %s%n", e.getMessage());
+      } else {
+        System.out.printf("Error: Can't read %s at line %d in file %s%n",
+                           e.getMessage(), reader.getLineNumber(),
+                           reader.getFileName());
+      }
       System.exit(254);
     }
 
@@ -415,6 +465,283 @@ public final class Lookup {
     }
   }
 
+  /**
+   * A search for the entries that match every one of a set of keywords,
+   * according to the options in effect when the query is created.  The
+   * keywords are compiled once, and each entry is searched in a single
+   * pass, however many keywords there are:
+   * <ul>
+   *   <li>Text keywords are found by one multi-string automaton
+   *       ({@link SubarrayPatternSet.Chars}).  When matching is
+   *       case-insensitive, the automaton reads the entry a character at a
+   *       time through a lower-case view, so the entry is not copied.</li>
+   *   <li>Word-match keywords and regular expressions are combined into
+   *       one alternation, which finds each position where some keyword
+   *       matches.  The keywords not yet found are checked at just those
+   *       positions.  Case-insensitive matching uses the pattern flags
+   *       rather than lower-casing the entry.</li>
+   * </ul>
+   * A query is immutable and may be used by multiple threads at once.
+   */
+  static final class Query {
+    /** The number of keywords. */
+    private final int num_keywords;
+    private final boolean case_sensitive;
+    private final boolean search_body;
+    private final /*@Nullable*/ Pattern description_re;
+
+    /** For text keywords, the automaton that finds them; otherwise null. */
+    private final SubarrayPatternSet./*@Nullable*/ Chars literals;
+
+    /** For word matching and regular expressions, each keyword's pattern; otherwise null. */
+    private final Pattern /*@Nullable*/ [] patterns;
+
+    /**
+     * The alternation of the patterns, or null if there is only one
+     * pattern or if they cannot be combined.
+     */
+    private final /*@Nullable*/ Pattern combined;
+
+    /**
+     * Create a query from the keywords and the current settings of the
+     * options.
+     * @param keywords the keywords to search for
+     * @throws PatternSyntaxException if regular_expressions is set and a
+     * keyword is not a regular expression
+     */
+    Query(String[] keywords) {
+      num_keywords = keywords.length;
+      case_sensitive = Lookup.case_sensitive;
+      search_body = Lookup.search_body;
+      description_re = Lookup.description_re;
+
+      if (! regular_expressions && ! word_match) {
+        String[] texts = new String[keywords.length];
+        for (int i=0; i<keywords.length; i++) {
+          texts[i] = case_sensitive ? keywords[i] : new LowerCaseView(keywords[i]).toString();
+        }
+        literals = new SubarrayPatternSet.Chars(texts);
+        patterns = null;
+        combined = null;
+        return;
+      }
+
+      literals = null;
+      int flags = case_sensitive ? 0 : (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+      patterns = new Pattern[keywords.length];
+      StringBuilder alternation = new StringBuilder();
+      // Backreferences would refer to the wrong groups in the alternation.
+      boolean combinable = (keywords.length > 1);
+      for (int i=0; i<keywords.length; i++) {
+        String keyword_re = regular_expressions ? keywords[i]
+          : ("\\b" + Pattern.quote(keywords[i]) + "\\b");
+        patterns[i] = Pattern.compile(keyword_re, flags);
+        if (regular_expressions && keyword_re.matches("(?s).*\\\\[1-9k].*")) {
+          combinable = false;
+        }
+        if (i > 0) {
+          alternation.append('|');
+        }
+        alternation.append("(?:").append(keyword_re).append(')');
+      }
+      Pattern c = null;
+      if (combinable) {
+        try {
+          c = Pattern.compile(alternation.toString(), flags);
+        } catch (PatternSyntaxException e) {
+          // For example, two keywords define the same named group.
+        }
+      }
+      combined = c;
+    }
+
+    /**
+     * Returns true if entry matches every keyword.
+     * @param entry the entry to search
+     * @return true if entry matches every keyword
+     */
+    boolean matches(Entry entry) {
+      return matches((search_body || entry.short_entry) ? entry.body
+                     : entry.get_description(description_re));
+    }
+
+    /**
+     * Returns true if entry matches every keyword.  Searches a view of
+     * the entry's body, so does not build the body.
+     * @param entry the entry to search
+     * @return true if entry matches every keyword
+     */
+    boolean matches(LazyEntry entry) {
+      return matches((search_body || entry.short_entry) ? entry.get_body_view()
+                     : entry.get_description(description_re));
+    }
+
+    /**
+     * Returns true if search matches every keyword.
+     * @param search the description or body of an entry
+     * @return true if search matches every keyword
+     */
+    private boolean matches(CharSequence search) {
+      if (literals != null) {
+        if (! case_sensitive) {
+          search = new LowerCaseView(search);
+        }
+        for (int index : literals.indexesIn(search)) {
+          if (index == -1) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      assert patterns != null : "@AssumeAssertion(nullness): literals == null";
+      if (combined == null) {
+        for (Pattern p : patterns) {
+          if (! p.matcher(search).find()) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      // Each position where some keyword matches is found by combined;
+      // check there for the keywords not yet found.
+      boolean[] found = new boolean[num_keywords];
+      Matcher[] matchers = new Matcher[num_keywords];
+      int remaining = num_keywords;
+      Matcher m = combined.matcher(search);
+      int from = 0;
+      while (from <= search.length() && m.find(from)) {
+        int start = m.start();
+        for (int i=0; i<num_keywords; i++) {
+          if (found[i]) {
+            continue;
+          }
+          Matcher mi = matchers[i];
+          if (mi == null) {
+            // Let lookarounds and \b see outside the region.
+            mi = patterns[i].matcher(search).useTransparentBounds(true).useAnchoringBounds(false);
+            matchers[i] = mi;
+          }
+          mi.region(start, search.length());
+          if (mi.lookingAt()) {
+            found[i] = true;
+            remaining--;
+          }
+        }
+        if (remaining == 0) {
+          return true;
+        }
+        from = start + 1;
+      }
+      return false;
+    }
+  }
+
+  /** A view of a CharSequence in which each character is lower-cased. */
+  private static final class LowerCaseView implements CharSequence {
+    private final CharSequence cs;
+
+    LowerCaseView(CharSequence cs) {
+      this.cs = cs;
+    }
+
+    public int length() {
+      return cs.length();
+    }
+
+    public char charAt(int index) {
+      return Character.toLowerCase(cs.charAt(index));
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      return new LowerCaseView(cs.subSequence(start, end));
+    }
+
+    public String toString() {
+      StringBuilder result = new StringBuilder(cs.length());
+      for (int i=0; i<cs.length(); i++) {
+        result.append(Character.toLowerCase(cs.charAt(i)));
+      }
+      return result.toString();
+    }
+  }
+
+  /**
+   * Holder for the fork-join pool used in parallel mode.  The pool is
+   * created the first time it is used.
+   */
+  static final class MatchPool {
+    static final ForkJoinPool pool = new ForkJoinPool();
+  }
+
+  /** Returns the entries of a batch that match every keyword. */
+  private static final class MatchTask extends RecursiveTask<List<Entry>> {
+    static final long serialVersionUID = 20151111L;
+    private final List<LazyEntry> batch;
+    private final Query query;
+
+    MatchTask(List<LazyEntry> batch, Query query) {
+      this.batch = batch;
+      this.query = query;
+    }
+
+    protected List<Entry> compute() {
+      List<Entry> result = new ArrayList<Entry>();
+      for (LazyEntry entry : batch) {
+        if (query.matches(entry)) {
+          result.add(entry.toEntry());
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns the entries read by reader that match every keyword, in the
+   * order they were read.  The entries are read on the calling thread,
+   * because where one entry ends depends on all the lines before it (a
+   * long entry may contain blank lines, and an include directive may
+   * appear anywhere).  They are matched, in batches, by the threads of a
+   * fork-join pool, while the calling thread reads on.
+   * @param reader where to read the entries from
+   * @param query the keywords to search for
+   * @return the matching entries, in file order
+   * @throws IOException if there is a problem reading a file
+   */
+  static List<Entry> parallel_matching_entries(EntryReader reader, Query query) throws IOException {
+    ForkJoinPool pool = MatchPool.pool;
+    int max_pending = MATCH_BATCHES_PER_THREAD * pool.getParallelism();
+    // Batches being matched, oldest first
+    List<ForkJoinTask<List<Entry>>> pending = new ArrayList<ForkJoinTask<List<Entry>>>();
+    List<Entry> matching_entries = new ArrayList<Entry>();
+    int entry_cnt = 0;
+    List<LazyEntry> batch = new ArrayList<LazyEntry>(MATCH_BATCH_SIZE);
+    for (LazyEntry entry = reader.get_lazy_entry(); entry != null; entry = reader.get_lazy_entry()) {
+      entry_cnt++;
+      if (verbose && ((entry_cnt % 1000) == 0)) {
+        System.out.printf("%d matches in %d entries\r",
+                           matching_entries.size(), entry_cnt);
+      }
+      batch.add(entry);
+      if (batch.size() == MATCH_BATCH_SIZE) {
+        pending.add(pool.submit(new MatchTask(batch, query)));
+        batch = new ArrayList<LazyEntry>(MATCH_BATCH_SIZE);
+        // Bound the number of entries held in memory
+        if (pending.size() > max_pending) {
+          matching_entries.addAll(pending.remove(0).join());
+        }
+      }
+    }
+    if (! batch.isEmpty()) {
+      pending.add(pool.submit(new MatchTask(batch, query)));
+    }
+    for (ForkJoinTask<List<Entry>> task : pending) {
+      matching_entries.addAll(task.join());
+    }
+    return matching_entries;
+  }
+
   /**
    * Returns the next entry.  If no more entries are available, returns null.
    * @param reader where to read the entry from
@@ -0,0 +1,573 @@
+package plume;
+
+import static plume.EntryReader.Entry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.checker.regex.qual.*;
+*/
+
+/**
+ * A persistent inverted index of the entries in a tree of files, as read
+ * by {@link EntryReader}.  {@link Lookup} uses it to read and search only
+ * the entries that might contain its keywords, rather than every entry
+ * in every file.
+ * <p>
+ *
+ * The terms of the index are trigrams:  the three-character substrings of
+ * each entry's body, with case folded.  An entry that contains a keyword
+ * contains every trigram of the keyword, so the entries that contain
+ * every trigram of every keyword are a superset of the entries that
+ * match.  A keyword shorter than three characters does not narrow the
+ * search.  For each file, the index records the line number of each
+ * entry, the postings of each trigram (the entries that contain it), and
+ * the include directives, which determine the order in which the
+ * entries of the tree are read.
+ * <p>
+ *
+ * The index is saved in a file, using Java serialization.
+ * {@link #load} updates it incrementally:  a file whose modification
+ * time or size has changed, and whose digest has also changed, is
+ * indexed again; newly included files are indexed; and files that are no
+ * longer included are dropped.  If the root file or any of the regular
+ * expressions that define entries differs from those used to build the
+ * index, the index is rebuilt.
+ * <p>
+ *
+ * A file is indexed by reading it with an EntryReader, which also reads
+ * the files it includes.  Thus changing a file that includes many others
+ * rereads all of them (but only the entries of changed files are
+ * indexed again).
+ */
+public final class LookupIndex implements Serializable {
+
+  static final long serialVersionUID = 20151112L;
+
+  // The root file and the options that determine how files are read.
+  private final String root;
+  private final /*@Nullable*/ /*@Regex*/ String comment_re;
+  private final /*@Nullable*/ /*@Regex(1)*/ String include_re;
+  private final /*@Regex(1)*/ String entry_start_re;
+  private final /*@Regex*/ String entry_stop_re;
+
+  /** The index of each file in the tree, by the name EntryReader gives it. */
+  private final HashMap<String,FileIndex> files = new HashMap<String,FileIndex>();
+
+  /** True if the index has changed since it was loaded. */
+  private transient boolean modified = false;
+
+  /** The index of one file. */
+  private static final class FileIndex implements Serializable {
+    static final long serialVersionUID = 20151112L;
+
+    /** The modification time of the file when it was indexed. */
+    long last_modified;
+    /** The size of the file when it was indexed. */
+    long length;
+    /** The MD5 digest of the file when it was indexed. */
+    byte[] digest;
+
+    /** The line number of each entry, in increasing order. */
+    final long[] entry_lines;
+    /** The line number of each include directive, in increasing order. */
+    final long[] include_lines;
+    /** The absolute name of the file included by each include directive. */
+    final String[] includes;
+
+    /** The distinct trigrams of the entries, in increasing order. */
+    final long[] terms;
+    /**
+     * The postings of terms[i] are postings[postings_start[i]] through
+     * postings[postings_start[i+1]-1]:  the indexes, in entry_lines, of
+     * the entries that contain terms[i], in increasing order.
+     */
+    final int[] postings_start;
+    final int[] postings;
+
+    FileIndex(long[] entry_lines, long[][] entry_terms, long[] include_lines,
+              String[] includes) {
+      this.entry_lines = entry_lines;
+      this.include_lines = include_lines;
+      this.includes = includes;
+
+      int num_pairs = 0;
+      for (long[] t : entry_terms) {
+        num_pairs += t.length;
+      }
+      long[] all_terms = new long[num_pairs];
+      int pos = 0;
+      for (long[] t : entry_terms) {
+        System.arraycopy(t, 0, all_terms, pos, t.length);
+        pos += t.length;
+      }
+      terms = sortedDistinct(all_terms, num_pairs);
+
+      // Count the postings of each term, then fill them in entry order.
+      postings_start = new int[terms.length + 1];
+      for (long[] t : entry_terms) {
+        for (long term : t) {
+          postings_start[Arrays.binarySearch(terms, term) + 1]++;
+        }
+      }
+      for (int i=0; i<terms.length; i++) {
+        postings_start[i + 1] += postings_start[i];
+      }
+      int[] next = Arrays.copyOf(postings_start, terms.length);
+      postings = new int[num_pairs];
+      for (int e=0; e<entry_terms.length; e++) {
+        for (long term : entry_terms[e]) {
+          postings[next[Arrays.binarySearch(terms, term)]++] = e;
+        }
+      }
+    }
+
+    /**
+     * Return the entries that contain every one of the given trigrams.
+     * @param query_terms the trigrams
+     * @return a set of indexes into entry_lines
+     */
+    BitSet candidates(long[] query_terms) {
+      BitSet result = new BitSet(entry_lines.length);
+      result.set(0, entry_lines.length);
+      for (long term : query_terms) {
+        int t = Arrays.binarySearch(terms, term);
+        if (t < 0) {
+          result.clear();
+          return result;
+        }
+        BitSet containing = new BitSet(entry_lines.length);
+        for (int p = postings_start[t]; p < postings_start[t + 1]; p++) {
+          containing.set(postings[p]);
+        }
+        result.and(containing);
+      }
+      return result;
+    }
+  }
+
+  private LookupIndex(String root, /*@Nullable*/ /*@Regex*/ String comment_re,
+                      /*@Nullable*/ /*@Regex(1)*/ String include_re,
+                      /*@Regex(1)*/ String entry_start_re, /*@Regex*/ String entry_stop_re) {
+    this.root = root;
+    this.comment_re = comment_re;
+    this.include_re = include_re;
+    this.entry_start_re = entry_start_re;
+    this.entry_stop_re = entry_stop_re;
+  }
+
+  /**
+   * Return the index of the tree of files rooted at root.  If
+   * index_file contains an index of that tree, built with the same
+   * options, it is updated to reflect any changed files; otherwise a new
+   * index is built.  If the index changed, it is saved in index_file.
+   * @param index_file the file in which the index is saved
+   * @param root the root file of the tree, as it is given to EntryReader
+   * @param comment_re regular expression that matches comments
+   * @param include_re regular expression that matches include directives
+   * @param entry_start_re regular expression that starts a long entry
+   * @param entry_stop_re regular expression that ends a long entry
+   * @return an up-to-date index of the tree
+   * @throws IOException if there is a problem reading an entry file or
+   * writing the index
+   */
+  public static LookupIndex load(File index_file, String root,
+                                 /*@Nullable*/ /*@Regex*/ String comment_re,
+                                 /*@Nullable*/ /*@Regex(1)*/ String include_re,
+                                 /*@Regex(1)*/ Pattern entry_start_re,
+                                 Pattern entry_stop_re) throws IOException {
+    LookupIndex index = null;
+    if (index_file.exists()) {
+      try {
+        Object o = UtilMDE.readObject(index_file);
+        if (o instanceof LookupIndex) {
+          index = (LookupIndex) o;
+        }
+      } catch (ClassNotFoundException e) {
+        // Rebuild the index.
+      } catch (IOException e) {
+        // The index is corrupt, or was written by an incompatible version
+        // of this class.  Rebuild it.
+      }
+    }
+    @SuppressWarnings("regex") // entry_stop_re is a regex
+    /*@Regex*/ String stop = entry_stop_re.pattern();
+    if (index == null
+        || ! index.root.equals(root)
+        || ! equals(index.comment_re, comment_re)
+        || ! equals(index.include_re, include_re)
+        || ! index.entry_start_re.equals(entry_start_re.pattern())
+        || ! index.entry_stop_re.equals(stop)) {
+      index = new LookupIndex(root, comment_re, include_re, entry_start_re.pattern(), stop);
+      index.modified = true;
+    }
+    index.update();
+    if (index.modified) {
+      UtilMDE.writeObject(index, index_file);
+      index.modified = false;
+    }
+    return index;
+  }
+
+  /*@Pure*/ private static boolean equals(/*@Nullable*/ String s1, /*@Nullable*/ String s2) {
+    return (s1 == null) ? (s2 == null) : s1.equals(s2);
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Building and updating
+  ///
+
+  /**
+   * Bring the index up to date:  index every file in the tree that has
+   * changed or is not yet indexed, and drop the files that are no longer
+   * in the tree.
+   */
+  private void update() throws IOException {
+    Set<String> stale = new HashSet<String>();
+    for (Map.Entry<String,FileIndex> e : files.entrySet()) {
+      File file = new File(e.getKey());
+      FileIndex fi = e.getValue();
+      if (! file.exists()) {
+        stale.add(e.getKey());
+      } else if (file.lastModified() != fi.last_modified || file.length() != fi.length) {
+        byte[] digest = digest(e.getKey());
+        if (Arrays.equals(digest, fi.digest)) {
+          fi.last_modified = file.lastModified();
+          fi.length = file.length();
+          modified = true;
+        } else {
+          stale.add(e.getKey());
+        }
+      }
+    }
+
+    // Walk the tree from the root, indexing each file that needs it.
+    Set<String> visited = new HashSet<String>();
+    Deque<String> work = new ArrayDeque<String>();
+    work.push(root);
+    while (! work.isEmpty()) {
+      String filename = work.pop();
+      if (! visited.add(filename)) {
+        continue;
+      }
+      if (stale.contains(filename) || ! files.containsKey(filename)) {
+        index_tree(filename, stale);
+      }
+      FileIndex fi = files.get(filename);
+      assert fi != null : "@AssumeAssertion(nullness): just indexed";
+      for (String include : fi.includes) {
+        work.push(include);
+      }
+    }
+
+    if (files.keySet().retainAll(visited)) {
+      modified = true;
+    }
+  }
+
+  /**
+   * Read the tree of files rooted at start, and index each file in it
+   * that is stale or not yet indexed.
+   */
+  private void index_tree(String start, Set<String> stale) throws IOException {
+    // The trigrams of each entry of each file to be indexed, by line number
+    Map<String,SortedMap<Long,long[]>> collected = new HashMap<String,SortedMap<Long,long[]>>();
+    EntryReader reader = new_reader(start);
+    try {
+      for (Entry e = reader.get_entry(); e != null; e = reader.get_entry()) {
+        if (stale.contains(e.filename) || ! files.containsKey(e.filename)) {
+          SortedMap<Long,long[]> entries = collected.get(e.filename);
+          if (entries == null) {
+            entries = new TreeMap<Long,long[]>();
+            collected.put(e.filename, entries);
+          }
+          // A file included twice yields the same entries twice.  A long
+          // entry's first line is searched, but is not in the body if it
+          // matched entry_stop_re or was the start of another entry.
+          entries.put(e.line_number, union(trigrams(e.first_line), trigrams(e.body)));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    Set<String> visited = new HashSet<String>();
+    Deque<String> work = new ArrayDeque<String>();
+    work.push(start);
+    while (! work.isEmpty()) {
+      String filename = work.pop();
+      if (! visited.add(filename)) {
+        continue;
+      }
+      if (stale.contains(filename) || ! files.containsKey(filename)) {
+        SortedMap<Long,long[]> entries = collected.get(filename);
+        if (entries == null) {
+          entries = new TreeMap<Long,long[]>();
+        }
+        files.put(filename, index_file(filename, entries));
+        stale.remove(filename);
+        modified = true;
+      }
+      FileIndex fi = files.get(filename);
+      assert fi != null : "@AssumeAssertion(nullness): just indexed";
+      for (String include : fi.includes) {
+        work.push(include);
+      }
+    }
+  }
+
+  /** Create the index of one file, whose entries have the given trigrams. */
+  private FileIndex index_file(String filename, SortedMap<Long,long[]> entries)
+    throws IOException {
+    long[] entry_lines = new long[entries.size()];
+    long[][] entry_terms = new long[entries.size()][];
+    int i = 0;
+    for (Map.Entry<Long,long[]> e : entries.entrySet()) {
+      entry_lines[i] = e.getKey();
+      entry_terms[i] = e.getValue();
+      i++;
+    }
+
+    // Find the include directives, as EntryReader.readLine does.
+    List<Long> include_lines = new ArrayList<Long>();
+    List<String> includes = new ArrayList<String>();
+    if (include_re != null) {
+      Pattern include_pattern = Pattern.compile(include_re);
+      EntryReader reader = new EntryReader(filename, comment_re, null);
+      try {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          Matcher m = include_pattern.matcher(line);
+          if (m.matches()) {
+            String include_string = m.group(1);
+            if (include_string == null) {
+              throw new Error(String.format("include_re (%s) does not capture group 1 in %s",
+                                            include_re, line));
+            }
+            File include = new File(UtilMDE.expandFilename(include_string));
+            if (! include.isAbsolute()) {
+              include = new File(new File(filename).getParentFile(), include.toString());
+            }
+            include_lines.add((long) reader.getLineNumber());
+            includes.add(include.getAbsolutePath());
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    long[] include_line_array = new long[include_lines.size()];
+    for (int j=0; j<include_line_array.length; j++) {
+      include_line_array[j] = include_lines.get(j);
+    }
+
+    FileIndex result = new FileIndex(entry_lines, entry_terms, include_line_array,
+                                     includes.toArray(new String[includes.size()]));
+    File file = new File(filename);
+    result.last_modified = file.lastModified();
+    result.length = file.length();
+    result.digest = digest(filename);
+    return result;
+  }
+
+  /** Return the MD5 digest of the given file. */
+  private static byte[] digest(String filename) throws IOException {
+    try {
+      return Digest.getFileDigest(filename, MessageDigest.getInstance("MD5"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("MD5 is not available", e);
+    }
+  }
+
+  /** Return an EntryReader for the given file, with the options of this index. */
+  private EntryReader new_reader(String filename) throws IOException {
+    EntryReader reader = new EntryReader(filename, comment_re, include_re);
+    reader.set_entry_start_stop(entry_start_re, entry_stop_re);
+    return reader;
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Trigrams
+  ///
+
+  /**
+   * Return c with its case folded, so that characters that are equal
+   * ignoring case fold to the same character.
+   */
+  /*@Pure*/ static char fold(char c) {
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  /**
+   * Return the distinct trigrams of s, with case folded, in increasing
+   * order.  Each trigram is represented by its three characters, packed
+   * into a long.
+   * @param s the text whose trigrams to return
+   * @return the distinct trigrams of s
+   */
+  static long[] trigrams(CharSequence s) {
+    if (s.length() < 3) {
+      return new long[0];
+    }
+    long[] result = new long[s.length() - 2];
+    long c0 = fold(s.charAt(0));
+    long c1 = fold(s.charAt(1));
+    for (int i=2; i<s.length(); i++) {
+      long c2 = fold(s.charAt(i));
+      result[i - 2] = (c0 << 32) | (c1 << 16) | c2;
+      c0 = c1;
+      c1 = c2;
+    }
+    return sortedDistinct(result, result.length);
+  }
+
+  /** Return the distinct elements of a and b, in increasing order. */
+  private static long[] union(long[] a, long[] b) {
+    long[] both = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, both, a.length, b.length);
+    return sortedDistinct(both, both.length);
+  }
+
+  /** Return the distinct elements of a[0..length-1], in increasing order.  Sorts a. */
+  private static long[] sortedDistinct(long[] a, int length) {
+    Arrays.sort(a, 0, length);
+    int distinct = 0;
+    for (int i=0; i<length; i++) {
+      if (distinct == 0 || a[i] != a[distinct - 1]) {
+        a[distinct++] = a[i];
+      }
+    }
+    return Arrays.copyOf(a, distinct);
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Searching
+  ///
+
+  /**
+   * Return the entries that might contain every keyword, in the order in
+   * which EntryReader reads them from the tree.  This is a superset of
+   * the entries whose bodies contain every keyword, ignoring case.  Only
+   * these entries are read from the files.
+   * @param keywords the text keywords to search for
+   * @return the entries that might contain every keyword
+   * @throws IOException if there is a problem reading an entry file
+   */
+  public List<Entry> candidates(String[] keywords) throws IOException {
+    long[] query_terms = new long[0];
+    for (String keyword : keywords) {
+      query_terms = union(query_terms, trigrams(keyword));
+    }
+
+    // The candidates, in tree order, as (file, line number) pairs
+    List<String> candidate_files = new ArrayList<String>();
+    List<Long> candidate_lines = new ArrayList<Long>();
+    collect(root, query_terms, new HashSet<String>(), candidate_files, candidate_lines);
+
+    // Read each candidate entry once, in file order, from each file.
+    Map<String,SortedMap<Long,Entry>> fetched = new HashMap<String,SortedMap<Long,Entry>>();
+    for (int i=0; i<candidate_files.size(); i++) {
+      SortedMap<Long,Entry> entries = fetched.get(candidate_files.get(i));
+      if (entries == null) {
+        entries = new TreeMap<Long,Entry>();
+        fetched.put(candidate_files.get(i), entries);
+      }
+      entries.put(candidate_lines.get(i), null);
+    }
+    for (Map.Entry<String,SortedMap<Long,Entry>> f : fetched.entrySet()) {
+      fetch(f.getKey(), f.getValue());
+    }
+
+    List<Entry> result = new ArrayList<Entry>(candidate_files.size());
+    for (int i=0; i<candidate_files.size(); i++) {
+      SortedMap<Long,Entry> entries = fetched.get(candidate_files.get(i));
+      assert entries != null : "@AssumeAssertion(nullness): filled in above";
+      Entry e = entries.get(candidate_lines.get(i));
+      assert e != null : "@AssumeAssertion(nullness): filled in by fetch";
+      result.add(e);
+    }
+    return result;
+  }
+
+  /**
+   * Add the candidates in the tree rooted at filename to the lists, in
+   * the order in which EntryReader reads them.
+   * @param on_path the files that include filename, directly or
+   * indirectly; an include cycle is not followed
+   */
+  private void collect(String filename, long[] query_terms, Set<String> on_path,
+                       List<String> candidate_files, List<Long> candidate_lines) {
+    FileIndex fi = files.get(filename);
+    if (fi == null) {
+      throw new Error("File is not indexed: " + filename);
+    }
+    on_path.add(filename);
+    BitSet candidates = fi.candidates(query_terms);
+    int e = 0;
+    for (int k=0; k<=fi.includes.length; k++) {
+      // Entries of this file that precede include k (or the end of the file)
+      long limit = (k < fi.includes.length) ? fi.include_lines[k] : Long.MAX_VALUE;
+      for ( ; e < fi.entry_lines.length && fi.entry_lines[e] < limit; e++) {
+        if (candidates.get(e)) {
+          candidate_files.add(filename);
+          candidate_lines.add(fi.entry_lines[e]);
+        }
+      }
+      if (k < fi.includes.length && ! on_path.contains(fi.includes[k])) {
+        collect(fi.includes[k], query_terms, on_path, candidate_files, candidate_lines);
+      }
+    }
+    on_path.remove(filename);
+  }
+
+  /**
+   * Read the entries of the given file that start at the given lines,
+   * and record each in entries.
+   */
+  private void fetch(String filename, SortedMap<Long,Entry> entries) throws IOException {
+    EntryReader reader = null;
+    try {
+      for (Map.Entry<Long,Entry> me : entries.entrySet()) {
+        long line = me.getKey();
+        if (reader == null || ! reader.skip_to_line(line)) {
+          if (reader != null) {
+            reader.close();
+          }
+          reader = new_reader(filename);
+          reader.skip_to_line(line);
+        }
+        Entry e = reader.get_entry();
+        if (e == null || e.line_number != line || ! e.filename.equals(filename)) {
+          throw new Error(String.format("Index is out of date:  no entry at %s:%d",
+                                        filename, line));
+        }
+        me.setValue(e);
+      }
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+}
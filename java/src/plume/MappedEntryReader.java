@@ -0,0 +1,631 @@
+package plume;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.checker.regex.qual.*;
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * Reads lines and entries from memory-mapped files, with the same syntax
+ * as {@link EntryReader}:  include files, comments, and multi-line
+ * entries.  It is intended for very large files.
+ * <p>
+ *
+ * EntryReader creates a String for each line, and copies each entry's
+ * lines into a new String.  This class instead maps each file into memory
+ * and returns lines and entries as {@link CharSequence} views of the
+ * mapped bytes, so that reading an entry copies nothing.  A line or entry
+ * is decoded only if it contains non-ASCII characters, and then only when
+ * its characters are first examined.  An entry is copied only if the
+ * file's text must be altered to form it:  if a comment was removed from
+ * one of its lines, if a comment-only line or an included file interrupts
+ * it, or if entry_start_re removed text from its first line.
+ * <p>
+ *
+ * The files must be encoded in UTF-8 (or ASCII).  Lines are terminated by
+ * "\n", "\r", or "\r\n", as for {@link java.io.LineNumberReader}.  Unlike
+ * EntryReader, the body of an entry contains the line terminators of the
+ * file, and its last line has no terminator if the file does not end
+ * with one.  A view remains valid after the reader is closed.
+ * <p>
+ *
+ * Example use:
+ * <pre>
+ *  try (MappedEntryReader er = new MappedEntryReader(file, "^#.*", null)) {
+ *    for (MappedEntryReader.Entry e = er.get_entry(); e != null; e = er.get_entry()) {
+ *      ...
+ *    }
+ *  }
+ * </pre>
+ *
+ * @see EntryReader
+ */
+public class MappedEntryReader implements Closeable {
+
+  ///
+  /// User configuration variables
+  ///
+
+  /** Regular expression that specifies an include file. */
+  private final /*@Nullable*/ /*@Regex(1)*/ Pattern include_re;
+
+  /** Regular expression that matches a comment. */
+  private final /*@Nullable*/ Pattern comment_re;
+
+  /**
+   * Regular expression that starts a long entry.
+   * @see EntryReader#entry_start_re
+   */
+  public /*@MonotonicNonNull*/ /*@Regex(1)*/ Pattern entry_start_re = null;
+
+  /**
+   * @see #entry_start_re
+   */
+  public /*@MonotonicNonNull*/ Pattern entry_stop_re = null;
+
+  ///
+  /// Internal implementation variables
+  ///
+
+  /**
+   * Each file is mapped in windows of at most this many bytes, because a
+   * single mapping cannot exceed 2GB.  No line may be longer than this.
+   */
+  static final int WINDOW_SIZE = 1 << 30;
+
+  /** The size of the windows used for the files read by this reader. */
+  private final int window_size;
+
+  /** Stack of files being read.  Used to support include files. */
+  private final Stack<Source> sources = new Stack<Source>();
+
+  /** Line that is pushed back to be reread. */
+  private /*@Nullable*/ Line pushback_line = null;
+
+  ///
+  /// Helper classes
+  ///
+
+  /**
+   * A sequence of characters stored in a ByteBuffer in UTF-8.  If the
+   * bytes are all ASCII, each byte is one character; otherwise the bytes
+   * are decoded the first time a character is needed.
+   */
+  static final class ByteSlice implements CharSequence {
+    private final ByteBuffer buf;
+    private final int start;
+    private final int end;
+    private final boolean ascii;
+    /** The decoded characters, if not ascii and already decoded. */
+    private /*@Nullable*/ String decoded = null;
+
+    ByteSlice(ByteBuffer buf, int start, int end, boolean ascii) {
+      this.buf = buf;
+      this.start = start;
+      this.end = end;
+      this.ascii = ascii;
+    }
+
+    private String decoded() {
+      String result = decoded;
+      if (result == null) {
+        ByteBuffer bytes = buf.duplicate();
+        bytes.limit(end);
+        bytes.position(start);
+        result = StandardCharsets.UTF_8.decode(bytes).toString();
+        decoded = result;
+      }
+      return result;
+    }
+
+    /*@Pure*/ public int length() {
+      return ascii ? end - start : decoded().length();
+    }
+
+    /*@Pure*/ public char charAt(int index) {
+      if (!ascii) {
+        return decoded().charAt(index);
+      }
+      if (index < 0 || index >= end - start) {
+        throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+      }
+      return (char) buf.get(start + index);
+    }
+
+    /*@SideEffectFree*/ public CharSequence subSequence(int from, int to) {
+      if (!ascii) {
+        return decoded().subSequence(from, to);
+      }
+      if (from < 0 || from > to || to > end - start) {
+        throw new IndexOutOfBoundsException("subSequence(" + from + ", " + to + "), length " + (end - start));
+      }
+      return new ByteSlice(buf, start + from, start + to, true);
+    }
+
+    /*@SideEffectFree*/ public String toString() {
+      if (!ascii) {
+        return decoded();
+      }
+      byte[] bytes = new byte[end - start];
+      ByteBuffer dup = buf.duplicate();
+      dup.position(start);
+      dup.get(bytes);
+      return new String(bytes, StandardCharsets.US_ASCII);
+    }
+  }
+
+  /** A line that has been read, and where it came from. */
+  private static final class Line {
+    /** The text of the line, not including its terminator. */
+    final CharSequence text;
+    /** The file that contains the line. */
+    final Source source;
+    /** The line number of the line in its file. */
+    final int line_number;
+    /** The window that contains the line. */
+    final ByteBuffer buf;
+    /** The position in buf of the start of the line. */
+    final int start;
+    /** The position in buf of the line terminator. */
+    final int end;
+    /** The position in buf after the line terminator. */
+    final int next;
+    /** True if the bytes from start to next are all ASCII. */
+    final boolean ascii;
+    /** True if text is not the text of the file from start to end. */
+    final boolean modified;
+
+    Line(CharSequence text, Source source, int line_number, ByteBuffer buf,
+         int start, int end, int next, boolean ascii, boolean modified) {
+      this.text = text;
+      this.source = source;
+      this.line_number = line_number;
+      this.buf = buf;
+      this.start = start;
+      this.end = end;
+      this.next = next;
+      this.ascii = ascii;
+      this.modified = modified;
+    }
+
+    /** Return a copy of this line with different text. */
+    Line withText(String new_text) {
+      return new Line(new_text, source, line_number, buf, start, end, next, ascii, true);
+    }
+  }
+
+  /** A memory-mapped file, and the position of the next line in it. */
+  private static final class Source {
+    /** The file being read. */
+    final String filename;
+    final RandomAccessFile file;
+    final FileChannel channel;
+    final long size;
+    final int window_size;
+    /** The mapped part of the file. */
+    /*@MonotonicNonNull*/ ByteBuffer window;
+    /** The position in the file of the start of window. */
+    long window_base = 0;
+    /** The position in window of the next line. */
+    int pos = 0;
+    /** The number of lines read from the file. */
+    int line_number = 0;
+
+    Source(String filename, int window_size) throws IOException {
+      this.filename = filename;
+      this.window_size = window_size;
+      file = new RandomAccessFile(filename, "r");
+      channel = file.getChannel();
+      size = channel.size();
+      map(0);
+    }
+
+    /** Map the window that starts at the given position in the file. */
+    private void map(long base) throws IOException {
+      window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(window_size, size - base));
+      window_base = base;
+      pos = 0;
+    }
+
+    /** Return the next line of the file, or null at end of file. */
+    /*@Nullable*/ Line nextLine() throws IOException {
+      while (window_base + pos < size) {
+        ByteBuffer w = window;
+        assert w != null : "@AssumeAssertion(nullness): set by constructor";
+        int limit = w.limit();
+        int i = pos;
+        int high = 0;               // negative if any byte is non-ASCII
+        while (i < limit) {
+          byte b = w.get(i);
+          if (b == '\n' || b == '\r') {
+            break;
+          }
+          high |= b;
+          i++;
+        }
+        // The terminator, and the byte after it (which may complete a
+        // "\r\n"), must be in the window unless the file ends first.
+        if (i + 1 >= limit && window_base + limit < size) {
+          if (pos == 0) {
+            throw new IOException(String.format("%s: line %d is longer than %d bytes",
+                                                filename, line_number + 1, window_size));
+          }
+          map(window_base + pos);
+          continue;
+        }
+        int next = i;
+        if (i < limit) {
+          next = i + 1;
+          if (w.get(i) == '\r' && next < limit && w.get(next) == '\n') {
+            next++;
+          }
+        }
+        boolean ascii = (high >= 0);
+        Line result = new Line(new ByteSlice(w, pos, i, ascii), this, ++line_number, w,
+                               pos, i, next, ascii, false);
+        pos = next;
+        return result;
+      }
+      return null;
+    }
+
+    void close() throws IOException {
+      file.close();
+    }
+  }
+
+  /**
+   * Accumulates the body of an entry.  While the lines are contiguous in
+   * one window and unmodified, the body is a view of the window;
+   * otherwise it is copied.
+   */
+  private static final class BodyBuilder {
+    private /*@Nullable*/ ByteBuffer buf = null;
+    private int start;
+    private int end;
+    private boolean ascii = true;
+    private /*@Nullable*/ StringBuilder copy = null;
+
+    void append(Line l) {
+      if (copy == null) {
+        if (!l.modified && buf == null) {
+          buf = l.buf;
+          start = l.start;
+          end = l.next;
+          ascii = l.ascii;
+          return;
+        }
+        if (!l.modified && l.buf == buf && l.start == end) {
+          end = l.next;
+          ascii &= l.ascii;
+          return;
+        }
+        copy = new StringBuilder();
+        if (buf != null) {
+          copy.append(new ByteSlice(buf, start, end, ascii));
+        }
+      }
+      copy.append(l.text);
+      copy.append(new ByteSlice(l.buf, l.end, l.next, true));
+    }
+
+    CharSequence toCharSequence() {
+      if (copy != null) {
+        return copy.toString();
+      }
+      if (buf == null) {
+        return "";
+      }
+      return new ByteSlice(buf, start, end, ascii);
+    }
+  }
+
+  /** Descriptor for an entry (paragraph). */
+  public static class Entry {
+    /** First line of the entry. */
+    public final CharSequence first_line;
+    /** Complete body of the entry including the first line. */
+    public final CharSequence body;
+    /** True if this is a short entry (blank-line-separated). */
+    final boolean short_entry;
+    /** Filename in which the entry was found. */
+    final String filename;
+    /** Line number of first line of entry. */
+    final long line_number;
+
+    Entry(CharSequence first_line, CharSequence body, String filename, long line_number,
+          boolean short_entry) {
+      this.first_line = first_line;
+      this.body = body;
+      this.filename = filename;
+      this.line_number = line_number;
+      this.short_entry = short_entry;
+    }
+
+    /**
+     * Return an {@link EntryReader.Entry} with the same contents.  This
+     * copies the first line and body into Strings.
+     * @return an EntryReader.Entry with the same contents
+     */
+    public EntryReader.Entry toEntry() {
+      return new EntryReader.Entry(first_line.toString(), body.toString(), filename,
+                                   line_number, short_entry);
+    }
+  }
+
+  ///
+  /// Constructors
+  ///
+
+  /**
+   * Create a MappedEntryReader.
+   *
+   *    @param file       Initial file to read.
+   *    @param comment_re Regular expression that matches comments.
+   *                      Any text that matches comment_re is removed.
+   *                      A line that is entirely a comment is ignored.
+   *    @param include_re Regular expression that matches include directives.
+   *                      The expression should define one group that contains
+   *                      the include file name.
+   * @throws IOException if there is a problem reading the file
+   */
+  public MappedEntryReader(File file, /*@Nullable*/ /*@Regex*/ String comment_re,
+                           /*@Nullable*/ /*@Regex(1)*/ String include_re) throws IOException {
+    this(file, comment_re, include_re, WINDOW_SIZE);
+  }
+
+  /** Create a MappedEntryReader that does not support comments or include directives.
+   * @param file the file to read
+   * @throws IOException if there is a problem reading the file
+   */
+  public MappedEntryReader(File file) throws IOException {
+    this(file, null, null);
+  }
+
+  /**
+   * Create a MappedEntryReader that maps files in windows of the given
+   * size.  Used for testing.
+   */
+  MappedEntryReader(File file, /*@Nullable*/ /*@Regex*/ String comment_re,
+                    /*@Nullable*/ /*@Regex(1)*/ String include_re, int window_size) throws IOException {
+    this.window_size = window_size;
+    this.comment_re = (comment_re == null) ? null : Pattern.compile(comment_re);
+    this.include_re = (include_re == null) ? null : Pattern.compile(include_re);
+    sources.push(new Source(file.toString(), window_size));
+  }
+
+  ///
+  /// Methods
+  ///
+
+  /**
+   * Read a line, ignoring comments and processing includes, as
+   * {@link EntryReader#readLine} does.  Returns null at end of file.
+   * @return the line that was read, without its terminator, or null at
+   * end of file
+   * @throws IOException if there is a problem reading a file
+   */
+  public /*@Nullable*/ CharSequence readLine() throws IOException {
+    Line line = read_line();
+    return (line == null) ? null : line.text;
+  }
+
+  private /*@Nullable*/ Line read_line() throws IOException {
+    // If a line has been pushed back, return it instead
+    if (pushback_line != null) {
+      Line line = pushback_line;
+      pushback_line = null;
+      return line;
+    }
+
+    Line line = get_next_line();
+    if (comment_re != null) {
+      while (line != null) {
+        Matcher cmatch = comment_re.matcher(line.text);
+        if (cmatch.find()) {
+          String text = cmatch.replaceFirst("");
+          if (text.length() > 0) {
+            line = line.withText(text);
+            break;
+          }
+        } else {
+          break;
+        }
+        line = get_next_line();
+      }
+    }
+
+    if (line == null) {
+      return null;
+    }
+
+    // Handle include files.  Non-absolute pathnames are relative
+    // to the including file (the current file)
+    if (include_re != null) {
+      Matcher m = include_re.matcher(line.text);
+      if (m.matches()) {
+        String filename_string = m.group(1);
+        if (filename_string == null) {
+          throw new Error(String.format("include_re (%s) does not capture group 1 in %s",
+                                        include_re, line.text));
+        }
+        File filename = new File(UtilMDE.expandFilename(filename_string));
+        if (!filename.isAbsolute()) {
+          File current_parent = new File(line.source.filename).getParentFile();
+          filename = new File(current_parent, filename.toString());
+        }
+        sources.push(new Source(filename.getAbsolutePath(), window_size));
+        return read_line();
+      }
+    }
+
+    return line;
+  }
+
+  /**
+   * Reads the next line from the current file.  At the end of a file,
+   * closes it and pops out to the including file.  Returns null if there
+   * is no more input.
+   */
+  private /*@Nullable*/ Line get_next_line() throws IOException {
+    while (!sources.empty()) {
+      Line line = sources.peek().nextLine();
+      if (line != null) {
+        return line;
+      }
+      sources.pop().close();
+    }
+    return null;
+  }
+
+  /** Return true if cs is empty or contains only whitespace, as defined by String.trim(). */
+  /*@Pure*/ private static boolean isBlank(CharSequence cs) {
+    for (int i=0; i<cs.length(); i++) {
+      if (cs.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the next entry (paragraph) in the file, as
+   * {@link EntryReader#get_entry} does.  If no more entries are
+   * available, returns null.
+   * @return the next entry (paragraph) in the file
+   * @throws IOException if there is a problem reading a file
+   */
+  public /*@Nullable*/ Entry get_entry() throws IOException {
+
+    // Skip any preceding blank lines
+    Line line = read_line();
+    while ((line != null) && isBlank(line.text)) {
+      line = read_line();
+    }
+    if (line == null) {
+      return (null);
+    }
+
+    BodyBuilder body = new BodyBuilder();
+    Source source = line.source;
+    String filename = source.filename;
+    long line_number = line.line_number;
+
+    // If first line matches entry_start_re, this is a long entry.
+    /*@Regex(1)*/ Matcher entry_match = null;
+    if (entry_start_re != null) {
+      entry_match = entry_start_re.matcher(line.text);
+    }
+    if ((entry_match != null) && entry_match.find()) {
+      assert entry_start_re != null : "@AssumeAssertion(nullness): dependent: entry_match != null";
+      assert entry_stop_re != null : "@AssumeAssertion(nullness): dependent: entry_start_re != null";
+
+      // Remove entry match from the line
+      if (entry_match.groupCount() > 0) {
+        @SuppressWarnings("nullness") // dependent: just checked that group 1 exists via groupCount()
+        /*@NonNull*/ String match_group_1 = entry_match.group(1);
+        line = line.withText(entry_match.replaceFirst(match_group_1));
+      }
+
+      // Description is the first line
+      CharSequence description = line.text;
+
+      // Read until we find the termination of the entry
+      Matcher end_entry_match = entry_stop_re.matcher(line.text);
+      while ((line != null)
+             && !entry_match.find()
+             && !end_entry_match.find()
+             && line.source == source) {
+        body.append(line);
+        line = read_line();
+        if (line == null) {
+          break; // end of file serves as entry terminator
+        }
+        entry_match = entry_start_re.matcher(line.text);
+        end_entry_match = entry_stop_re.matcher(line.text);
+      }
+
+      // If this entry was terminated by the start of the next one,
+      // put that line back
+      if ((line != null) && (entry_match.find(0) || line.source != source)) {
+        pushback_line = line;
+      }
+
+      return new Entry(description, body.toCharSequence(), filename, line_number, false);
+
+    } else { // blank-separated entry
+
+      CharSequence description = line.text;
+
+      // Read until we find another blank line
+      while ((line != null) && !isBlank(line.text) && line.source == source) {
+        body.append(line);
+        line = read_line();
+      }
+
+      // If this entry was terminated by the start of a new input file
+      // put that line back
+      if ((line != null) && line.source != source) {
+        pushback_line = line;
+      }
+
+      return new Entry(description, body.toCharSequence(), filename, line_number, true);
+    }
+  }
+
+  /**
+   * Returns the current filename.
+   * @return the current filename
+   */
+  public String getFileName() {
+    if (sources.empty()) {
+      throw new Error("Past end of input");
+    }
+    return sources.peek().filename;
+  }
+
+  /**
+   * Return the current line number in the current file.
+   * @return the current line number
+   */
+  public int getLineNumber() {
+    if (sources.empty()) {
+      throw new Error("Past end of input");
+    }
+    return sources.peek().line_number;
+  }
+
+  /**
+   * Set the regular expressions for the start and stop of long
+   * entries (multiple lines that are read as a group by get_entry()).
+   * @param entry_start_re regular expression that starts a long entry
+   * @param entry_stop_re regular expression that ends a long entry
+   */
+  public void set_entry_start_stop(/*@Regex(1)*/ String entry_start_re,
+                                    /*@Regex*/ String entry_stop_re) {
+    this.entry_start_re = Pattern.compile(entry_start_re);
+    this.entry_stop_re = Pattern.compile(entry_stop_re);
+  }
+
+  /**
+   * Close every file still being read.
+   * @throws IOException if there is a problem closing a file
+   */
+  public void close() throws IOException {
+    while (!sources.empty()) {
+      sources.pop().close();
+    }
+  }
+}
@@ -26,6 +26,10 @@ import java.util.Random;
  * iteration to be sampled. Then, call valuesIter() to receive an
  * iteration of all the values selected by the random selection.
  *
+ * <p>A MultiRandSelector is not thread-safe, and it keeps a selector for
+ * every bucket it has seen.  {@link ConcurrentMultiRandSelector} samples
+ * in parallel and bounds the memory used.
+ *
  * @param <T> the type of elements to be selected among
  *
  * @see RandomSelector
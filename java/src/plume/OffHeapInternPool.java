@@ -0,0 +1,432 @@
+package plume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A canonicalization pool for large numbers of <code>long[]</code> or
+ * <code>double[]</code> arrays, whose contents are stored outside the Java
+ * heap.  It is an alternative to {@link Intern#intern(long[])} and
+ * {@link Intern#intern(double[])} for programs that intern so many
+ * arrays that the canonical arrays themselves crowd the heap.
+ * <p>
+ *
+ * Interning an array copies its contents into a direct
+ * {@link ByteBuffer} (if no equal array has been interned before) and
+ * returns a <em>handle</em>:  a <code>long</code> that identifies the
+ * canonical contents.  Two arrays have equal contents if and only if
+ * their handles are <code>==</code>.  The contents can be read one element
+ * at a time, or copied back into a new heap array.  The hash index is also
+ * stored off the heap, so the heap footprint of the pool does not grow
+ * with the number of arrays interned.
+ * <p>
+ *
+ * Unlike the tables in {@link Intern}, the pool is not weak:  an array
+ * stays in the pool until {@link #clear} is called.  Handles from before
+ * the call to <code>clear</code> are invalid afterward.
+ * <p>
+ *
+ * There is one concrete subclass per array type:  {@link LongArrays} and
+ * {@link DoubleArrays}.
+ * <p>
+ *
+ * This class is not synchronized.
+ */
+public abstract class OffHeapInternPool {
+
+  /** Default size, in bytes, of each storage segment. */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /** Initial number of slots in the index; must be a power of two. */
+  private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+  /**
+   * Largest number of slots in the index (a 1GB direct buffer, the
+   * largest power of two that a direct buffer can hold).
+   */
+  private static final int MAX_INDEX_CAPACITY = 1 << 27;
+
+  /** Size of an entry's header:  its hash code and its length. */
+  private static final int HEADER_SIZE = 8;
+
+  /** Size, in bytes, of each storage segment. */
+  private final int segmentSize;
+
+  /**
+   * Storage for the contents of the arrays.  A handle is the index of a
+   * segment in the high 32 bits, and the offset of the entry within the
+   * segment in the low 32 bits.  Each entry is a header (int hash code,
+   * int length) followed by the elements, 8 bytes each.
+   */
+  private List<ByteBuffer> segments;
+
+  /** The offset of the first free byte in the last segment. */
+  private int fill;
+
+  /**
+   * Open-addressing hash index from contents to handles.  Each slot holds
+   * a handle plus one, or 0 if the slot is empty.
+   */
+  private ByteBuffer index;
+
+  /** The number of slots in the index; a power of two. */
+  private int indexCapacity;
+
+  /** The number of distinct arrays in the pool. */
+  private int size;
+
+  /**
+   * The largest number of slots in the index; a power of two.  Lowered
+   * only by tests, so that they can fill the index.
+   */
+  int maxIndexCapacity = MAX_INDEX_CAPACITY;
+
+  /** Create a new, empty pool with the default segment size. */
+  protected OffHeapInternPool() {
+    this(DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Create a new, empty pool.
+   * @param segmentSize the size, in bytes, of each storage segment.
+   * Larger arrays are stored in segments of their own.
+   */
+  protected OffHeapInternPool(int segmentSize) {
+    if (segmentSize < HEADER_SIZE) {
+      throw new IllegalArgumentException("segment size too small: " + segmentSize);
+    }
+    this.segmentSize = segmentSize;
+    clear();
+  }
+
+  /**
+   * Remove every array from the pool, and release its off-heap storage
+   * (once the garbage collector reclaims the buffers).  All previously
+   * returned handles become invalid.
+   */
+  public void clear() {
+    segments = new ArrayList<ByteBuffer>();
+    fill = segmentSize;         // forces a new segment on the next append
+    indexCapacity = INITIAL_INDEX_CAPACITY;
+    index = allocate(indexCapacity * 8);
+    size = 0;
+  }
+
+  private static ByteBuffer allocate(int bytes) {
+    return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Return the number of distinct arrays in the pool.
+   * @return the number of distinct arrays in the pool
+   */
+  /*@Pure*/ public int size() {
+    return size;
+  }
+
+  /**
+   * Return the number of bytes of off-heap storage in use, including
+   * the index.
+   * @return the number of bytes of off-heap storage in use
+   */
+  /*@Pure*/ public long offHeapBytes() {
+    long result = index.capacity();
+    for (ByteBuffer seg : segments) {
+      result += seg.capacity();
+    }
+    return result;
+  }
+
+  /**
+   * Return the number of elements in the array with the given handle.
+   * @param handle a handle returned by this pool
+   * @return the length of the array with the given handle
+   */
+  /*@Pure*/ public int length(long handle) {
+    return segment(handle).getInt(offset(handle) + 4);
+  }
+
+  /*@Pure*/ private ByteBuffer segment(long handle) {
+    return segments.get((int) (handle >>> 32));
+  }
+
+  /*@Pure*/ private static int offset(long handle) {
+    return (int) handle;
+  }
+
+  /**
+   * Return element i, as raw bits, of the array with the given handle.
+   * @param handle a handle returned by this pool
+   * @param i the index of the element
+   * @return element i of the array with the given handle
+   */
+  protected final long word(long handle, int i) {
+    if (i < 0 || i >= length(handle)) {
+      throw new IndexOutOfBoundsException("index " + i + ", length " + length(handle));
+    }
+    return segment(handle).getLong(offset(handle) + HEADER_SIZE + 8 * i);
+  }
+
+  /**
+   * Copy the contents of the array with the given handle into words.
+   * @param handle a handle returned by this pool
+   * @param words an array whose length is <code>length(handle)</code>
+   */
+  protected final void words(long handle, long[] words) {
+    ByteBuffer seg = segment(handle);
+    int base = offset(handle) + HEADER_SIZE;
+    for (int i=0; i<words.length; i++) {
+      words[i] = seg.getLong(base + 8 * i);
+    }
+  }
+
+  /**
+   * Return a hash code for the given words.
+   */
+  /*@Pure*/ private static int hash(long[] words) {
+    int result = 1;
+    for (long w : words) {
+      result = 31 * result + (int) (w ^ (w >>> 32));
+    }
+    return result;
+  }
+
+  /*@Pure*/ private static int slot(int hash, int mask) {
+    int h = hash * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /** Return true if the entry with the given handle holds exactly words. */
+  /*@Pure*/ private boolean entryEquals(long handle, int hash, long[] words) {
+    ByteBuffer seg = segment(handle);
+    int off = offset(handle);
+    if (seg.getInt(off) != hash || seg.getInt(off + 4) != words.length) {
+      return false;
+    }
+    int base = off + HEADER_SIZE;
+    for (int i=0; i<words.length; i++) {
+      if (seg.getLong(base + 8 * i) != words[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return the handle for the given contents, adding them to the pool if
+   * they are not already present.
+   * @param words the contents, as raw bits
+   * @return the handle for the given contents
+   */
+  protected final long internWords(long[] words) {
+    int hash = hash(words);
+    int mask = indexCapacity - 1;
+    int i = slot(hash, mask);
+    for ( ; ; i = (i + 1) & mask) {
+      long slotValue = index.getLong(8 * i);
+      if (slotValue == 0) {
+        break;
+      }
+      if (entryEquals(slotValue - 1, hash, words)) {
+        return slotValue - 1;
+      }
+    }
+    // Grow the index before storing the entry, so that if the pool is
+    // full, it is left unchanged.
+    if ((size + 1) * 3 > indexCapacity * 2) {
+      growIndex();
+      long handle = append(hash, words);
+      insertInIndex(handle, hash);
+      size++;
+      return handle;
+    }
+    long handle = append(hash, words);
+    index.putLong(8 * i, handle + 1);
+    size++;
+    return handle;
+  }
+
+  /** Copy the entry into storage, and return its handle. */
+  private long append(int hash, long[] words) {
+    if (words.length > (Integer.MAX_VALUE - HEADER_SIZE) / 8) {
+      throw new IllegalArgumentException("array too large: " + words.length);
+    }
+    int entrySize = HEADER_SIZE + 8 * words.length;
+    if (entrySize > segmentSize - fill) {
+      segments.add(allocate(Math.max(entrySize, segmentSize)));
+      fill = 0;
+    }
+    int segIndex = segments.size() - 1;
+    ByteBuffer seg = segments.get(segIndex);
+    int off = fill;
+    seg.putInt(off, hash);
+    seg.putInt(off + 4, words.length);
+    int base = off + HEADER_SIZE;
+    for (int i=0; i<words.length; i++) {
+      seg.putLong(base + 8 * i, words[i]);
+    }
+    if (entrySize > segmentSize) {
+      // The entry has a segment of its own; start a new one next time.
+      fill = segmentSize;
+    } else {
+      fill += entrySize;
+    }
+    return (((long) segIndex) << 32) | off;
+  }
+
+  /** Put the handle in the first empty slot of its probe sequence. */
+  private void insertInIndex(long handle, int hash) {
+    int mask = indexCapacity - 1;
+    int i = slot(hash, mask);
+    while (index.getLong(8 * i) != 0) {
+      i = (i + 1) & mask;
+    }
+    index.putLong(8 * i, handle + 1);
+  }
+
+  /**
+   * Double the capacity of the index.  Hash codes are read from the entry
+   * headers, so array contents are not re-hashed.  If the index cannot
+   * grow, it is left unchanged.
+   */
+  private void growIndex() {
+    if (indexCapacity >= maxIndexCapacity) {
+      throw new IllegalStateException("OffHeapInternPool is full: " + size + " arrays");
+    }
+    long newCapacity = 2L * indexCapacity;
+    // Allocate before changing any field, in case allocation fails.
+    ByteBuffer newIndex = allocate((int) (newCapacity * 8));
+    ByteBuffer oldIndex = index;
+    int oldCapacity = indexCapacity;
+    indexCapacity = (int) newCapacity;
+    index = newIndex;
+    for (int i=0; i<oldCapacity; i++) {
+      long slotValue = oldIndex.getLong(8 * i);
+      if (slotValue != 0) {
+        long handle = slotValue - 1;
+        insertInIndex(handle, segment(handle).getInt(offset(handle)));
+      }
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Specializations
+  ///
+
+  /** An off-heap canonicalization pool for long[] arrays. */
+  public static final class LongArrays extends OffHeapInternPool {
+    /** Create a new, empty pool with the default segment size. */
+    public LongArrays() {
+      super();
+    }
+
+    /**
+     * Create a new, empty pool.
+     * @param segmentSize the size, in bytes, of each storage segment
+     */
+    public LongArrays(int segmentSize) {
+      super(segmentSize);
+    }
+
+    /**
+     * Return the handle for the contents of a, copying them into the pool
+     * if no equal array has been interned.
+     * @param a the array to canonicalize
+     * @return a handle that is == for arrays with equal contents
+     */
+    public long intern(long[] a) {
+      return internWords(a);
+    }
+
+    /**
+     * Return element i of the array with the given handle.
+     * @param handle a handle returned by {@link #intern}
+     * @param i the index of the element
+     * @return element i of the array
+     */
+    public long get(long handle, int i) {
+      return word(handle, i);
+    }
+
+    /**
+     * Return a new heap array with the contents for the given handle.
+     * @param handle a handle returned by {@link #intern}
+     * @return a new array equal to the one that was interned
+     */
+    public long[] toArray(long handle) {
+      long[] result = new long[length(handle)];
+      words(handle, result);
+      return result;
+    }
+  }
+
+  /**
+   * An off-heap canonicalization pool for double[] arrays.  Elements are
+   * compared as in {@link Intern#intern(double[])}:  with
+   * <code>==</code>, except that NaN equals NaN.  Because +0.0 equals -0.0,
+   * both are stored, and returned, as +0.0.
+   */
+  public static final class DoubleArrays extends OffHeapInternPool {
+    /** Create a new, empty pool with the default segment size. */
+    public DoubleArrays() {
+      super();
+    }
+
+    /**
+     * Create a new, empty pool.
+     * @param segmentSize the size, in bytes, of each storage segment
+     */
+    public DoubleArrays(int segmentSize) {
+      super(segmentSize);
+    }
+
+    /**
+     * Return the handle for the contents of a, copying them into the pool
+     * if no equal array has been interned.
+     * @param a the array to canonicalize
+     * @return a handle that is == for arrays with equal contents
+     */
+    public long intern(double[] a) {
+      long[] words = new long[a.length];
+      for (int i=0; i<a.length; i++) {
+        // doubleToLongBits maps every NaN to the same value.
+        words[i] = (a[i] == 0.0) ? 0L : Double.doubleToLongBits(a[i]);
+      }
+      return internWords(words);
+    }
+
+    /**
+     * Return element i of the array with the given handle.
+     * @param handle a handle returned by {@link #intern}
+     * @param i the index of the element
+     * @return element i of the array
+     */
+    public double get(long handle, int i) {
+      return Double.longBitsToDouble(word(handle, i));
+    }
+
+    /**
+     * Return a new heap array with the contents for the given handle.
+     * @param handle a handle returned by {@link #intern}
+     * @return a new array equal to the one that was interned
+     */
+    public double[] toArray(long handle) {
+      long[] words = new long[length(handle)];
+      words(handle, words);
+      double[] result = new double[words.length];
+      for (int i=0; i<words.length; i++) {
+        result[i] = Double.longBitsToDouble(words[i]);
+      }
+      return result;
+    }
+  }
+
+}
@@ -1,6 +1,7 @@
 package plume;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -24,6 +25,18 @@ import java.util.Random;
  * <p>A second mode allows for a fixed probability of randomly keeping
  *  each item as opposed to a fixed number of samples.
  *
+ * <p>In fixed sample mode, a selector may instead be created to skip
+ * ahead:  rather than drawing a random number for every element, it draws
+ * a few random numbers each time it selects an element, to compute how
+ * many of the following elements to skip (Li's Algorithm L).  The
+ * selection has the same distribution, but the number of random draws
+ * grows with the logarithm of the number of elements rather than
+ * linearly.  acceptSkip() takes advantage of this to pass over skipped
+ * elements of an iterator without examining them.
+ *
+ * <p>A RandomSelector is not thread-safe.  To select from elements
+ * accepted by multiple threads, use {@link ConcurrentRandomSelector}.
+ *
  * <P>SPECFIELDS:
  * <BR>current_values  : Set : The values chosen based on the Objects observed
  * <BR>number_observed : int : The number of Objects observed
@@ -31,6 +44,7 @@ import java.util.Random;
  * <BR>keep_probability: double :  The percentage of elements to keep
  * <BR>selector_mode :
  *       {FIXED,PERCENT}  : either fixed amount of samples or fixed percent.
+ * <BR>skip_mode       : boolean : In FIXED mode, whether to skip ahead
  *
  * <P>Example use:
  * <br> // randomly selects 100 lines of text from a file
@@ -64,14 +78,22 @@ public class RandomSelector<T> {
     // 4. AF(keep_probability) = this.keep_probability
     // 5. AF(selector_mode) = fixed amount if coin_toss_mode == true
     //                        fixed percentage if coin_toss_mode == false
+    // 6. AF(skip_mode) = this.skip_mode
 
     private int num_elts = -1;
-    private int observed;
+    private long observed;
     private Random generator;
     private ArrayList<T> values;
     private boolean coin_toss_mode = false;
     private double keep_probability = -1.0;
 
+    // In skip mode, once values is full:  the value of 'observed' at which
+    // the next element will be selected, and Algorithm L's W (the largest
+    // of num_elts random keys seen so far, on a multiplicative scale).
+    private boolean skip_mode = false;
+    private long next_selected;
+    private double w;
+
 
     /** @param num_elts The number of elements intended to be selected
      * from the input elements
@@ -96,6 +118,20 @@ public class RandomSelector<T> {
         generator = r;
     }
 
+    /** @param num_elts The number of elements intended to be selected
+     * from the input elements.
+     * @param r The seed to give for random number generation.
+     * @param skip_mode Whether to compute how many elements to skip
+     * between selections, instead of drawing a random number for every
+     * element.
+     *
+     * Sets 'number_to_take' = num_elts
+     */
+    public RandomSelector(int num_elts, Random r, boolean skip_mode) {
+        this (num_elts, r);
+        this.skip_mode = skip_mode;
+    }
+
     /** @param keep_probability The probability that each element is
      * selected from the oncoming Iteration.
      * @param r The seed to give for random number generation.
@@ -135,6 +171,21 @@ public class RandomSelector<T> {
             return;
         }
 
+        if (skip_mode) {
+            observed++;
+            if (values.size() < num_elts) {
+                values.add(next);
+                if (values.size() == num_elts) {
+                    w = 1.0;
+                    advance();
+                }
+            } else if (observed == next_selected) {
+                values.set(generator.nextInt(num_elts), next);
+                advance();
+            }
+            return;
+        }
+
         // in fixed sample mode, the i-th element has a k/i chance
         // of being accepted where k is number_to_take.
         if (generator.nextDouble() < ((double) num_elts / (++observed))) {
@@ -148,6 +199,49 @@ public class RandomSelector<T> {
         // do nothing if the probability condition is not met
     }
 
+    /** In skip mode, computes the next element to be selected, after
+     * values has filled up or an element has been selected.
+     */
+    private void advance() {
+        // 1 - nextDouble() is in (0, 1], so its log is finite.
+        w *= Math.exp(Math.log(1 - generator.nextDouble()) / num_elts);
+        double skip = Math.floor(Math.log(1 - generator.nextDouble()) / Math.log(1 - w));
+        // Casting to long saturates; then the selector simply never
+        // selects again, which is the right limit.
+        long skip_count = (long) skip;
+        next_selected = (skip_count >= Long.MAX_VALUE - observed
+                         ? Long.MAX_VALUE
+                         : observed + skip_count + 1);
+    }
+
+    /** Accepts every element of iter, as if by calling accept() on each.
+     * In skip mode, elements that are skipped are passed over with
+     * iter.next(), with no random draw and no other work.
+     *
+     * @param iter the elements to be added to this selector
+     */
+    public void acceptSkip(Iterator<? extends T> iter) {
+        if (!skip_mode || coin_toss_mode) {
+            while (iter.hasNext()) {
+                accept(iter.next());
+            }
+            return;
+        }
+        while (iter.hasNext()) {
+            if (values.size() == num_elts) {
+                // Pass over the elements before the next one selected.
+                while (observed + 1 < next_selected && iter.hasNext()) {
+                    iter.next();
+                    observed++;
+                }
+                if (!iter.hasNext()) {
+                    return;
+                }
+            }
+            accept(iter.next());
+        }
+    }
+
     /** Returns current_values, modifies none.
      * @return current_values
      */
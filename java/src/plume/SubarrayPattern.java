@@ -0,0 +1,487 @@
+package plume;
+
+import java.util.List;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A subarray to search for, preprocessed so that each search takes time
+ * linear in the length of the array being searched.  The search uses the
+ * Knuth-Morris-Pratt algorithm:  it never re-examines an element of the
+ * searched array, whereas a naive search may examine each element once for
+ * each element of the subarray.
+ * <p>
+ *
+ * Creating a pattern takes time linear in the length of the subarray.  To
+ * search for the same subarray many times, create the pattern once and
+ * reuse it.  For a single search, {@link ArraysMDE#indexOf(int[], int[])}
+ * and its overloadings are convenient.
+ * <p>
+ *
+ * There is one concrete subclass per element type:  {@link Ints},
+ * {@link Longs}, {@link Doubles}, {@link Booleans}, {@link Objects}
+ * (which compares elements with <code>equals</code>), and
+ * {@link ObjectsEq} (which compares elements with <code>==</code>).
+ * A pattern does not copy its subarray, which must not be changed while
+ * the pattern is in use.
+ */
+public abstract class SubarrayPattern {
+
+  /**
+   * For each q, the length of the longest proper prefix of the subarray's
+   * first q elements that is also a suffix of them; -1 for q = 0.
+   * After matching q elements and then failing, a search continues as if
+   * it had matched border[q] elements.
+   */
+  int /*@MonotonicNonNull*/ [] border;
+
+  /** The length of the subarray. */
+  private final int length;
+
+  /**
+   * @param length the length of the subarray
+   */
+  SubarrayPattern(int length) {
+    this.length = length;
+  }
+
+  /**
+   * Return true if elements i and j of the subarray are equal.
+   * @param i an index into the subarray
+   * @param j an index into the subarray
+   * @return true if elements i and j of the subarray are equal
+   */
+  abstract boolean subarrayEquals(int i, int j);
+
+  /**
+   * Compute the border table.  Each subclass constructor calls this after
+   * setting the subarray.
+   */
+  final void computeBorders() {
+    border = new int[length + 1];
+    border[0] = -1;
+    int k = -1;
+    for (int q=0; q<length; q++) {
+      while (k >= 0 && !subarrayEquals(k, q)) {
+        k = border[k];
+      }
+      k++;
+      border[q + 1] = k;
+    }
+  }
+
+  /**
+   * Return the length of the subarray.
+   * @return the length of the subarray
+   */
+  /*@Pure*/ public int length() {
+    return length;
+  }
+
+  /**
+   * Check the fromIndex argument of a search.
+   * @param fromIndex the index at which to start a search
+   * @return the index at which to start the search
+   */
+  private static int checkFromIndex(int fromIndex) {
+    if (fromIndex < 0) {
+      throw new IndexOutOfBoundsException("Negative fromIndex: " + fromIndex);
+    }
+    return fromIndex;
+  }
+
+  // Each indexIn method runs the same loop.  While matching, q is the
+  // number of elements of the subarray matched so far.
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Specializations
+  ///
+
+  /** A pattern for an int[] subarray. */
+  public static final class Ints extends SubarrayPattern {
+    private final int[] sub;
+
+    /**
+     * Create a pattern for the given subarray.
+     * @param sub the subarray to search for
+     */
+    public Ints(int[] sub) {
+      super(sub.length);
+      this.sub = sub;
+      computeBorders();
+    }
+
+    boolean subarrayEquals(int i, int j) {
+      return sub[i] == sub[j];
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * @param a the array to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(int[] a) {
+      return indexIn(a, 0);
+    }
+
+    /**
+     * Return the first index, at or after fromIndex, at which the subarray
+     * occurs in a, or -1.
+     * @param a the array to search
+     * @param fromIndex the index at which to start the search
+     * @return the first index i &ge; fromIndex at which the subarray
+     * starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(int[] a, int fromIndex) {
+      int m = sub.length;
+      int q = 0;
+      for (int j=checkFromIndex(fromIndex); j<a.length; j++) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && sub[q] != a[j]) {
+          q = border[q];
+        }
+        q++;
+      }
+      return (q == m && fromIndex <= a.length) ? a.length - m : -1;
+    }
+  }
+
+  /** A pattern for a long[] subarray. */
+  public static final class Longs extends SubarrayPattern {
+    private final long[] sub;
+
+    /**
+     * Create a pattern for the given subarray.
+     * @param sub the subarray to search for
+     */
+    public Longs(long[] sub) {
+      super(sub.length);
+      this.sub = sub;
+      computeBorders();
+    }
+
+    boolean subarrayEquals(int i, int j) {
+      return sub[i] == sub[j];
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * @param a the array to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(long[] a) {
+      return indexIn(a, 0);
+    }
+
+    /**
+     * Return the first index, at or after fromIndex, at which the subarray
+     * occurs in a, or -1.
+     * @param a the array to search
+     * @param fromIndex the index at which to start the search
+     * @return the first index i &ge; fromIndex at which the subarray
+     * starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(long[] a, int fromIndex) {
+      int m = sub.length;
+      int q = 0;
+      for (int j=checkFromIndex(fromIndex); j<a.length; j++) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && sub[q] != a[j]) {
+          q = border[q];
+        }
+        q++;
+      }
+      return (q == m && fromIndex <= a.length) ? a.length - m : -1;
+    }
+  }
+
+  /**
+   * A pattern for a double[] subarray.  As in
+   * {@link ArraysMDE#isSubarray(double[], double[], int)}, elements are
+   * compared with <code>==</code>:  NaN matches nothing, and 0.0 matches
+   * -0.0.
+   */
+  public static final class Doubles extends SubarrayPattern {
+    private final double[] sub;
+
+    /**
+     * Create a pattern for the given subarray.
+     * @param sub the subarray to search for
+     */
+    public Doubles(double[] sub) {
+      super(sub.length);
+      this.sub = sub;
+      computeBorders();
+    }
+
+    boolean subarrayEquals(int i, int j) {
+      return sub[i] == sub[j];
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * @param a the array to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(double[] a) {
+      return indexIn(a, 0);
+    }
+
+    /**
+     * Return the first index, at or after fromIndex, at which the subarray
+     * occurs in a, or -1.
+     * @param a the array to search
+     * @param fromIndex the index at which to start the search
+     * @return the first index i &ge; fromIndex at which the subarray
+     * starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(double[] a, int fromIndex) {
+      int m = sub.length;
+      int q = 0;
+      for (int j=checkFromIndex(fromIndex); j<a.length; j++) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && sub[q] != a[j]) {
+          q = border[q];
+        }
+        q++;
+      }
+      return (q == m && fromIndex <= a.length) ? a.length - m : -1;
+    }
+  }
+
+  /** A pattern for a boolean[] subarray. */
+  public static final class Booleans extends SubarrayPattern {
+    private final boolean[] sub;
+
+    /**
+     * Create a pattern for the given subarray.
+     * @param sub the subarray to search for
+     */
+    public Booleans(boolean[] sub) {
+      super(sub.length);
+      this.sub = sub;
+      computeBorders();
+    }
+
+    boolean subarrayEquals(int i, int j) {
+      return sub[i] == sub[j];
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * @param a the array to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(boolean[] a) {
+      return indexIn(a, 0);
+    }
+
+    /**
+     * Return the first index, at or after fromIndex, at which the subarray
+     * occurs in a, or -1.
+     * @param a the array to search
+     * @param fromIndex the index at which to start the search
+     * @return the first index i &ge; fromIndex at which the subarray
+     * starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(boolean[] a, int fromIndex) {
+      int m = sub.length;
+      int q = 0;
+      for (int j=checkFromIndex(fromIndex); j<a.length; j++) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && sub[q] != a[j]) {
+          q = border[q];
+        }
+        q++;
+      }
+      return (q == m && fromIndex <= a.length) ? a.length - m : -1;
+    }
+  }
+
+  /**
+   * A pattern for a subarray of objects, which are compared using their
+   * <code>equals</code> methods.  The subarray, and the arrays or lists to
+   * search, may contain null.
+   */
+  public static final class Objects extends SubarrayPattern {
+    private final /*@Nullable*/ Object[] sub;
+
+    /**
+     * Create a pattern for the given subarray.
+     * @param sub the subarray to search for
+     */
+    public Objects(/*@Nullable*/ Object[] sub) {
+      super(sub.length);
+      this.sub = sub;
+      computeBorders();
+    }
+
+    /**
+     * Create a pattern for the given sublist.
+     * @param sub the sublist to search for
+     */
+    public Objects(List<?> sub) {
+      this(sub.toArray());
+    }
+
+    /*@Pure*/ private static boolean eq(/*@Nullable*/ Object o1, /*@Nullable*/ Object o2) {
+      return (o1 == null) ? (o2 == null) : o1.equals(o2);
+    }
+
+    boolean subarrayEquals(int i, int j) {
+      return eq(sub[i], sub[j]);
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * @param a the array to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(/*@Nullable*/ Object[] a) {
+      return indexIn(a, 0);
+    }
+
+    /**
+     * Return the first index, at or after fromIndex, at which the subarray
+     * occurs in a, or -1.
+     * @param a the array to search
+     * @param fromIndex the index at which to start the search
+     * @return the first index i &ge; fromIndex at which the subarray
+     * starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(/*@Nullable*/ Object[] a, int fromIndex) {
+      int m = sub.length;
+      int q = 0;
+      for (int j=checkFromIndex(fromIndex); j<a.length; j++) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && !eq(sub[q], a[j])) {
+          q = border[q];
+        }
+        q++;
+      }
+      return (q == m && fromIndex <= a.length) ? a.length - m : -1;
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * The list is traversed once, with its iterator.
+     * @param a the list to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(List<?> a) {
+      int m = sub.length;
+      int q = 0;
+      int j = 0;
+      for (Object elt : a) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && !eq(sub[q], elt)) {
+          q = border[q];
+        }
+        q++;
+        j++;
+      }
+      return (q == m) ? j - m : -1;
+    }
+  }
+
+  /**
+   * A pattern for a subarray of objects, which are compared using
+   * <code>==</code> (not the <code>equals</code> method).
+   */
+  public static final class ObjectsEq extends SubarrayPattern {
+    private final /*@Nullable*/ Object[] sub;
+
+    /**
+     * Create a pattern for the given subarray.
+     * @param sub the subarray to search for
+     */
+    public ObjectsEq(/*@Nullable*/ Object[] sub) {
+      super(sub.length);
+      this.sub = sub;
+      computeBorders();
+    }
+
+    /**
+     * Create a pattern for the given sublist.
+     * @param sub the sublist to search for
+     */
+    public ObjectsEq(List<?> sub) {
+      this(sub.toArray());
+    }
+
+    boolean subarrayEquals(int i, int j) {
+      return sub[i] == sub[j];
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * @param a the array to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(/*@Nullable*/ Object[] a) {
+      return indexIn(a, 0);
+    }
+
+    /**
+     * Return the first index, at or after fromIndex, at which the subarray
+     * occurs in a, or -1.
+     * @param a the array to search
+     * @param fromIndex the index at which to start the search
+     * @return the first index i &ge; fromIndex at which the subarray
+     * starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(/*@Nullable*/ Object[] a, int fromIndex) {
+      int m = sub.length;
+      int q = 0;
+      for (int j=checkFromIndex(fromIndex); j<a.length; j++) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && sub[q] != a[j]) {
+          q = border[q];
+        }
+        q++;
+      }
+      return (q == m && fromIndex <= a.length) ? a.length - m : -1;
+    }
+
+    /**
+     * Return the first index at which the subarray occurs in a, or -1.
+     * The list is traversed once, with its iterator.
+     * @param a the list to search
+     * @return the first index at which the subarray starts in a, or -1
+     */
+    /*@Pure*/ public int indexIn(List<?> a) {
+      int m = sub.length;
+      int q = 0;
+      int j = 0;
+      for (Object elt : a) {
+        if (q == m) {
+          return j - m;
+        }
+        while (q >= 0 && sub[q] != elt) {
+          q = border[q];
+        }
+        q++;
+        j++;
+      }
+      return (q == m) ? j - m : -1;
+    }
+  }
+}
@@ -0,0 +1,534 @@
+package plume;
+
+import java.util.Arrays;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A set of subarrays to search for at once, preprocessed so that a single
+ * pass over an array finds every occurrence of every subarray.  The search
+ * uses the Aho-Corasick algorithm:  it takes time linear in the length of
+ * the searched array plus the number of matches reported, no matter how
+ * many subarrays the set contains.
+ * <p>
+ *
+ * To find which of many candidate subarrays occur in an array, this is
+ * much faster than calling {@link ArraysMDE#indexOf(int[], int[])} (or
+ * {@link SubarrayPattern}) once per candidate, which scans the array once
+ * per candidate.  Creating the set takes time linear in the total length
+ * of the subarrays; to search many arrays, create the set once and reuse
+ * it.
+ * <p>
+ *
+ * Subarrays are identified by their index in the list given to the
+ * constructor.  There is one concrete subclass per element type:
+ * {@link Ints}, {@link Longs}, and {@link Chars}, which searches for
+ * substrings of a CharSequence.  The set copies the elements of the
+ * subarrays, so they may be changed after it is created.  A set is
+ * immutable once created, and may be used by multiple threads at once.
+ */
+public abstract class SubarrayPatternSet {
+
+  /**
+   * Receives the matches found by a search.
+   * @see Ints#scan(int[], MatchHandler)
+   * @see Longs#scan(long[], MatchHandler)
+   * @see Chars#scan(CharSequence, MatchHandler)
+   */
+  public static interface MatchHandler {
+    /**
+     * Called once for each occurrence of a subarray.  Matches are
+     * reported in order of the index at which they end.
+     * @param pattern the index of the subarray that occurs
+     * @param start the index at which the occurrence starts
+     * @return true to continue the search, false to stop it
+     */
+    boolean match(int pattern, int start);
+  }
+
+  /** The value of a field that refers to no state or no pattern. */
+  private static final int NONE = -1;
+
+  /** The start state:  the state for the empty prefix. */
+  static final int ROOT = 0;
+
+  /** The length of each subarray. */
+  private final int[] lengths;
+
+  // The states of the automaton are the prefixes of the subarrays; they
+  // are numbered in order of creation, so ROOT is 0.
+
+  /** The number of states. */
+  private int numStates = 1;
+
+  /**
+   * For each state, the state for the longest proper suffix of its prefix
+   * that is also a prefix of some subarray.  A search follows these links
+   * when it cannot extend the current prefix.
+   */
+  private final int[] fail;
+
+  /**
+   * For each state, the index of a subarray that equals its prefix, or
+   * NONE.  Other subarrays equal to the same prefix are chained through
+   * samePattern.
+   */
+  private final int[] output;
+
+  /**
+   * For each state, the nearest state reachable through fail links whose
+   * output is not NONE, or NONE.  Following these links visits every
+   * subarray that ends at the current position.
+   */
+  private final int[] outputLink;
+
+  /** For each state other than ROOT, the state for its prefix minus its last element. */
+  private int /*@Nullable*/ [] parent;
+
+  /** For each state other than ROOT, the last element of its prefix. */
+  private long /*@Nullable*/ [] lastSymbol;
+
+  /** For each subarray, the next subarray that equals it, or NONE. */
+  private final int[] samePattern;
+
+  // The transitions of the trie, in an open-addressing hash table keyed on
+  // (state, symbol).  A free slot has transitionState NONE.  Storing all
+  // transitions in one table keeps each lookup constant-time without
+  // allocating a map for each state.
+
+  private final int[] transitionState;
+  private final long[] transitionSymbol;
+  private final int[] transitionTarget;
+
+  /**
+   * The largest total length of the subarrays in a set.  There is at
+   * most one transition per element, and the transition table, which
+   * never grows, must keep a load factor of at most 1/2.
+   */
+  static final int MAX_TOTAL_LENGTH = IntHashSet.MAX_CAPACITY / 2;
+
+  /**
+   * @param numPatterns the number of subarrays in the set
+   * @param totalLength the total length of the subarrays; at most
+   * MAX_TOTAL_LENGTH
+   */
+  SubarrayPatternSet(int numPatterns, int totalLength) {
+    lengths = new int[numPatterns];
+    samePattern = new int[numPatterns];
+    int capacity = totalLength + 1;
+    fail = new int[capacity];
+    output = new int[capacity];
+    outputLink = new int[capacity];
+    parent = new int[capacity];
+    lastSymbol = new long[capacity];
+    Arrays.fill(output, NONE);
+    // Keep the load factor at most 1/2, so that probe runs are short.
+    int tableSize = IntHashSet.tableCapacity(totalLength);
+    transitionState = new int[tableSize];
+    transitionSymbol = new long[tableSize];
+    transitionTarget = new int[tableSize];
+    Arrays.fill(transitionState, NONE);
+  }
+
+  /**
+   * Return the number of subarrays in the set.
+   * @return the number of subarrays in the set
+   */
+  /*@Pure*/ public int size() {
+    return lengths.length;
+  }
+
+  /**
+   * Return the length of the given subarray.
+   * @param pattern the index of a subarray
+   * @return the length of the subarray
+   */
+  /*@Pure*/ public int length(int pattern) {
+    return lengths[pattern];
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Construction
+  ///
+
+  /*@Pure*/ private static int transitionIndex(int state, long symbol, int mask) {
+    long h = (symbol + state * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  /**
+   * Return the state reached from the given state by the given symbol in
+   * the trie, or NONE.
+   */
+  /*@Pure*/ private int transition(int state, long symbol) {
+    int mask = transitionState.length - 1;
+    for (int i = transitionIndex(state, symbol, mask);
+         transitionState[i] != NONE;
+         i = (i + 1) & mask) {
+      if (transitionState[i] == state && transitionSymbol[i] == symbol) {
+        return transitionTarget[i];
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Return the state reached from the given state by the given symbol in
+   * the trie, creating it if necessary.  Each subclass constructor calls
+   * this, starting from ROOT, for each element of each subarray.
+   */
+  final int extend(int state, long symbol) {
+    int mask = transitionState.length - 1;
+    int i = transitionIndex(state, symbol, mask);
+    while (transitionState[i] != NONE) {
+      if (transitionState[i] == state && transitionSymbol[i] == symbol) {
+        return transitionTarget[i];
+      }
+      i = (i + 1) & mask;
+    }
+    int target = numStates++;
+    parent[target] = state;
+    lastSymbol[target] = symbol;
+    transitionState[i] = state;
+    transitionSymbol[i] = symbol;
+    transitionTarget[i] = target;
+    return target;
+  }
+
+  /**
+   * Record that the given subarray ends at the given state.  Each
+   * subclass constructor calls this for each subarray.
+   */
+  final void setOutput(int pattern, int state, int length) {
+    lengths[pattern] = length;
+    samePattern[pattern] = output[state];
+    output[state] = pattern;
+  }
+
+  /**
+   * Compute the fail and output links.  Each subclass constructor calls
+   * this after adding every subarray.
+   */
+  final void computeLinks() {
+    // A state's links refer to shorter prefixes, so compute them in order
+    // of prefix length.
+    int[] depth = new int[numStates];
+    int maxDepth = 0;
+    for (int s=1; s<numStates; s++) {
+      // A parent is always created before its children.
+      depth[s] = depth[parent[s]] + 1;
+      maxDepth = Math.max(maxDepth, depth[s]);
+    }
+    int[] byDepth = new int[numStates];
+    int[] count = new int[maxDepth + 2];
+    for (int s=0; s<numStates; s++) {
+      count[depth[s] + 1]++;
+    }
+    for (int d=1; d<count.length; d++) {
+      count[d] += count[d - 1];
+    }
+    for (int s=0; s<numStates; s++) {
+      byDepth[count[depth[s]]++] = s;
+    }
+
+    fail[ROOT] = ROOT;
+    outputLink[ROOT] = NONE;
+    for (int i=1; i<numStates; i++) {
+      int s = byDepth[i];
+      int f = ROOT;
+      if (parent[s] != ROOT) {
+        f = step(fail[parent[s]], lastSymbol[s]);
+      }
+      fail[s] = f;
+      outputLink[s] = (output[f] != NONE) ? f : outputLink[f];
+    }
+
+    // Release the arrays that are used only during construction.
+    parent = null;
+    lastSymbol = null;
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Searching
+  ///
+
+  /**
+   * Return the state for the longest suffix of (the prefix of state,
+   * followed by symbol) that is a prefix of some subarray.
+   */
+  /*@Pure*/ final int step(int state, long symbol) {
+    while (true) {
+      int next = transition(state, symbol);
+      if (next != NONE) {
+        return next;
+      }
+      if (state == ROOT) {
+        return ROOT;
+      }
+      state = fail[state];
+    }
+  }
+
+  /**
+   * Report every subarray that ends at the given position, which the
+   * search has reached in the given state.
+   * @return false if the handler asked to stop the search
+   */
+  final boolean report(int state, int end, MatchHandler handler) {
+    int s = (output[state] != NONE) ? state : outputLink[state];
+    for ( ; s != NONE; s = outputLink[s]) {
+      for (int p = output[s]; p != NONE; p = samePattern[p]) {
+        if (!handler.match(p, end - lengths[p])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return true if some subarray ends at the given position.
+   */
+  /*@Pure*/ final boolean hasOutput(int state) {
+    return output[state] != NONE || outputLink[state] != NONE;
+  }
+
+  /**
+   * Records the first index of each subarray, and stops the search once
+   * every subarray has been found.
+   */
+  static final class FirstIndexes implements MatchHandler {
+    final int[] result;
+    private int remaining;
+
+    FirstIndexes(int numPatterns) {
+      result = new int[numPatterns];
+      Arrays.fill(result, -1);
+      remaining = numPatterns;
+    }
+
+    public boolean match(int pattern, int start) {
+      // All occurrences of a subarray have the same length, so the first
+      // one to end is the first one to start.
+      if (result[pattern] == -1) {
+        result[pattern] = start;
+        remaining--;
+      }
+      return remaining > 0;
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Specializations
+  ///
+
+  // Each scan method runs the same loop.  The empty subarray, if present,
+  // ends at every position, including position 0.
+
+  /** A set of int[] subarrays. */
+  public static final class Ints extends SubarrayPatternSet {
+
+    /**
+     * Create a set of the given subarrays.
+     * @param subs the subarrays to search for
+     */
+    public Ints(int[]... subs) {
+      super(subs.length, totalLength(subs));
+      for (int p=0; p<subs.length; p++) {
+        int s = ROOT;
+        for (int x : subs[p]) {
+          s = extend(s, x);
+        }
+        setOutput(p, s, subs[p].length);
+      }
+      computeLinks();
+    }
+
+    private static int totalLength(int[][] subs) {
+      long result = 0;
+      for (int[] sub : subs) {
+        result += sub.length;
+      }
+      if (result > MAX_TOTAL_LENGTH) {
+        throw new IllegalArgumentException("Subarrays are too long: " + result);
+      }
+      return (int) result;
+    }
+
+    /**
+     * Report every occurrence, in a, of every subarray in the set.
+     * @param a the array to search
+     * @param handler receives the matches
+     */
+    public void scan(int[] a, MatchHandler handler) {
+      int state = ROOT;
+      if (!report(state, 0, handler)) {
+        return;
+      }
+      for (int j=0; j<a.length; j++) {
+        state = step(state, a[j]);
+        if (hasOutput(state) && !report(state, j + 1, handler)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * For each subarray in the set, return the first index at which it
+     * occurs in a, or -1.  The result is the same as calling
+     * {@link ArraysMDE#indexOf(int[], int[])} once per subarray, but a
+     * is scanned only once, and the scan stops as soon as every subarray
+     * has been found.
+     * @param a the array to search
+     * @return an array whose element i is the first index at which
+     * subarray i starts in a, or -1
+     */
+    /*@Pure*/ public int[] indexesIn(int[] a) {
+      FirstIndexes result = new FirstIndexes(size());
+      if (size() > 0) {
+        scan(a, result);
+      }
+      return result.result;
+    }
+  }
+
+  /** A set of long[] subarrays. */
+  public static final class Longs extends SubarrayPatternSet {
+
+    /**
+     * Create a set of the given subarrays.
+     * @param subs the subarrays to search for
+     */
+    public Longs(long[]... subs) {
+      super(subs.length, totalLength(subs));
+      for (int p=0; p<subs.length; p++) {
+        int s = ROOT;
+        for (long x : subs[p]) {
+          s = extend(s, x);
+        }
+        setOutput(p, s, subs[p].length);
+      }
+      computeLinks();
+    }
+
+    private static int totalLength(long[][] subs) {
+      long result = 0;
+      for (long[] sub : subs) {
+        result += sub.length;
+      }
+      if (result > MAX_TOTAL_LENGTH) {
+        throw new IllegalArgumentException("Subarrays are too long: " + result);
+      }
+      return (int) result;
+    }
+
+    /**
+     * Report every occurrence, in a, of every subarray in the set.
+     * @param a the array to search
+     * @param handler receives the matches
+     */
+    public void scan(long[] a, MatchHandler handler) {
+      int state = ROOT;
+      if (!report(state, 0, handler)) {
+        return;
+      }
+      for (int j=0; j<a.length; j++) {
+        state = step(state, a[j]);
+        if (hasOutput(state) && !report(state, j + 1, handler)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * For each subarray in the set, return the first index at which it
+     * occurs in a, or -1.  The result is the same as calling
+     * {@link ArraysMDE#indexOf(long[], long[])} once per subarray, but a
+     * is scanned only once, and the scan stops as soon as every subarray
+     * has been found.
+     * @param a the array to search
+     * @return an array whose element i is the first index at which
+     * subarray i starts in a, or -1
+     */
+    /*@Pure*/ public int[] indexesIn(long[] a) {
+      FirstIndexes result = new FirstIndexes(size());
+      if (size() > 0) {
+        scan(a, result);
+      }
+      return result.result;
+    }
+  }
+
+  /** A set of substrings of a CharSequence. */
+  public static final class Chars extends SubarrayPatternSet {
+
+    /**
+     * Create a set of the given substrings.
+     * @param subs the substrings to search for
+     */
+    public Chars(CharSequence... subs) {
+      super(subs.length, totalLength(subs));
+      for (int p=0; p<subs.length; p++) {
+        int s = ROOT;
+        for (int i=0; i<subs[p].length(); i++) {
+          s = extend(s, subs[p].charAt(i));
+        }
+        setOutput(p, s, subs[p].length());
+      }
+      computeLinks();
+    }
+
+    private static int totalLength(CharSequence[] subs) {
+      long result = 0;
+      for (CharSequence sub : subs) {
+        result += sub.length();
+      }
+      if (result > MAX_TOTAL_LENGTH) {
+        throw new IllegalArgumentException("Substrings are too long: " + result);
+      }
+      return (int) result;
+    }
+
+    /**
+     * Report every occurrence, in a, of every substring in the set.
+     * @param a the sequence to search
+     * @param handler receives the matches
+     */
+    public void scan(CharSequence a, MatchHandler handler) {
+      int state = ROOT;
+      if (!report(state, 0, handler)) {
+        return;
+      }
+      for (int j=0; j<a.length(); j++) {
+        state = step(state, a.charAt(j));
+        if (hasOutput(state) && !report(state, j + 1, handler)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * For each substring in the set, return the first index at which it
+     * occurs in a, or -1.  The result is the same as calling
+     * {@link String#indexOf(String)} once per substring, but a is
+     * scanned only once, and the scan stops as soon as every substring
+     * has been found.
+     * @param a the sequence to search
+     * @return an array whose element i is the first index at which
+     * substring i starts in a, or -1
+     */
+    /*@Pure*/ public int[] indexesIn(CharSequence a) {
+      FirstIndexes result = new FirstIndexes(size());
+      if (size() > 0) {
+        scan(a, result);
+      }
+      return result.result;
+    }
+  }
+}
@@ -40,20 +40,35 @@ import org.checkerframework.checker.signature.qual.*;
 // Files to test:
 // ArraysMDE.java
 // ClassFileVersion.java
+// ConcurrentMultiRandSelector.java
+// ConcurrentRandomSelector.java
+// ConcurrentWeakIdentityHashMap.java
 // CountingPrintWriter.java
 // Digest.java
+// EntryReader.java
 // FileIOException.java
 // FuzzyFloat.java
 // GraphMDE.java
 // Hasher.java
+// IntHashSet.java
 // Intern.java
 // ICalAvailable.java
 // LimitedSizeIntSet.java
+// LimitedSizeSet.java
+// Lookup.java
+// LookupIndex.java
+// LongHashSet.java
+// MappedEntryReader.java
 // MathMDE.java
+// OffHeapInternPool.java
 // Options.java
 // OrderedPairIterator.java
+// RandomSelector.java
 // StringBuilderDelimited.java
+// SubarrayPattern.java
+// SubarrayPatternSet.java
 // UtilMDE.java
+// WeakArrayInternTable.java
 // WeakHasherMap.java
 
 /** Test code for the plume package. */
@@ -221,6 +236,42 @@ public final class TestPlume extends TestCase {
     assert ArraysMDE.element_range(new int[] { 3,-2,1 }) == 5;
     assert ArraysMDE.element_range(new int[] { 3 }) == 0;
 
+    // Lengths that exercise the unrolled loops and their remainders
+    for (int len=1; len<12; len++) {
+      int[] ia = new int[len];
+      long[] la = new long[len];
+      double[] da = new double[len];
+      for (int i=0; i<len; i++) {
+        ia[i] = (i * 7) % len - len / 2;
+        la[i] = ia[i] * 10000000000L;
+        da[i] = ia[i] + 0.5;
+      }
+      int imin = Integer.MAX_VALUE;
+      int imax = Integer.MIN_VALUE;
+      int isum = 0;
+      for (int elt : ia) {
+        imin = Math.min(imin, elt);
+        imax = Math.max(imax, elt);
+        isum += elt;
+      }
+      assert ArraysMDE.min(ia) == imin;
+      assert ArraysMDE.max(ia) == imax;
+      assert_arrays_equals(ArraysMDE.min_max(ia), new int[] { imin, imax });
+      assert ArraysMDE.element_range(ia) == imax - imin;
+      assert ArraysMDE.sum(ia) == isum;
+      assert ArraysMDE.min(la) == imin * 10000000000L;
+      assert ArraysMDE.max(la) == imax * 10000000000L;
+      assert Arrays.equals(ArraysMDE.min_max(la),
+                           new long[] { imin * 10000000000L, imax * 10000000000L });
+      assert ArraysMDE.min(da) == imin + 0.5;
+      assert ArraysMDE.max(da) == imax + 0.5;
+    }
+    assert Double.isNaN(ArraysMDE.min(new double[] { 1, 2, 3, 4, Double.NaN, 6 }));
+    assert ArraysMDE.min(new Double[] { 1.5, 1.25, 1.75 }) == 1.25;
+    assert ArraysMDE.max(new Double[] { 1.5, 1.75, 1.25 }) == 1.75;
+    assert 6 == ArraysMDE.sum(new int[][] {{1}, {2, 3}});
+    assert 6 == ArraysMDE.sum(new double[][] {{1}, {2, 3}});
+
     // public static int indexOf(Object[] a, Object elt)
     // public static int indexOfEq(Object[] a, Object elt)
     {
@@ -470,6 +521,62 @@ public final class TestPlume extends TestCase {
     assert ArraysMDE.noDuplicates(new String[] {"  ", " "})
                 == true;
 
+    // Larger arrays, which are checked with a bit set or a hash set
+    // rather than pairwise.
+    for (int n : new int[] { 17, 1000, 5000 }) {
+      int[] dense = new int[n];
+      int[] sparse = new int[n];
+      long[] ldense = new long[n];
+      long[] lsparse = new long[n];
+      double[] da = new double[n];
+      float[] fa = new float[n];
+      char[] ca = new char[n];
+      short[] sa = new short[n];
+      for (int i=0; i<n; i++) {
+        dense[i] = n - 2 * i;
+        sparse[i] = i * 1000003;
+        ldense[i] = dense[i];
+        lsparse[i] = i * 1000000007L * 1000000007L;
+        da[i] = i / 3.0;
+        fa[i] = i / 3.0f;
+        ca[i] = (char) (i * 7);
+        sa[i] = (short) (i * 7 - 20000);
+      }
+      assert ArraysMDE.noDuplicates(dense);
+      assert ArraysMDE.noDuplicates(sparse);
+      assert ArraysMDE.noDuplicates(ldense);
+      assert ArraysMDE.noDuplicates(lsparse);
+      assert ArraysMDE.noDuplicates(da);
+      assert ArraysMDE.noDuplicates(fa);
+      assert ArraysMDE.noDuplicates(ca);
+      assert ArraysMDE.noDuplicates(sa);
+      dense[n-1] = dense[0];
+      sparse[n-1] = sparse[n/2];
+      ldense[n-1] = ldense[3];
+      lsparse[n-1] = lsparse[0];
+      da[n-1] = da[1];
+      fa[n-1] = fa[1];
+      ca[n-1] = ca[2];
+      sa[n-1] = sa[2];
+      assert !ArraysMDE.noDuplicates(dense);
+      assert !ArraysMDE.noDuplicates(sparse);
+      assert !ArraysMDE.noDuplicates(ldense);
+      assert !ArraysMDE.noDuplicates(lsparse);
+      assert !ArraysMDE.noDuplicates(da);
+      assert !ArraysMDE.noDuplicates(fa);
+      assert !ArraysMDE.noDuplicates(ca);
+      assert !ArraysMDE.noDuplicates(sa);
+    }
+    assert ArraysMDE.noDuplicates(new long[] { Long.MIN_VALUE, Long.MAX_VALUE, 0 });
+    assert ArraysMDE.noDuplicates(new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE, 0 });
+    // Double.equals distinguishes 0.0 from -0.0, and equates NaNs.
+    assert ArraysMDE.noDuplicates(new double[] { 0.0, -0.0 });
+    assert !ArraysMDE.noDuplicates(new double[] { Double.NaN, Double.NaN });
+    assert ArraysMDE.noDuplicates(new byte[] { -128, 0, 127 });
+    assert !ArraysMDE.noDuplicates(new byte[300]);
+    assert ArraysMDE.noDuplicates(new boolean[] { true, false });
+    assert !ArraysMDE.noDuplicates(new boolean[] { true, false, true });
+
     // public static boolean fn_is_permutation(int[] a)
     assert ArraysMDE.fn_is_permutation(new int[] { 0, 1, 2, 3 }) == true;
     assert ArraysMDE.fn_is_permutation(new int[] { 1, 2, 3, 0 }) == true;
@@ -602,6 +709,21 @@ public final class TestPlume extends TestCase {
       assert !ArraysMDE.isSubset(a1, a6);
     }
 
+    {
+      long[] small = new long[] { 3, -1 };
+      long[] big = new long[100];
+      for (int i=0; i<big.length; i++) {
+        big[i] = i - 50;
+      }
+      assert ArraysMDE.isSubset(small, big);
+      assert ArraysMDE.isSubset(new long[] { 0 }, small) == false;
+      assert ArraysMDE.isSubset(big, new long[] { 7 }) == false;
+      small[1] = 1L << 40;
+      assert ArraysMDE.isSubset(small, big) == false;
+      assert ArraysMDE.isSubset(new double[] { -0.0 }, new double[] { 0.0 }) == false;
+      assert ArraysMDE.isSubset(new double[] { Double.NaN }, new double[] { 0.0 / 0.0 });
+    }
+
     // public static class IntArrayComparatorLexical implements Comparator
     // public static class IntArrayComparatorLengthFirst implements Comparator
     {
@@ -1138,6 +1260,171 @@ public final class TestPlume extends TestCase {
     }
   }
 
+  // Tests that concurrent interning yields a single canonical object.
+  public static void testInternThreadSafe() throws InterruptedException {
+    final int nthreads = 4;
+    final int nvalues = 1000;
+    final int[][][] results = new int[nthreads][nvalues][];
+    Thread[] threads = new Thread[nthreads];
+    Intern.setThreadSafe(true);
+    try {
+      for (int t=0; t<nthreads; t++) {
+        final int[][] myResults = results[t];
+        threads[t] = new Thread() {
+            public void run() {
+              for (int i=0; i<nvalues; i++) {
+                myResults[i] = Intern.intern(new int[] { i, -i, 20151030 });
+              }
+            }
+          };
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } finally {
+      Intern.setThreadSafe(false);
+    }
+    for (int i=0; i<nvalues; i++) {
+      for (int t=1; t<nthreads; t++) {
+        assert results[t][i] == results[0][i];
+      }
+      assert results[0][i] == Intern.intern(new int[] { i, -i, 20151030 });
+    }
+  }
+
+  public static void testInternElements() {
+    // Large enough to be hashed in parallel
+    int n = 10000;
+    int[][] ia = new int[n][];
+    long[][] la = new long[n][];
+    for (int i=0; i<n; i++) {
+      ia[i] = new int[] { i % 100, 20151101 };
+      la[i] = new long[] { i % 100, 20151101 };
+    }
+    ia[5] = null;
+    assert Intern.internElements(ia) == ia;
+    Intern.internElements(la);
+    assert ia[5] == null;
+    for (int i=0; i<n; i++) {
+      if (i != 5) {
+        assert ia[i] == Intern.intern(new int[] { i % 100, 20151101 });
+      }
+      assert la[i] == Intern.intern(new long[] { i % 100, 20151101 });
+    }
+
+    double[][] da = new double[][] { { 0.0, 20151101 }, { -0.0, 20151101 } };
+    Intern.internElements((Object[]) da);
+    assert da[0] == da[1];
+    assert da[0] == Intern.intern(new double[] { 0.0, 20151101 });
+
+    Object[] oa = new Object[] { new Integer(20151101), new int[] { 20151101 },
+                                 null, new String("20151101") };
+    Intern.internElements(oa);
+    assert oa[0] == Intern.intern(new Integer(20151101));
+    assert oa[1] == Intern.intern(new int[] { 20151101 });
+    assert oa[2] == null;
+    assert oa[3] == "20151101";
+  }
+
+  public static void testInternStatistics() {
+    Intern.Statistics stats = Intern.statistics();
+    stats.reset();
+    stats.setEnabled(true);
+    try {
+      int[] first = Intern.intern(new int[] { 20151031, 1 });
+      Intern.intern(new int[] { 20151031, 1 });
+      Intern.intern(new int[] { 20151031, 1 });
+      assert first == Intern.intern(new int[] { 20151031, 1 });
+      assert stats.getHits("int[]") == 3;
+      assert stats.getMisses("int[]") == 1;
+      assert stats.getBytesSaved("int[]") == 3 * (16 + 4 * 2);
+      assert stats.getAverageProbeLength("int[]") >= 1.0;
+      // Re-interning the canonical object is a hit, but saves nothing.
+      assert first == Intern.intern(first);
+      assert stats.getHits("int[]") == 4;
+      assert stats.getMisses("int[]") == 1;
+      assert stats.getBytesSaved("int[]") == 3 * (16 + 4 * 2);
+      Long l = Intern.intern(new Long(20151031L));
+      assert l == Intern.intern(l);
+      assert stats.getHits("Long") == 1;
+      assert stats.getMisses("Long") == 1;
+      assert stats.getBytesSaved("Long") == 0;
+      Intern.internSubsequence(first, 0, 1);
+      Intern.internSubsequence(first, 0, 1);
+      assert stats.getHits("int[] subsequence") == 1;
+      assert stats.getMisses("int[] subsequence") == 1;
+      assert stats.getReport().contains("int[] subsequence");
+      try {
+        stats.getHits("java.awt.Point");
+        throw new Error("Didn't throw IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+      }
+    } finally {
+      stats.setEnabled(false);
+    }
+    stats.reset();
+    Intern.intern(new int[] { 20151031, 1 });
+    assert stats.getHits("int[]") == 0;
+  }
+
+  public static void testOffHeapInternPool() {
+    // Small segments, so that the test exercises multiple segments.
+    OffHeapInternPool.LongArrays pool = new OffHeapInternPool.LongArrays(256);
+    long[] handles = new long[3000];
+    for (int i=0; i<handles.length; i++) {
+      handles[i] = pool.intern(new long[] { i, -i, i * 1000000007L });
+    }
+    assert pool.size() == handles.length;
+    for (int i=0; i<handles.length; i++) {
+      assert pool.intern(new long[] { i, -i, i * 1000000007L }) == handles[i];
+      assert pool.get(handles[i], 2) == i * 1000000007L;
+    }
+    long[] big = new long[100];
+    big[99] = 99;
+    long bigHandle = pool.intern(big);
+    assert pool.intern(big.clone()) == bigHandle;
+    assert Arrays.equals(pool.toArray(bigHandle), big);
+    assert pool.length(bigHandle) == 100;
+    assert pool.length(pool.intern(new long[0])) == 0;
+    assert pool.size() == handles.length + 2;
+
+    OffHeapInternPool.DoubleArrays dpool = new OffHeapInternPool.DoubleArrays();
+    long dh = dpool.intern(new double[] { -0.0, Double.NaN, 3.5 });
+    assert dpool.intern(new double[] { 0.0, 0.0 / 0.0, 3.5 }) == dh;
+    assert dpool.intern(new double[] { 0.0, 0.0 / 0.0 }) != dh;
+    assert dpool.get(dh, 2) == 3.5;
+    assert Double.isNaN(dpool.toArray(dh)[1]);
+    dpool.clear();
+    assert dpool.size() == 0;
+
+    // Fill the index to its largest capacity.  The pool then refuses new
+    // arrays, but is unchanged and still usable.
+    OffHeapInternPool.LongArrays full = new OffHeapInternPool.LongArrays();
+    full.maxIndexCapacity = 2048;
+    List<Long> fullHandles = new ArrayList<Long>();
+    try {
+      for (long i=0; ; i++) {
+        fullHandles.add(full.intern(new long[] { i }));
+      }
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assert full.size() == fullHandles.size();
+    assert full.size() > 1024 && full.size() <= 2048 : full.size();
+    for (int i=0; i<fullHandles.size(); i++) {
+      assert full.intern(new long[] { i }) == fullHandles.get(i);
+      assert full.get(fullHandles.get(i), 0) == i;
+    }
+    try {
+      full.intern(new long[] { -1 });
+      assert false;
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assert full.size() == fullHandles.size();
+  }
+
   // Add 100 elements randomly selected from the range 0..limit-1 to the set.
   private static void lsis_add_elts(int limit, LimitedSizeSet<Integer> s) {
     Random r = new Random(20140613);
@@ -1173,11 +1460,139 @@ public final class TestPlume extends TestCase {
   }
 
 
+  // Return a copy of the object, made by serializing and deserializing it.
+  private static Object serialize_round_trip(Object o) {
+    try {
+      java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+      java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+      out.writeObject(o);
+      out.close();
+      return new java.io.ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    } catch (Exception e) {
+      throw new Error(e);
+    }
+  }
+
+  // Sets whose limit is large enough to use a hash index.
+  private static void lss_large_test() {
+    int max_size = 1000;
+    LimitedSizeIntSet is = new LimitedSizeIntSet(max_size);
+    LimitedSizeSet</*@Nullable*/ Integer> s = new LimitedSizeSet</*@Nullable*/ Integer>(max_size);
+    java.util.HashSet</*@Nullable*/ Integer> expected = new java.util.HashSet</*@Nullable*/ Integer>();
+    Random r = new Random(20151106);
+    s.add(null);
+    expected.add(null);
+    while (expected.size() < max_size) {
+      int elt = r.nextInt(2 * max_size) - max_size;
+      is.add(elt);
+      s.add(elt);
+      expected.add(elt);
+      assert s.size() == expected.size();
+      assert is.size() == expected.size() - 1;
+    }
+    for (int i=-max_size; i<max_size; i++) {
+      assert is.contains(i) == expected.contains(i);
+      assert s.contains(i) == expected.contains(i);
+    }
+    assert s.contains(null);
+
+    LimitedSizeIntSet is2 = (LimitedSizeIntSet) serialize_round_trip(is);
+    @SuppressWarnings("unchecked")
+    LimitedSizeSet</*@Nullable*/ Integer> s2
+      = (LimitedSizeSet</*@Nullable*/ Integer>) serialize_round_trip(s);
+    LimitedSizeSet</*@Nullable*/ Integer> s3 = s.clone();
+    for (int i=-max_size; i<max_size; i++) {
+      assert is2.contains(i) == expected.contains(i);
+      assert s2.contains(i) == expected.contains(i);
+      assert s3.contains(i) == expected.contains(i);
+    }
+
+    // The set is now full:  one more distinct value nulls its rep.
+    int absent = max_size;
+    s.add(absent);
+    assert s.repNulled() && s.size() == max_size + 1;
+    assert !s3.repNulled() && !s3.contains(absent);
+    s3.add(-absent - 1);
+    assert s3.repNulled();
+    is.add(absent);
+    assert !is.repNulled() && is.contains(absent);
+    is.add(absent + 1);
+    assert is.repNulled();
+
+    // Merging large sets
+    LimitedSizeIntSet a = new LimitedSizeIntSet(100);
+    LimitedSizeIntSet b = new LimitedSizeIntSet(100);
+    for (int i=0; i<60; i++) {
+      a.add(i);
+      b.add(i + 30);
+    }
+    LimitedSizeIntSet merged = LimitedSizeIntSet.merge(100, Arrays.asList(a, b));
+    assert merged.size() == 90 && merged.contains(89) && !merged.contains(90);
+    b.add(1000);
+    b.add(1001);
+    assert LimitedSizeIntSet.merge(100, Arrays.asList(a, b)).size() == 92;
+  }
+
+  // Compare merge, which may run in parallel, to adding the sets one at a time.
+  private static void lss_merge_test() {
+    Random r = new Random(20151107);
+    for (int trial=0; trial<40; trial++) {
+      int max_values = 50 + r.nextInt(100);
+      int range = (trial % 2 == 0) ? max_values : 3 * max_values;
+      List<LimitedSizeIntSet> islist = new ArrayList<LimitedSizeIntSet>();
+      List<LimitedSizeSet<? extends Integer>> slist = new ArrayList<LimitedSizeSet<? extends Integer>>();
+      for (int i=0; i<200; i++) {
+        LimitedSizeIntSet is = new LimitedSizeIntSet(max_values);
+        LimitedSizeSet<Integer> s = new LimitedSizeSet<Integer>(max_values);
+        for (int j=r.nextInt(3); j>0; j--) {
+          int elt = r.nextInt(range);
+          is.add(elt);
+          s.add(elt);
+        }
+        islist.add(is);
+        slist.add(s);
+      }
+      LimitedSizeIntSet iexpected = new LimitedSizeIntSet(max_values);
+      for (LimitedSizeIntSet is : islist) {
+        iexpected.addAll(is);
+      }
+      LimitedSizeSet<Integer> expected = new LimitedSizeSet<Integer>(max_values);
+      for (LimitedSizeSet<? extends Integer> s : slist) {
+        expected.addAll(s);
+      }
+      assert LimitedSizeIntSet.merge(max_values, islist).toString().equals(iexpected.toString());
+      assert LimitedSizeSet.<Integer>merge(max_values, slist).toString().equals(expected.toString());
+    }
+
+    // A rep-nulled set nulls the rep of the result if it is larger than
+    // the result's limit, and otherwise cannot be merged.
+    List<LimitedSizeIntSet> islist = new ArrayList<LimitedSizeIntSet>();
+    for (int i=0; i<100; i++) {
+      LimitedSizeIntSet is = new LimitedSizeIntSet(5);
+      is.add(i);
+      islist.add(is);
+    }
+    LimitedSizeIntSet small = new LimitedSizeIntSet(1);
+    small.add(1);
+    small.add(2);
+    islist.add(50, small);
+    assert LimitedSizeIntSet.merge(20, islist).repNulled();
+    try {
+      LimitedSizeIntSet.merge(200, islist);
+      throw new Error("Didn't throw");
+    } catch (Error e) {
+      assert e.getMessage().startsWith("Arg is rep-nulled");
+    }
+    assert LimitedSizeIntSet.merge(200, islist.subList(0, 50)).size() == 50;
+  }
+
   public static void testLimitedSizeSet() {
     for (int i=1; i<10; i++) {
       lsis_test(i);
     }
     lss_with_null_test();
+    lss_large_test();
+    lss_merge_test();
   }
 
   // This cannot be static because it instantiates an inner class.
@@ -2270,6 +2685,564 @@ public final class TestPlume extends TestCase {
   public static void testWeakHasherMap() {
   }
 
+  // Compares SubarrayPattern to a naive search, on small alphabets so
+  // that partial matches are common.
+  public static void testSubarrayPattern() {
+    Random r = new Random(20151104);
+    for (int trial=0; trial<2000; trial++) {
+      int[] a = new int[r.nextInt(30)];
+      int[] sub = new int[r.nextInt(5)];
+      for (int i=0; i<a.length; i++) {
+        a[i] = r.nextInt(2);
+      }
+      for (int i=0; i<sub.length; i++) {
+        sub[i] = r.nextInt(2);
+      }
+      int expected = -1;
+      for (int i=0; i<=a.length; i++) {
+        if (ArraysMDE.isSubarray(a, sub, i)) {
+          expected = i;
+          break;
+        }
+      }
+      assert ArraysMDE.indexOf(a, sub) == expected;
+      long[] la = new long[a.length];
+      double[] da = new double[a.length];
+      boolean[] ba = new boolean[a.length];
+      Integer[] oa = new Integer[a.length];
+      for (int i=0; i<a.length; i++) {
+        la[i] = a[i];
+        da[i] = a[i];
+        ba[i] = a[i] == 1;
+        oa[i] = new Integer(a[i]);
+      }
+      long[] lsub = new long[sub.length];
+      double[] dsub = new double[sub.length];
+      boolean[] bsub = new boolean[sub.length];
+      Integer[] osub = new Integer[sub.length];
+      for (int i=0; i<sub.length; i++) {
+        lsub[i] = sub[i];
+        dsub[i] = sub[i];
+        bsub[i] = sub[i] == 1;
+        osub[i] = new Integer(sub[i]);
+      }
+      assert ArraysMDE.indexOf(la, lsub) == expected;
+      assert ArraysMDE.indexOf(da, dsub) == expected;
+      assert ArraysMDE.indexOf(ba, bsub) == expected;
+      assert ArraysMDE.indexOf(oa, osub) == expected;
+      assert ArraysMDE.indexOf(new java.util.LinkedList<Integer>(Arrays.asList(oa)),
+                               Arrays.asList(osub)) == expected;
+    }
+
+    // Repeated searches with one pattern
+    SubarrayPattern.Ints p = new SubarrayPattern.Ints(new int[] { 1, 1, 2 });
+    int[] a = new int[] { 1, 1, 1, 2, 1, 1, 2, 1, 2 };
+    assert p.indexIn(a) == 1;
+    assert p.indexIn(a, 2) == 4;
+    assert p.indexIn(a, 5) == -1;
+    assert new SubarrayPattern.Ints(new int[0]).indexIn(a, 9) == 9;
+    assert new SubarrayPattern.Ints(new int[0]).indexIn(a, 10) == -1;
+    String[] words = new String[] { "a", "a", "a", "b", "a", "a", "b", "a", "b" };
+    SubarrayPattern.Objects op
+      = new SubarrayPattern.Objects(new String[] { new String("a"), "a", "b" });
+    assert op.indexIn(words) == 1;
+    assert op.indexIn(words, 2) == 4;
+    assert op.indexIn(words, 5) == -1;
+    assert new SubarrayPattern.Objects(new Object[0]).indexIn(words, 9) == 9;
+    assert new SubarrayPattern.Objects(new Object[0]).indexIn(words, 10) == -1;
+    SubarrayPattern.ObjectsEq ep = new SubarrayPattern.ObjectsEq(new String[] { "a", "b" });
+    assert ep.indexIn(words) == 2;
+    assert ep.indexIn(words, 3) == 5;
+    assert ep.indexIn(words, 6) == 7;
+    assert ep.indexIn(words, 8) == -1;
+    try {
+      ep.indexIn(words, -1);
+      throw new Error("Didn't throw IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+    }
+
+    // indexOfEq uses ==, and NaN matches nothing
+    String s = "s";
+    String[] strings = new String[] { new String(s), s, null };
+    assert ArraysMDE.indexOf(strings, new String[] { s }) == 0;
+    assert ArraysMDE.indexOfEq(strings, new String[] { s }) == 1;
+    assert ArraysMDE.indexOfEq(strings, new String[] { s, null }) == 1;
+    assert ArraysMDE.indexOf(new double[] { Double.NaN }, new double[] { Double.NaN }) == -1;
+    assert ArraysMDE.indexOf(new double[] { 1, -0.0 }, new double[] { 0.0 }) == 1;
+  }
+
+  // Compares SubarrayPatternSet to one indexOf call per pattern.
+  public static void testSubarrayPatternSet() {
+    Random r = new Random(20151105);
+    for (int trial=0; trial<500; trial++) {
+      int[][] subs = new int[r.nextInt(6)][];
+      long[][] lsubs = new long[subs.length][];
+      for (int p=0; p<subs.length; p++) {
+        subs[p] = new int[r.nextInt(4)];
+        lsubs[p] = new long[subs[p].length];
+        for (int i=0; i<subs[p].length; i++) {
+          subs[p][i] = r.nextInt(3) - 1;
+          lsubs[p][i] = subs[p][i] * 0x100000000L;
+        }
+      }
+      int[] a = new int[r.nextInt(40)];
+      long[] la = new long[a.length];
+      for (int i=0; i<a.length; i++) {
+        a[i] = r.nextInt(3) - 1;
+        la[i] = a[i] * 0x100000000L;
+      }
+      int[] expected = new int[subs.length];
+      int expectedMatches = 0;
+      for (int p=0; p<subs.length; p++) {
+        expected[p] = ArraysMDE.indexOf(a, subs[p]);
+        for (int i=0; i<=a.length; i++) {
+          if (ArraysMDE.isSubarray(a, subs[p], i)) {
+            expectedMatches++;
+          }
+        }
+      }
+      SubarrayPatternSet.Ints set = new SubarrayPatternSet.Ints(subs);
+      assert Arrays.equals(set.indexesIn(a), expected);
+      assert Arrays.equals(new SubarrayPatternSet.Longs(lsubs).indexesIn(la), expected);
+      String[] ssubs = new String[subs.length];
+      for (int p=0; p<subs.length; p++) {
+        StringBuilder sb = new StringBuilder();
+        for (int x : subs[p]) {
+          sb.append((char) ('b' + x));
+        }
+        ssubs[p] = sb.toString();
+      }
+      StringBuilder sa = new StringBuilder();
+      for (int x : a) {
+        sa.append((char) ('b' + x));
+      }
+      for (int p=0; p<subs.length; p++) {
+        assert sa.indexOf(ssubs[p]) == expected[p];
+      }
+      assert Arrays.equals(new SubarrayPatternSet.Chars(ssubs).indexesIn(sa), expected);
+      final int[] matches = new int[1];
+      final int[] lastEnd = new int[] { 0 };
+      final int[][] fsubs = subs;
+      final int[] fa = a;
+      set.scan(a, new SubarrayPatternSet.MatchHandler() {
+          public boolean match(int pattern, int start) {
+            int end = start + fsubs[pattern].length;
+            assert end >= lastEnd[0];
+            assert ArraysMDE.isSubarray(fa, fsubs[pattern], start);
+            lastEnd[0] = end;
+            matches[0]++;
+            return true;
+          }
+        });
+      assert matches[0] == expectedMatches;
+    }
+
+    // Nested and duplicate patterns, and stopping early
+    SubarrayPatternSet.Ints set
+      = new SubarrayPatternSet.Ints(new int[] { 1, 2, 3 }, new int[] { 2, 3 },
+                                    new int[] { 3 }, new int[] { 2, 3 },
+                                    new int[] { 4 });
+    assert set.size() == 5;
+    assert set.length(1) == 2;
+    assert Arrays.equals(set.indexesIn(new int[] { 0, 1, 2, 3 }),
+                         new int[] { 1, 2, 3, 2, -1 });
+    final int[] matches = new int[1];
+    set.scan(new int[] { 1, 2, 3, 1, 2, 3 }, new SubarrayPatternSet.MatchHandler() {
+        public boolean match(int pattern, int start) {
+          matches[0]++;
+          return matches[0] < 3;
+        }
+      });
+    assert matches[0] == 3;
+    assert new SubarrayPatternSet.Ints().indexesIn(new int[] { 1 }).length == 0;
+
+    // A set whose subarrays are too long is rejected before any table is
+    // allocated.  The subarrays share one array, so the test is cheap.
+    int[] chunk = new int[1 << 20];
+    int[][] tooLong = new int[(1 << 9) + 1][];
+    Arrays.fill(tooLong, chunk);
+    try {
+      new SubarrayPatternSet.Ints(tooLong);
+      throw new Error("Didn't throw IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  public static void testConcurrentMultiRandSelector() {
+    Partitioner<Integer,Integer> mod10 = new Partitioner<Integer,Integer>() {
+        public Integer assignToBucket(Integer i) {
+          return i % 10;
+        }
+      };
+    List<Integer> elts = new ArrayList<Integer>();
+    for (int i=0; i<100000; i++) {
+      elts.add(i);
+    }
+
+    // Each bucket's sample is uniform over the whole list, although
+    // different threads sampled different parts of it.
+    int fromFirstHalf = 0;
+    int total = 0;
+    for (int trial=0; trial<10; trial++) {
+      ConcurrentMultiRandSelector<Integer> selector
+        = new ConcurrentMultiRandSelector<Integer>(20, mod10, 1000);
+      selector.acceptParallel(elts);
+      Map<Integer,List<Integer>> values = selector.values();
+      assert values.size() == 10;
+      for (Map.Entry<Integer,List<Integer>> e : values.entrySet()) {
+        assert e.getValue().size() == 20;
+        assert new java.util.HashSet<Integer>(e.getValue()).size() == 20;
+        for (int v : e.getValue()) {
+          assert v % 10 == e.getKey();
+          total++;
+          if (v < 50000) {
+            fromFirstHalf++;
+          }
+        }
+      }
+      assert selector.getRetained() == 200 && selector.getEvicted() == 0;
+    }
+    assert total == 2000;
+    assert 850 < fromFirstHalf && fromFirstHalf < 1150 : fromFirstHalf;
+
+    // Every element in its own bucket:  the budget forces evictions.
+    Partitioner<Integer,Integer> identity = new Partitioner<Integer,Integer>() {
+        public Integer assignToBucket(Integer i) {
+          return i;
+        }
+      };
+    ConcurrentMultiRandSelector<Integer> selector
+      = new ConcurrentMultiRandSelector<Integer>(5, identity, 1000);
+    selector.acceptParallel(elts);
+    assert selector.getRetained() <= 1000;
+    assert selector.getEvicted() >= 99000;
+    for (int i=0; i<5000; i++) {
+      selector.accept(i % 3);
+    }
+    assert selector.getRetained() <= 1000;
+    Map<Integer,List<Integer>> values = selector.values();
+    // The frequently-seen buckets survive.
+    for (int i=0; i<3; i++) {
+      assert values.get(i).equals(Arrays.asList(i, i, i, i, i)) : values.get(i);
+    }
+    int count = 0;
+    for (Iterator<Integer> itor = selector.valuesIter(); itor.hasNext(); itor.next()) {
+      count++;
+    }
+    assert count == selector.getRetained();
+
+    try {
+      new ConcurrentMultiRandSelector<Integer>(0, identity, 1000);
+      throw new Error("Didn't throw IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  // A Random that counts how many random numbers it generates.
+  private static class CountingRandom extends Random {
+    static final long serialVersionUID = 20151110L;
+    int calls = 0;
+    CountingRandom(long seed) {
+      super(seed);
+    }
+    protected int next(int bits) {
+      calls++;
+      return super.next(bits);
+    }
+  }
+
+  public static void testRandomSelectorSkip() {
+    // Each of n elements should be selected with probability k/n.
+    int k = 5;
+    int n = 20;
+    int trials = 4000;
+    int[] counts = new int[n];
+    int[] skip_counts = new int[n];
+    Random r = new Random(20151110);
+    List<Integer> elts = new ArrayList<Integer>();
+    for (int i=0; i<n; i++) {
+      elts.add(i);
+    }
+    for (int trial=0; trial<trials; trial++) {
+      RandomSelector<Integer> selector = new RandomSelector<Integer>(k, r, true);
+      for (int i=0; i<n; i++) {
+        selector.accept(i);
+      }
+      List<Integer> values = selector.getValues();
+      assert values.size() == k;
+      assert new java.util.HashSet<Integer>(values).size() == k;
+      for (int v : values) {
+        counts[v]++;
+      }
+      selector = new RandomSelector<Integer>(k, r, true);
+      selector.acceptSkip(elts.iterator());
+      for (int v : selector.getValues()) {
+        skip_counts[v]++;
+      }
+    }
+    int expected = trials * k / n;
+    for (int i=0; i<n; i++) {
+      assert Math.abs(counts[i] - expected) < 150 : i + ": " + counts[i];
+      assert Math.abs(skip_counts[i] - expected) < 150 : i + ": " + skip_counts[i];
+    }
+
+    // Skipping draws far fewer random numbers than accepting one by one.
+    List<Integer> many = new ArrayList<Integer>();
+    for (int i=0; i<100000; i++) {
+      many.add(i);
+    }
+    CountingRandom cr = new CountingRandom(20151110);
+    RandomSelector<Integer> selector = new RandomSelector<Integer>(10, cr, true);
+    selector.acceptSkip(many.iterator());
+    assert selector.getValues().size() == 10;
+    assert cr.calls < 2000 : cr.calls;
+    cr = new CountingRandom(20151110);
+    selector = new RandomSelector<Integer>(10, cr);
+    selector.acceptSkip(many.iterator());
+    assert cr.calls >= 100000 : cr.calls;
+
+    // Fewer elements than the sample size:  all are selected.
+    selector = new RandomSelector<Integer>(30, r, true);
+    selector.acceptSkip(elts.iterator());
+    assert selector.getValues().size() == n;
+  }
+
+  // Accept the integers lo..hi-1 into the selector, in a new thread.
+  private static Thread crs_accept(final ConcurrentRandomSelector<Integer> selector,
+                                   final int lo, final int hi) {
+    Thread t = new Thread() {
+        public void run() {
+          for (int i=lo; i<hi; i++) {
+            selector.accept(i);
+          }
+        }
+      };
+    t.start();
+    return t;
+  }
+
+  public static void testConcurrentRandomSelector() throws InterruptedException {
+    ConcurrentRandomSelector<Integer> selector = new ConcurrentRandomSelector<Integer>(50);
+    assert selector.getValues().isEmpty();
+    Thread[] threads = new Thread[] {
+      crs_accept(selector, 0, 1000), crs_accept(selector, 1000, 1010),
+      crs_accept(selector, 2000, 2100), crs_accept(selector, 3000, 3000) };
+    for (Thread t : threads) {
+      t.join();
+    }
+    assert selector.getObserved() == 1110;
+    List<Integer> values = selector.getValues();
+    assert values.size() == 50;
+    assert new java.util.HashSet<Integer>(values).size() == 50;
+    for (int v : values) {
+      assert (0 <= v && v < 1010) || (2000 <= v && v < 2100) : v;
+    }
+
+    // Fewer elements than the sample size:  all are selected.
+    selector = new ConcurrentRandomSelector<Integer>(50);
+    crs_accept(selector, 0, 20).join();
+    crs_accept(selector, 100, 110).join();
+    values = selector.getValues();
+    java.util.Collections.sort(values);
+    assert values.size() == 30 && values.get(19) == 19 && values.get(20) == 100;
+
+    // The merge weights each thread by the number of elements it saw.
+    int fromSmall = 0;
+    int total = 0;
+    for (int trial=0; trial<200; trial++) {
+      selector = new ConcurrentRandomSelector<Integer>(10);
+      Thread big = crs_accept(selector, 0, 900);
+      Thread small = crs_accept(selector, 1000, 1100);
+      big.join();
+      small.join();
+      for (int v : selector.getValues()) {
+        total++;
+        if (v >= 1000) {
+          fromSmall++;
+        }
+      }
+    }
+    assert total == 2000;
+    assert 100 < fromSmall && fromSmall < 300 : fromSmall;
+  }
+
+  public static void testIntHashSet() {
+    IntHashSet s = new IntHashSet();
+    assert s.size() == 0;
+    assert !s.contains(0);
+    for (int i=-1000; i<1000; i++) {
+      assert s.add(i * 17);
+    }
+    assert s.size() == 2000;
+    for (int i=-1000; i<1000; i++) {
+      assert !s.add(i * 17);
+      assert s.contains(i * 17);
+      assert !s.contains(i * 17 + 1);
+    }
+    s.clear();
+    assert s.size() == 0;
+    assert !s.contains(0);
+    assert !s.contains(17);
+
+    LongHashSet ls = new LongHashSet(1);
+    for (int i=-1000; i<1000; i++) {
+      assert ls.add(i * 1000000007L * 1000000007L);
+    }
+    assert ls.size() == 2000;
+    assert ls.contains(0);
+    assert ls.contains(-1000 * 1000000007L * 1000000007L);
+    assert !ls.contains(1);
+    assert !ls.add(0);
+    ls.clear();
+    assert ls.size() == 0;
+    assert !ls.contains(0);
+
+    // The table never grows past its largest length.
+    assert IntHashSet.tableCapacity(0) == 4;
+    assert IntHashSet.tableCapacity(3) == 8;
+    assert IntHashSet.tableCapacity(1 << 29) == 1 << 30;
+    assert IntHashSet.tableCapacity(600000000) == 1 << 30;
+    assert IntHashSet.tableCapacity(Integer.MAX_VALUE) == 1 << 30;
+
+    // Once the table is as large as possible, it fills to all but one
+    // slot, and then the set refuses new elements.
+    IntHashSet full = new IntHashSet(8);
+    full.maxCapacity = 32;
+    for (int i=1; i<32; i++) {
+      assert full.add(i * 17);
+    }
+    try {
+      full.add(-1);
+      throw new Error("Didn't throw IllegalStateException");
+    } catch (IllegalStateException e) {
+    }
+    assert full.size() == 31;
+    assert !full.add(17) && full.contains(31 * 17) && !full.contains(-1);
+    assert full.add(0);
+
+    LongHashSet lfull = new LongHashSet(8);
+    lfull.maxCapacity = 32;
+    for (int i=1; i<32; i++) {
+      assert lfull.add(i * 1000000007L);
+    }
+    try {
+      lfull.add(-1);
+      throw new Error("Didn't throw IllegalStateException");
+    } catch (IllegalStateException e) {
+    }
+    assert lfull.size() == 31;
+    assert lfull.contains(31 * 1000000007L) && !lfull.contains(-1);
+  }
+
+  public static void testWeakArrayInternTable() {
+    WeakArrayInternTable.LongArrays t = new WeakArrayInternTable.LongArrays();
+    long[][] canonical = new long[1000][];
+    for (int i=0; i<canonical.length; i++) {
+      canonical[i] = t.intern(new long[] { i, i * 1000000007L });
+    }
+    assert t.size() == canonical.length;
+    for (int i=0; i<canonical.length; i++) {
+      assert t.intern(new long[] { i, i * 1000000007L }) == canonical[i];
+    }
+    // Drop every other array, so that removals leave holes in probe runs.
+    for (int i=0; i<canonical.length; i+=2) {
+      @SuppressWarnings("nullness")
+      long /*@NonNull*/ [] reset_value = null;
+      canonical[i] = reset_value;
+    }
+    System.gc();
+    for (int i=1; i<canonical.length; i+=2) {
+      assert t.intern(new long[] { i, i * 1000000007L }) == canonical[i];
+    }
+    assert t.size() >= canonical.length / 2;
+
+    WeakArrayInternTable.DoubleArrays dt = new WeakArrayInternTable.DoubleArrays();
+    double[] d = dt.intern(new double[] { +0.0, Double.NaN });
+    assert dt.intern(new double[] { -0.0, Double.NaN }) == d;
+    assert dt.intern(new double[] { 0.0, 1.0 }) != d;
+
+    // The 64-bit hashes distinguish arrays that differ only in order or
+    // length, so lookups rarely compare contents.
+    WeakArrayInternTable.IntArrays it = new WeakArrayInternTable.IntArrays();
+    assert it.hash(new int[] { 1, 2 }) == it.hash(new int[] { 1, 2 });
+    assert it.hash(new int[] { 1, 2 }) != it.hash(new int[] { 2, 1 });
+    assert it.hash(new int[] { 0 }) != it.hash(new int[] { 0, 0 });
+    assert it.hash(new int[] { 1 }) != it.hash(new int[] { 2 });
+    assert dt.hash(new double[] { -0.0 }) == dt.hash(new double[] { 0.0 });
+  }
+
+  public static void testConcurrentWeakIdentityHashMap() throws InterruptedException {
+    final ConcurrentWeakIdentityHashMap<String,Integer> m
+      = new ConcurrentWeakIdentityHashMap<String,Integer>();
+    String s1 = "one";
+    String s1copy = new String(s1);
+    m.put(s1, 1);
+    assert m.get(s1) == 1;
+    assert m.get(s1copy) == null;
+    assert m.putIfAbsent(s1, 2) == 1;
+    assert m.putIfAbsent(s1copy, 3) == null;
+    assert m.size() == 2;
+    assert m.replace(s1, 1, 4);
+    assert !m.replace(s1, 1, 5);
+    assert m.get(s1) == 4;
+    assert !m.remove(s1copy, 4);
+    assert m.remove(s1copy, 3);
+    assert !m.containsKey(s1copy);
+    for (Map.Entry<String,Integer> e : m.entrySet()) {
+      e.setValue(6);
+    }
+    assert m.get(s1) == 6;
+    for (Iterator<Map.Entry<String,Integer>> itor = m.entrySet().iterator(); itor.hasNext(); ) {
+      itor.next();
+      itor.remove();
+    }
+    assert m.isEmpty();
+
+    // Keys that are no longer referenced are removed.
+    for (int i=0; i<1000; i++) {
+      m.put(new String("garbage"), i);
+    }
+    m.put(s1, 1);
+    System.gc();
+    for (int i=0; i<10 && m.size() > 1; i++) {
+      System.gc();
+    }
+    assert m.get(s1) == 1;
+    for (Map.Entry<String,Integer> e : m.entrySet()) {
+      assert e.getKey() != null;
+    }
+
+    // Concurrent putIfAbsent has exactly one winner per key.
+    final String[] keys = new String[100];
+    for (int i=0; i<keys.length; i++) {
+      keys[i] = new String("key" + i);
+    }
+    final int nthreads = 4;
+    final int[] wins = new int[nthreads];
+    Thread[] threads = new Thread[nthreads];
+    for (int t=0; t<nthreads; t++) {
+      final int me = t;
+      threads[t] = new Thread() {
+          public void run() {
+            for (String key : keys) {
+              if (m.putIfAbsent(key, me) == null) {
+                wins[me]++;
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    int totalWins = 0;
+    for (int w : wins) {
+      totalWins += w;
+    }
+    assert totalWins == keys.length;
+  }
+
   /**
    * These tests could be much more thorough.  Basically all that is tested
    * is that identity is used rather than a normal hash.  The tests will
@@ -2313,7 +3286,76 @@ public final class TestPlume extends TestCase {
     assert m.get(s1a) == 1;
     assert m.get(s2a) == 2;
     assert m.get(s3a) == 3;
+  }
+
+  public static void testWeakIdentityHashMapExpungeLimit() {
+    String s1 = new String("one");
+    String s2 = new String("two");
+    String s3 = new String("three");
+
+    WeakIdentityHashMap<String,Integer> m
+      = new WeakIdentityHashMap<String,Integer>();
+    m.put(s1, 1);
+    m.put(s2, 2);
+    m.put(s3, 3);
+
+    // With an expunge limit, stale entries are removed a few at a time,
+    // but size() still removes all of them.
+    int limit = 2;
+    m.setExpungeLimit(limit);
+    for (int i=0; i<1000; i++) {
+      m.put(new String("garbage"), i);
+    }
+    // Wait for the garbage keys to be discarded, without using the map.
+    for (int i=0; i<10; i++) {
+      System.gc();
+    }
+
+    // Each put expunges at most limit stale entries.
+    long reclaimed = m.reclaimedCount();
+    for (int i=0; i<10; i++) {
+      m.put(s1, 1);
+      long now = m.reclaimedCount();
+      assert now - reclaimed <= limit : (now - reclaimed);
+      reclaimed = now;
+    }
 
+    for (int i=0; i<10 && m.size() > 3; i++) {
+      System.gc();
+    }
+    assert m.size() == 3 : m.size();
+    assert m.reclaimedCount() == 1000 : m.reclaimedCount();
+    assert m.get(s1) == 1;
+    assert m.get(s2) == 2;
+    assert m.get(s3) == 3;
+  }
+
+  public static void testWeakHasherMapCleaner() throws InterruptedException {
+    WeakHasherMap<String,Integer> m = new WeakHasherMap<String,Integer>();
+    Thread cleaner = m.startCleaner(m);
+    try {
+      synchronized (m) {
+        for (int i=0; i<1000; i++) {
+          m.put(new String("garbage" + i), i);
+        }
+      }
+      // The cleaner removes entries without any further use of the map.
+      for (int i=0; i<100; i++) {
+        System.gc();
+        Thread.sleep(10);
+        synchronized (m) {
+          if (m.reclaimedCount() == 1000) {
+            break;
+          }
+        }
+      }
+      synchronized (m) {
+        assert m.reclaimedCount() == 1000 : m.reclaimedCount();
+      }
+    } finally {
+      cleaner.interrupt();
+    }
+    cleaner.join();
   }
 
   public static void testClassFileVersion() {
@@ -2382,12 +3424,125 @@ public final class TestPlume extends TestCase {
 
     long[] l1 = Intern.intern(new long[] {1, 2, 3, 4, 5, 6});
     assert l1 == Intern.internSubsequence(l1, 0, l1.length);
+
+    double[] d1 = Intern.intern(new double[] {1, 2, 3, 4});
+    double[] ds1 = Intern.internSubsequence(d1, 1, 3);
+    assert ds1 == Intern.internSubsequence(d1, 1, 3);
+    assert ds1 == Intern.intern(new double[] {2, 3});
+    assert ds1 != Intern.internSubsequence(d1, 0, 2);
+
+    String[] sa1 = Intern.intern(new String[] {"a", "b", "c"});
+    String[] sas1 = Intern.internSubsequence(sa1, 0, 2);
+    assert sas1 == Intern.internSubsequence(sa1, 0, 2);
+    assert sas1 == Intern.intern(new String[] {"a", "b"});
+    assert Intern.internSubsequence(sa1, 2, 2).length == 0;
   }
 
   // To do
   // public static void testFileIOException() {
   // }
 
+  // Compare FuzzyFloat.Index to the linear FuzzyFloat methods.
+  public static void testFuzzyFloatIndex() {
+    Random r = new Random(20151108);
+    double[] specials = new double[] {
+      0.0, -0.0, 1e-9, -1e-9, Double.MIN_VALUE, Double.NaN,
+      Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE };
+    for (double rel_diff : new double[] { 0.0001, 0.0, 0.01, 1.5 }) {
+      FuzzyFloat ff = new FuzzyFloat(rel_diff);
+      for (int trial=0; trial<200; trial++) {
+        double[] a = new double[r.nextInt(50)];
+        for (int i=0; i<a.length; i++) {
+          a[i] = random_fuzzy_double(r, specials);
+        }
+        FuzzyFloat.Index index = ff.index(a);
+        double[] smaller = new double[r.nextInt(4)];
+        boolean expected_subset = true;
+        for (int i=0; i<smaller.length; i++) {
+          smaller[i] = (a.length > 0 && r.nextBoolean())
+            ? a[r.nextInt(a.length)] * (1 + (r.nextDouble() - 0.5) * 2 * rel_diff)
+            : random_fuzzy_double(r, specials);
+          expected_subset &= (ff.indexOf(a, smaller[i]) != -1);
+        }
+        for (int i=0; i<20; i++) {
+          double elt = (i < smaller.length) ? smaller[i] : random_fuzzy_double(r, specials);
+          int expected = ff.indexOf(a, elt);
+          assert index.indexOf(elt) == expected
+            : String.format("rel_diff=%s elt=%s a=%s", rel_diff, elt, Arrays.toString(a));
+          assert index.contains(elt) == (expected != -1);
+        }
+        assert index.containsAll(smaller) == expected_subset;
+      }
+    }
+
+    // The index is not affected by later changes to the FuzzyFloat or the array.
+    FuzzyFloat ff = new FuzzyFloat(0.0001);
+    double[] a = new double[] { 3, 1, 2, 1.00005, Double.NaN };
+    FuzzyFloat.Index index = ff.index(a);
+    ff.set_rel_diff(0.5);
+    a[0] = 1.5;
+    assert index.size() == 4;
+    assert index.indexOf(1.00001) == 1;
+    assert index.indexOf(3.0001) == 0;
+    assert !index.contains(1.5);
+    assert index.containsAll(new double[] { 2, 1, 3 });
+    assert !index.containsAll(new double[] { 2, 1, 4 });
+  }
+
+  // Compare the elementwise FuzzyFloat comparisons to the scalar ones.
+  public static void testFuzzyFloatElementwise() {
+    Random r = new Random(20151109);
+    double[] specials = new double[] {
+      0.0, -0.0, 1e-9, -1e-9, Double.MIN_VALUE, Double.NaN,
+      Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE };
+    for (double rel_diff : new double[] { 0.0001, 0.0, 0.01, 1.5 }) {
+      FuzzyFloat ff = new FuzzyFloat(rel_diff);
+      for (int len : new int[] { 0, 1, 63, 64, 65, 200 }) {
+        double[] a1 = new double[len];
+        double[] a2 = new double[len];
+        for (int i=0; i<len; i++) {
+          a1[i] = random_fuzzy_double(r, specials);
+          a2[i] = r.nextBoolean() ? a1[i] * (1 + (r.nextDouble() - 0.5) * 3 * rel_diff)
+            : random_fuzzy_double(r, specials);
+        }
+        BitSet eq = ff.eqElementwise(a1, a2);
+        BitSet lt = ff.ltElementwise(a1, a2);
+        BitSet gt = ff.gtElementwise(a1, a2);
+        int count = 0;
+        for (int i=0; i<len; i++) {
+          assert eq.get(i) == ff.eq(a1[i], a2[i]) : a1[i] + " " + a2[i];
+          assert lt.get(i) == ff.lt(a1[i], a2[i]) : a1[i] + " " + a2[i];
+          assert gt.get(i) == ff.gt(a1[i], a2[i]) : a1[i] + " " + a2[i];
+          if (ff.eq(a1[i], a2[i])) {
+            count++;
+          }
+        }
+        assert eq.length() <= len && lt.length() <= len && gt.length() <= len;
+        assert ff.countEqElementwise(a1, a2) == count;
+      }
+    }
+    try {
+      new FuzzyFloat().countEqElementwise(new double[1], new double[2]);
+      throw new Error("Didn't throw IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  // A double that is often close to another such double.
+  private static double random_fuzzy_double(Random r, double[] specials) {
+    switch (r.nextInt(4)) {
+    case 0:
+      return specials[r.nextInt(specials.length)];
+    case 1:
+      return (r.nextInt(11) - 5) * (1 + r.nextInt(3) * 0.00004);
+    case 2:
+      return (r.nextDouble() - 0.5) * 1e-7;
+    default:
+      return (r.nextDouble() - 0.5) * 1e6;
+    }
+  }
+
   /**
    * Test the comparison, indexof, and set equivalence calls in fuzzy
    * float.
@@ -3127,4 +4282,346 @@ public final class TestPlume extends TestCase {
 
   }
 
+  public static void testMappedEntryReader() throws IOException {
+    File dir = UtilMDE.createTempDir("mer", "test");
+    File main = new File(dir, "main.txt");
+    File sub = new File(dir, "sub.txt");
+    // A long entry, comments, an include file, "\r\n" and "\r"
+    // terminators, non-ASCII text, and no final terminator.
+    byte[] main_bytes
+      = ("# comment\n"
+         + "first entry line 1\n"
+         + "first entry line 2 # trailing\n"
+         + "\n"
+         + ">entry long one\n"
+         + "body a\n"
+         + "<\n"
+         + "include sub.txt\n"
+         + "short after include\r\n"
+         + "h\u00e9llo w\u00f6rld\r\n"
+         + "\r"
+         + "plain entry\n"
+         + "second line\n"
+         + "\n"
+         + "last line no newline").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    java.nio.file.Files.write(main.toPath(), main_bytes);
+    UtilMDE.writeFile(sub, "sub entry\nsub line 2\n\n# only a comment\nsub second\n");
+
+    for (int window : new int[] { 32, 64, MappedEntryReader.WINDOW_SIZE }) {
+      EntryReader er = new EntryReader(new ByteArrayInputStream(main_bytes), "UTF-8",
+                                       main.toString(), "#.*", "\\s*include\\s+(\\S+)");
+      er.set_entry_start_stop("^>(entry.*)", "^<");
+      MappedEntryReader mer = new MappedEntryReader(main, "#.*", "\\s*include\\s+(\\S+)", window);
+      mer.set_entry_start_stop("^>(entry.*)", "^<");
+      int entries = 0;
+      for (EntryReader.Entry e = er.get_entry(); e != null; e = er.get_entry()) {
+        MappedEntryReader.Entry me = mer.get_entry();
+        assert me != null;
+        EntryReader.Entry e2 = me.toEntry();
+        assert e.first_line.equals(e2.first_line) : e2.first_line;
+        // EntryReader ends each line with the line separator.
+        String body = e2.body.replaceAll("\r\n?|\n", "\n");
+        if (! e2.body.endsWith("\n")) {
+          body += "\n";
+        }
+        assert e.body.replace(System.getProperty("line.separator"), "\n").equals(body) : body;
+        assert new File(e.filename).getAbsolutePath().equals(new File(e2.filename).getAbsolutePath());
+        assert e.line_number == e2.line_number : e2.line_number;
+        assert e.short_entry == e2.short_entry;
+        entries++;
+      }
+      assert mer.get_entry() == null;
+      assert entries == 7 : entries;
+      mer.close();
+    }
+
+    // Unaltered entries are views of the file, not copies.
+    MappedEntryReader mer = new MappedEntryReader(sub);
+    MappedEntryReader.Entry e = mer.get_entry();
+    assert e != null && e.body instanceof MappedEntryReader.ByteSlice;
+    assert e.body.toString().equals("sub entry\nsub line 2\n");
+    assert e.body.subSequence(4, 9).toString().equals("entry");
+    mer.close();
+
+    // A line may not be longer than a window.
+    try {
+      new MappedEntryReader(main, null, null, 8).get_entry();
+      assert false;
+    } catch (IOException ex) {
+      assert ex.getMessage().contains("longer than 8 bytes");
+    }
+
+    main.delete();
+    sub.delete();
+    dir.delete();
+  }
+
+  public static void testLookupParallel() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<3000; i++) {
+      if (i % 7 == 0) {
+        sb.append(">entry long " + i + "\n\nbody apple " + i + "\n<entry\n");
+      } else {
+        sb.append("entry " + i + (i % 3 == 0 ? " Apple" : "") + "\n"
+                  + (i % 5 == 0 ? "banana\n" : "") + "\n");
+      }
+    }
+    String text = sb.toString();
+    String[][] queries = { { "apple" }, { "apple", "banana" }, { "BODY" }, { "nothing" } };
+    boolean saved_search_body = Lookup.search_body;
+    try {
+      for (boolean search_body : new boolean[] { false, true }) {
+        Lookup.search_body = search_body;
+        for (String[] keywords : queries) {
+          Lookup.Query query = new Lookup.Query(keywords);
+          EntryReader er = new EntryReader(new java.io.StringReader(text));
+          er.set_entry_start_stop(Lookup.entry_start_re, Lookup.entry_stop_re);
+          List<Integer> expected = new ArrayList<Integer>();
+          for (EntryReader.Entry e = er.get_entry(); e != null; e = er.get_entry()) {
+            if (query.matches(e)) {
+              expected.add((int) e.line_number);
+            }
+          }
+          er = new EntryReader(new java.io.StringReader(text));
+          er.set_entry_start_stop(Lookup.entry_start_re, Lookup.entry_stop_re);
+          List<Integer> actual = new ArrayList<Integer>();
+          for (EntryReader.Entry e : Lookup.parallel_matching_entries(er, query)) {
+            actual.add((int) e.line_number);
+          }
+          assert expected.equals(actual) : Arrays.toString(keywords);
+          if (keywords[0].equals("apple")) {
+            assert expected.size() > 0;
+          } else if (keywords[0].equals("nothing")) {
+            assert expected.size() == 0;
+          }
+        }
+      }
+    } finally {
+      Lookup.search_body = saved_search_body;
+    }
+  }
+
+  /** The keyword matching that Lookup did before it compiled queries. */
+  private static boolean lookup_reference_matches(EntryReader.Entry entry, String[] keywords) {
+    for (String keyword : keywords) {
+      String search = entry.get_description(Lookup.description_re);
+      if (Lookup.search_body || entry.short_entry) {
+        search = entry.body;
+      }
+      if (!Lookup.case_sensitive) {
+        search = search.toLowerCase();
+      }
+      boolean found;
+      if (Lookup.regular_expressions) {
+        int flags = Lookup.case_sensitive ? 0 : Pattern.CASE_INSENSITIVE;
+        found = Pattern.compile(keyword, flags).matcher(search).find();
+      } else {
+        if (!Lookup.case_sensitive) {
+          keyword = keyword.toLowerCase();
+        }
+        if (Lookup.word_match) {
+          found = Pattern.compile("\\b" + Pattern.quote(keyword) + "\\b").matcher(search).find();
+        } else {
+          found = search.contains(keyword);
+        }
+      }
+      if (! found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static void testLookupQuery() throws IOException {
+    String[] words = { "ab", "b", "Abc", "bc", "c a", "x" };
+    String[][] queries = {
+      { "ab" }, { "ab", "b" }, { "b", "ab" }, { "abc", "bc", "c" }, { "AB", "c a" },
+      { "a.c", "b+" }, { "(a)\\1", "b" }, { "^ab", "c$" }, { "(?<g>b)", "(?<g>c)" },
+      { "x", "ab" }, { "" },
+    };
+    Random r = new Random(20151112);
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<300; i++) {
+      int n = r.nextInt(5) + 1;
+      for (int j=0; j<n; j++) {
+        sb.append(words[r.nextInt(words.length)]);
+        sb.append(r.nextBoolean() ? " " : "");
+      }
+      sb.append("\n\n");
+    }
+    String text = sb.toString();
+    boolean saved_re = Lookup.regular_expressions;
+    boolean saved_cs = Lookup.case_sensitive;
+    boolean saved_wm = Lookup.word_match;
+    try {
+      for (int mode=0; mode<8; mode++) {
+        Lookup.regular_expressions = (mode & 1) != 0;
+        Lookup.case_sensitive = (mode & 2) != 0;
+        Lookup.word_match = (mode & 4) != 0;
+        int matches = 0;
+        for (String[] keywords : queries) {
+          Lookup.Query query = new Lookup.Query(keywords);
+          EntryReader er = new EntryReader(new java.io.StringReader(text));
+          EntryReader ler = new EntryReader(new java.io.StringReader(text));
+          for (EntryReader.Entry e = er.get_entry(); e != null; e = er.get_entry()) {
+            boolean expected = lookup_reference_matches(e, keywords);
+            assert query.matches(e) == expected
+              : mode + " " + Arrays.toString(keywords) + " " + e.body;
+            EntryReader.LazyEntry le = ler.get_lazy_entry();
+            assert le != null && query.matches(le) == expected;
+            if (expected) {
+              matches++;
+            }
+          }
+        }
+        assert matches > 100 : mode;
+      }
+    } finally {
+      Lookup.regular_expressions = saved_re;
+      Lookup.case_sensitive = saved_cs;
+      Lookup.word_match = saved_wm;
+    }
+  }
+
+  /** Return a description of the entries in the tree rooted at root that match query. */
+  private static List<String> lookup_scan(String root, Lookup.Query query) throws IOException {
+    EntryReader er = new EntryReader(root, Lookup.comment_re, Lookup.include_re);
+    er.set_entry_start_stop(Lookup.entry_start_re, Lookup.entry_stop_re);
+    List<String> result = new ArrayList<String>();
+    for (EntryReader.Entry e = er.get_entry(); e != null; e = er.get_entry()) {
+      if (query.matches(e)) {
+        result.add(e.filename + ":" + e.line_number + ":" + e.body);
+      }
+    }
+    er.close();
+    return result;
+  }
+
+  /** Return a description of the entries found by index that match query. */
+  private static List<String> lookup_indexed(LookupIndex index, String[] keywords,
+                                             Lookup.Query query) throws IOException {
+    List<String> result = new ArrayList<String>();
+    for (EntryReader.Entry e : index.candidates(keywords)) {
+      if (query.matches(e)) {
+        result.add(e.filename + ":" + e.line_number + ":" + e.body);
+      }
+    }
+    return result;
+  }
+
+  public static void testLookupIndex() throws IOException {
+    File dir = UtilMDE.createTempDir("lookup", "index");
+    File sub = new File(dir, "sub");
+    sub.mkdir();
+    File root = new File(dir, "root");
+    File a = new File(dir, "a.txt");
+    File b = new File(sub, "b.txt");
+    File c = new File(dir, "c.txt");
+    File index_file = new File(dir, "index.ser");
+    UtilMDE.writeFile(root, "% the root\nroot apple entry\nsecond line\n\n"
+                      + "\\include{a.txt}\n\nbetween apple\n\\include{sub/b.txt}\ntail apple\n"
+                      + ">entry long apple\nlong body\n\n<entry\n");
+    UtilMDE.writeFile(a, "apple pie\n% comment apple\nmore pie\n\n"
+                      + ">entry apple long\n\nbanana body\n>entry second apple\n");
+    UtilMDE.writeFile(b, "banana split\nwith apple\n\nplain cherry\n");
+    UtilMDE.writeFile(c, "cherry apple in c\n");
+    String[][] queries = { { "apple" }, { "apple", "pie" }, { "banana" }, { "ch" },
+                           { "Cherry" }, { "nothing" } };
+
+    for (int round=0; round<3; round++) {
+      if (round == 1) {
+        // Change b, touch a without changing it, and include c.
+        UtilMDE.writeFile(b, "banana split\n\nwith apple and cherry pie\n");
+        a.setLastModified(a.lastModified() - 10000);
+        UtilMDE.writeFile(root, "% the root\nroot apple entry\nsecond line\n\n"
+                          + "\\include{a.txt}\n\\include{c.txt}\nbetween apple\n"
+                          + "\\include{sub/b.txt}\ntail apple\n");
+      }
+      LookupIndex index = LookupIndex.load(index_file, root.toString(), Lookup.comment_re,
+                                           Lookup.include_re, Lookup.entry_start_re,
+                                           Lookup.entry_stop_re);
+      for (boolean search_body : new boolean[] { false, true }) {
+        boolean saved_search_body = Lookup.search_body;
+        Lookup.search_body = search_body;
+        try {
+          for (String[] keywords : queries) {
+            Lookup.Query query = new Lookup.Query(keywords);
+            List<String> expected = lookup_scan(root.toString(), query);
+            assert expected.equals(lookup_indexed(index, keywords, query))
+              : round + " " + Arrays.toString(keywords);
+            if (keywords.length == 1 && keywords[0].equals("apple")) {
+              assert expected.size() >= 4 : expected;
+            }
+          }
+        } finally {
+          Lookup.search_body = saved_search_body;
+        }
+      }
+      // The index file is not rewritten if nothing has changed.
+      index_file.setLastModified(0);
+      LookupIndex.load(index_file, root.toString(), Lookup.comment_re, Lookup.include_re,
+                       Lookup.entry_start_re, Lookup.entry_stop_re);
+      assert index_file.lastModified() == 0;
+    }
+
+    // Candidates are only the entries that contain every trigram.
+    LookupIndex index = LookupIndex.load(index_file, root.toString(), Lookup.comment_re,
+                                         Lookup.include_re, Lookup.entry_start_re,
+                                         Lookup.entry_stop_re);
+    assert index.candidates(new String[] { "nothing" }).isEmpty();
+    assert index.candidates(new String[] { "split" }).size() == 1;
+
+    // A long entry whose first line ends it has an empty body, but its
+    // first line is still indexed.
+    UtilMDE.writeFile(c, ">entry quince stop\nnext entry\n");
+    Pattern stop_re = Pattern.compile("<entry|stop");
+    index_file.delete();
+    index = LookupIndex.load(index_file, c.toString(), Lookup.comment_re, Lookup.include_re,
+                             Lookup.entry_start_re, stop_re);
+    List<EntryReader.Entry> quince = index.candidates(new String[] { "quince" });
+    assert quince.size() == 1 : quince;
+    assert quince.get(0).first_line.equals("quince stop");
+    assert quince.get(0).body.equals("");
+
+    for (File f : new File[] { root, a, b, c, index_file }) {
+      f.delete();
+    }
+    sub.delete();
+    dir.delete();
+  }
+
+  public static void testEntryReaderLazy() throws IOException {
+    String text = "first\nentry\n\n\n>entry long one\nbody\n\nmore body\n<entry\n"
+      + "% comment\nlast entry\n% comment\nends here";
+    EntryReader er = new EntryReader(new java.io.StringReader(text), "text", "^%.*", null);
+    er.set_entry_start_stop("^>entry *()", "^<entry");
+    EntryReader ler = new EntryReader(new java.io.StringReader(text), "text", "^%.*", null);
+    ler.set_entry_start_stop("^>entry *()", "^<entry");
+    Pattern description_re = Pattern.compile("m[a-z]+ body");
+    int entries = 0;
+    for (EntryReader.Entry e = er.get_entry(); e != null; e = er.get_entry()) {
+      EntryReader.LazyEntry le = ler.get_lazy_entry();
+      assert le != null;
+      assert le.first_line.equals(e.first_line);
+      assert le.filename.equals("text") && le.line_number == e.line_number;
+      assert le.get_description(description_re).equals(e.get_description(description_re));
+      // The view is not the body, until the body has been built.
+      CharSequence view = le.get_body_view();
+      assert ! (view instanceof String);
+      assert view.length() == e.body.length();
+      for (int i=view.length()-1; i>=0; i--) {
+        assert view.charAt(i) == e.body.charAt(i);
+      }
+      assert view.subSequence(1, view.length() - 1).toString()
+        .equals(e.body.substring(1, e.body.length() - 1));
+      assert view.toString().equals(e.body);
+      assert le.get_body().equals(e.body);
+      assert le.get_body_view() == le.get_body();
+      assert le.toEntry().body.equals(e.body);
+      entries++;
+    }
+    assert ler.get_lazy_entry() == null;
+    assert entries == 3 : entries;
+  }
+
 }
@@ -0,0 +1,408 @@
+package plume;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.dataflow.qual.*;
+*/
+
+/**
+ * A table of canonical arrays, for use by {@link Intern}.  The arrays
+ * are held weakly:  an array is removed from the table once it is no
+ * longer in ordinary use.
+ * <p>
+ *
+ * This is a specialized replacement for
+ * <code>WeakHasherMap&lt;A,WeakReference&lt;A&gt;&gt;</code>.  That map
+ * uses three objects per entry (a <code>WeakKey</code>, a
+ * <code>WeakReference</code> for the value, and a hash table entry) and
+ * hashes through the {@link Hasher} interface.  This table uses open
+ * addressing with linear probing, and each entry is a single weak
+ * reference that caches a strong 64-bit hash of its array's contents.
+ * The table never re-hashes array contents when it grows, and a lookup
+ * compares array elements only when the 64-bit hashes are equal, which
+ * almost always means that the arrays are equal.  Entries whose arrays
+ * have been garbage-collected are swept from the table in batches.
+ * <p>
+ *
+ * There is one concrete subclass per array type:  {@link IntArrays},
+ * {@link LongArrays}, and {@link DoubleArrays}.
+ * <p>
+ *
+ * Like most collection classes, this class is not synchronized.
+ *
+ * @param <A> the array type, such as <code>int[]</code>
+ */
+public abstract class WeakArrayInternTable<A> {
+
+  /** Initial capacity; must be a power of two. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * Maximum number of stale entries removed by one call to
+   * {@link #intern}.  Any others are removed by later calls, or all at
+   * once before the table is resized.
+   */
+  private static final int SWEEP_BATCH_SIZE = 64;
+
+  /**
+   * An entry in the table:  a weak reference to a canonical array,
+   * together with the array's 64-bit hash code.
+   */
+  private static final class Entry<A> extends WeakReference<A> {
+    /** The hash code of the referent, which may have been cleared. */
+    final long hash;
+
+    Entry(A referent, long hash, ReferenceQueue<? super A> queue) {
+      super(referent, queue);
+      this.hash = hash;
+    }
+  }
+
+  /** The hash table.  Its length is always a power of two. */
+  private /*@Nullable*/ Entry<A>[] table;
+
+  /** The number of entries in the table, including stale ones. */
+  private int size = 0;
+
+  /** Entries whose arrays have been garbage-collected. */
+  private final ReferenceQueue<A> queue = new ReferenceQueue<A>();
+
+  /** The number of calls to intern. */
+  private long lookups = 0;
+
+  /** The number of slots examined by all calls to intern. */
+  private long probes = 0;
+
+  /** The number of calls to intern that found an equal array. */
+  private long hits = 0;
+
+  /** The number of entries removed because their arrays were collected. */
+  private long reclaimed = 0;
+
+  /** Create a new, empty table. */
+  protected WeakArrayInternTable() {
+    table = newTable(INITIAL_CAPACITY);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  private static <A> /*@Nullable*/ Entry<A>[] newTable(int capacity) {
+    return (/*@Nullable*/ Entry<A>[]) new Entry[capacity];
+  }
+
+  /**
+   * Return a 64-bit hash code for the contents of the array.  All the
+   * bits of the result should be well distributed:  the table and
+   * {@link Intern} use different bits to choose a slot and a segment.
+   * @param a the array to hash
+   * @return a hash code for the contents of a
+   */
+  protected abstract long hash(A a);
+
+  /**
+   * Return true if the arrays have equal contents.
+   * @param a1 the first array to compare
+   * @param a2 the second array to compare
+   * @return true if a1 and a2 have equal contents
+   */
+  protected abstract boolean contentEquals(A a1, A a2);
+
+  /**
+   * Return the canonical array whose contents equal those of a.  If there
+   * is no such array in the table, a is added to the table and returned.
+   * @param a the array to canonicalize
+   * @return the canonical array equal to a
+   */
+  public A intern(A a) {
+    return intern(a, hash(a));
+  }
+
+  /**
+   * Like {@link #intern(Object)}, but for a client that has already
+   * computed the hash code of a.
+   * @param a the array to canonicalize
+   * @param hash the value of <code>hash(a)</code>
+   * @return the canonical array equal to a
+   */
+  public A intern(A a, long hash) {
+    expungeStaleEntries(SWEEP_BATCH_SIZE);
+    lookups++;
+    int mask = table.length - 1;
+    for (int i = index(hash, mask); ; i = (i + 1) & mask) {
+      probes++;
+      Entry<A> e = table[i];
+      if (e == null) {
+        break;
+      }
+      if (e.hash == hash) {
+        A canonical = e.get();
+        if (canonical != null && contentEquals(canonical, a)) {
+          hits++;
+          return canonical;
+        }
+      }
+    }
+    // a is not in the table
+    if ((size + 1) * 3 > table.length * 2) {
+      expungeStaleEntries(Integer.MAX_VALUE);
+      if ((size + 1) * 3 > table.length * 2) {
+        resize(table.length * 2);
+      }
+    }
+    insert(new Entry<A>(a, hash, queue));
+    size++;
+    return a;
+  }
+
+  /**
+   * Grow the table, if necessary, so that n more arrays can be added
+   * without resizing it.  Calling this before interning many arrays
+   * avoids the intermediate resizes.
+   * @param n the number of arrays that are about to be interned
+   */
+  public void ensureCapacity(int n) {
+    expungeStaleEntries(Integer.MAX_VALUE);
+    long needed = (long) size + n;
+    int capacity = table.length;
+    while (needed * 3 > (long) capacity * 2 && capacity < (1 << 30)) {
+      capacity *= 2;
+    }
+    if (capacity != table.length) {
+      resize(capacity);
+    }
+  }
+
+  /**
+   * Return the number of arrays in the table.
+   * <strong>Note:</strong> As for {@link WeakHasherMap#size}, the time
+   * required by this operation is linear in the size of the table, because
+   * an array may have been garbage-collected before its entry is swept.
+   * @return the number of arrays in the table
+   */
+  public int size() {
+    expungeStaleEntries(Integer.MAX_VALUE);
+    int result = 0;
+    for (Entry<A> e : table) {
+      if (e != null && e.get() != null) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the number of calls to {@link #intern}.
+   * @return the number of lookups
+   */
+  /*@Pure*/ public long lookupCount() {
+    return lookups;
+  }
+
+  /**
+   * Return the number of calls to {@link #intern} that found an array
+   * already in the table, rather than adding their argument.
+   * @return the number of hits
+   */
+  /*@Pure*/ public long hitCount() {
+    return hits;
+  }
+
+  /**
+   * Return the number of table slots examined by all calls to
+   * {@link #intern}.  Divided by {@link #lookupCount()}, this is the
+   * average probe length.
+   * @return the number of slots probed
+   */
+  /*@Pure*/ public long probeCount() {
+    return probes;
+  }
+
+  /**
+   * Return the number of entries that have been removed because their
+   * arrays were garbage-collected.
+   * @return the number of entries reclaimed
+   */
+  /*@Pure*/ public long reclaimedCount() {
+    return reclaimed;
+  }
+
+  /**
+   * Return an iterator over the arrays in the table.  The iterator is
+   * over a snapshot of the table, so it is not affected by later changes.
+   * @return an iterator over the arrays in the table
+   */
+  public Iterator<A> iterator() {
+    List<A> result = new ArrayList<A>(size);
+    for (Entry<A> e : table) {
+      if (e != null) {
+        A a = e.get();
+        if (a != null) {
+          result.add(a);
+        }
+      }
+    }
+    return result.iterator();
+  }
+
+  /**
+   * Return the index at which to start probing for the given hash code.
+   */
+  /*@Pure*/ private static int index(long hash, int mask) {
+    // Intern uses the high bits to choose a segment, so use the low bits.
+    return (int) hash & mask;
+  }
+
+  /** Add e to the table, which must have room for it. */
+  private void insert(Entry<A> e) {
+    int mask = table.length - 1;
+    int i = index(e.hash, mask);
+    while (table[i] != null) {
+      i = (i + 1) & mask;
+    }
+    table[i] = e;
+  }
+
+  /** Move every entry into a new table of the given capacity. */
+  private void resize(int newCapacity) {
+    /*@Nullable*/ Entry<A>[] oldTable = table;
+    table = newTable(newCapacity);
+    for (Entry<A> e : oldTable) {
+      if (e != null) {
+        insert(e);
+      }
+    }
+  }
+
+  /**
+   * Remove stale entries (those whose arrays have been garbage-collected)
+   * from the table.
+   * @param max the maximum number of entries to remove
+   */
+  @SuppressWarnings("unchecked") // the queue contains only Entry<A> objects
+  private void expungeStaleEntries(int max) {
+    for (int n = 0; n < max; n++) {
+      Entry<A> e = (Entry<A>) queue.poll();
+      if (e == null) {
+        return;
+      }
+      remove(e);
+      reclaimed++;
+    }
+  }
+
+  /**
+   * Remove the given entry from the table, if it is present.  Uses
+   * backward-shift deletion, so no tombstones are needed.
+   */
+  private void remove(Entry<A> e) {
+    int mask = table.length - 1;
+    int i = index(e.hash, mask);
+    while (table[i] != e) {
+      if (table[i] == null) {
+        // Already removed
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    table[i] = null;
+    size--;
+    // Shift later entries in the same probe run into the hole at i.
+    for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+      int home = index(table[j].hash, mask);
+      // The entry at j can fill the hole at i unless its home position
+      // is cyclically in (i, j].
+      boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+      if (!stays) {
+        table[i] = table[j];
+        table[j] = null;
+        i = j;
+      }
+    }
+  }
+
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Specializations
+  ///
+
+  /**
+   * Return a hash code whose bits all depend on all the bits of h.
+   * This is the finalization step of MurmurHash3.
+   */
+  /*@Pure*/ static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Multiplier for combining element hashes. */
+  private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+  /** A weak interning table for int[] arrays. */
+  public static final class IntArrays extends WeakArrayInternTable<int[]> {
+    /*@Pure*/ protected long hash(int[] a) {
+      long result = a.length;
+      for (int elt : a) {
+        result = (result + elt) * GOLDEN;
+      }
+      return mix(result);
+    }
+    /*@Pure*/ protected boolean contentEquals(int[] a1, int[] a2) {
+      return Arrays.equals(a1, a2);
+    }
+  }
+
+  /** A weak interning table for long[] arrays. */
+  public static final class LongArrays extends WeakArrayInternTable<long[]> {
+    /*@Pure*/ protected long hash(long[] a) {
+      long result = a.length;
+      for (long elt : a) {
+        result = (result + elt) * GOLDEN;
+      }
+      return mix(result);
+    }
+    /*@Pure*/ protected boolean contentEquals(long[] a1, long[] a2) {
+      return Arrays.equals(a1, a2);
+    }
+  }
+
+  /**
+   * A weak interning table for double[] arrays.  Elements are compared
+   * with <code>==</code>, except that NaN equals NaN.  In particular, +0.0
+   * equals -0.0, unlike in {@link Arrays#equals(double[], double[])}.
+   */
+  public static final class DoubleArrays extends WeakArrayInternTable<double[]> {
+    /*@Pure*/ protected long hash(double[] a) {
+      long result = a.length;
+      for (double elt : a) {
+        // doubleToLongBits maps every NaN to the same value; +0.0 and
+        // -0.0 are equal, so they must hash the same.
+        long bits = (elt == 0.0) ? 0L : Double.doubleToLongBits(elt);
+        result = (result + bits) * GOLDEN;
+      }
+      return mix(result);
+    }
+    /*@Pure*/ protected boolean contentEquals(double[] a1, double[] a2) {
+      if (a1.length != a2.length) {
+        return false;
+      }
+      for (int i=0; i<a1.length; i++) {
+        if (! ((a1[i] == a2[i])
+               || (Double.isNaN(a1[i]) && Double.isNaN(a2[i])))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+}
@@ -206,17 +206,31 @@ public final class WeakHasherMap<K,V> extends AbstractMap<K,V> implements Map<K,
     /* Reference queue for cleared WeakKeys */
     private ReferenceQueue<? super K> queue = new ReferenceQueue<K>();
 
+    /* Number of entries removed because their keys were discarded */
+    private long reclaimed = 0;
 
-    /* Remove all invalidated entries from the map, that is, remove all entries
-       whose keys have been discarded.  This method should be invoked once by
-       each public mutator in this class.  We don't invoke this method in
-       public accessors because that can lead to surprising
-       ConcurrentModificationExceptions. */
-    @SuppressWarnings("unchecked")
+    /* Maximum number of invalidated entries removed by one mutator */
+    private int expungeLimit = 64;
+
+
+    /* Remove invalidated entries from the map, that is, entries whose keys
+       have been discarded.  At most expungeLimit entries are removed, so
+       that a mutator called after a garbage collection that discards many
+       keys does not stall; later mutators remove the rest.  This method
+       should be invoked once by each public mutator in this class.  We
+       don't invoke this method in public accessors because that can lead
+       to surprising ConcurrentModificationExceptions. */
     private void processQueue() {
+	processQueue(expungeLimit);
+    }
+
+    /* Remove at most max invalidated entries from the map. */
+    @SuppressWarnings("unchecked")
+    private void processQueue(int max) {
 	WeakKey wk;
-	while ((wk = (WeakKey)queue.poll()) != null) { // unchecked cast
+	for (int n = 0; n < max && (wk = (WeakKey)queue.poll()) != null; n++) { // unchecked cast
 	    hash.remove(wk);
+	    reclaimed++;
 	}
     }
 
@@ -308,6 +322,69 @@ public final class WeakHasherMap<K,V> extends AbstractMap<K,V> implements Map<K,
     }
 
 
+    /**
+     * Returns the number of entries that have been removed from this map
+     * because their keys were discarded by the garbage collector.
+     */
+    /*@Pure*/ public long reclaimedCount() {
+	return reclaimed;
+    }
+
+
+    /**
+     * Sets the maximum number of entries whose keys have been discarded
+     * that a single mutator removes from this map.  A small limit gives
+     * predictable latency after a garbage collection that discards many
+     * keys; any remaining entries are removed by later mutators, or by a
+     * cleaner thread (see {@link #startCleaner}).  The default limit is 64.
+     *
+     * @param  limit  The maximum number of entries to remove per mutator;
+     *                must be positive
+     *
+     * @throws IllegalArgumentException  If the limit is not positive
+     */
+    public void setExpungeLimit(int limit) {
+	if (limit <= 0)
+	    throw new IllegalArgumentException("Illegal expunge limit: " + limit);
+	expungeLimit = limit;
+    }
+
+    /**
+     * Starts a daemon thread that removes entries from this map as soon
+     * as the garbage collector discards their keys, so that mutators need
+     * not remove them.  Because this map is not synchronized, the thread
+     * holds the given lock while it modifies the map, and every other use
+     * of the map must hold the same lock.  Interrupt the returned thread to
+     * stop it.
+     *
+     * @param  lock  The lock that guards every use of this map
+     *
+     * @return  The cleaner thread, which has been started
+     */
+    public Thread startCleaner(final Object lock) {
+	Thread cleaner = new Thread("WeakHasherMap cleaner") {
+		@SuppressWarnings("unchecked")
+		public void run() {
+		    try {
+			while (true) {
+			    WeakKey wk = (WeakKey)queue.remove(); // unchecked cast
+			    synchronized (lock) {
+				hash.remove(wk);
+				reclaimed++;
+				processQueue(expungeLimit - 1);
+			    }
+			}
+		    } catch (InterruptedException e) {
+			// The cleaner was asked to stop.
+		    }
+		}
+	    };
+	cleaner.setDaemon(true);
+	cleaner.start();
+	return cleaner;
+    }
+
+
     /* -- Lookup and modification operations -- */
 
     /**
@@ -362,7 +439,7 @@ public final class WeakHasherMap<K,V> extends AbstractMap<K,V> implements Map<K,
      * Removes all mappings from this map.
      */
     public void clear() {
-	processQueue();
+	processQueue(Integer.MAX_VALUE);
 	hash.clear();
     }
 
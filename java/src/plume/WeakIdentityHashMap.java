@@ -151,6 +151,12 @@ public class WeakIdentityHashMap<K,V>
      */
     private static final float DEFAULT_LOAD_FACTOR = 0.75f;
 
+    /**
+     * The maximum number of stale entries expunged by a single operation,
+     * used if none is specified with setExpungeLimit.
+     */
+    private static final int DEFAULT_EXPUNGE_LIMIT = 64;
+
     /**
      * The table, resized as necessary. Length MUST Always be a power of two.
      */
@@ -176,6 +182,17 @@ public class WeakIdentityHashMap<K,V>
      */
     private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
 
+    /**
+     * The maximum number of stale entries expunged by an operation other
+     * than size and resize, which expunge all of them.
+     */
+    private int expungeLimit = DEFAULT_EXPUNGE_LIMIT;
+
+    /**
+     * The number of stale entries that have been expunged from the table.
+     */
+    private long reclaimed = 0;
+
     /**
      * The number of times this HashMap has been structurally modified
      * Structural modifications are those that change the number of mappings in
@@ -307,41 +324,120 @@ public class WeakIdentityHashMap<K,V>
     }
 
     /**
-     * Expunge stale entries from the table.
+     * Expunge all stale entries from the table.
      */
     @SuppressWarnings("purity") // actually has side effects due to weak pointers
     /*@SideEffectFree*/ private void expungeStaleEntries() {
+        expungeStaleEntries(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Expunge at most max stale entries from the table, so that the time
+     * taken after a garbage collection that clears many keys is bounded.
+     * The remaining stale entries are expunged by later operations.
+     */
+    @SuppressWarnings("purity") // actually has side effects due to weak pointers
+    /*@SideEffectFree*/ private void expungeStaleEntries(int max) {
 	Entry<K,V> e;
         // These types look wrong to me.
-        while ( (e = (Entry<K,V>) queue.poll()) != null) { // unchecked cast
-            int h = e.hash;
-            int i = indexFor(h, table.length);
-
-            Entry<K,V> prev = table[i];
-            Entry<K,V> p = prev;
-            while (p != null) {
-                Entry<K,V> next = p.next;
-                if (p == e) {
-                    if (prev == e)
-                        table[i] = next;
-                    else
-                        prev.next = next;
-                    e.next = null;  // Help GC
-                    e.value = null; //  "   "
-                    size--;
-                    break;
-                }
-                prev = p;
-                p = next;
+        for (int n = 0; n < max && (e = (Entry<K,V>) queue.poll()) != null; n++) { // unchecked cast
+            expungeEntry(e);
+        }
+    }
+
+    /**
+     * Remove the stale entry e from the table, if it is still there.
+     */
+    private void expungeEntry(Entry<K,V> e) {
+        int h = e.hash;
+        int i = indexFor(h, table.length);
+
+        Entry<K,V> prev = table[i];
+        Entry<K,V> p = prev;
+        while (p != null) {
+            Entry<K,V> next = p.next;
+            if (p == e) {
+                if (prev == e)
+                    table[i] = next;
+                else
+                    prev.next = next;
+                e.next = null;  // Help GC
+                e.value = null; //  "   "
+                size--;
+                reclaimed++;
+                break;
             }
+            prev = p;
+            p = next;
         }
     }
 
+    /**
+     * Sets the maximum number of stale entries (entries whose keys have
+     * been discarded) that a single operation on this map expunges.
+     * A small limit gives predictable latency after a garbage collection
+     * that discards many keys; any remaining stale entries are expunged
+     * by later operations, or by a cleaner thread (see
+     * {@link #startCleaner}).  The <tt>size</tt> method, and a resize
+     * of the table, always expunge all stale entries.  The default
+     * limit is 64.
+     *
+     * @param limit the maximum number of stale entries to expunge per
+     *        operation; must be positive.
+     * @throws IllegalArgumentException if limit is not positive.
+     */
+    public void setExpungeLimit(int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Illegal expunge limit: " + limit);
+        expungeLimit = limit;
+    }
+
+    /**
+     * Returns the number of entries that have been removed from this map
+     * because their keys were discarded by the garbage collector.
+     */
+    /*@Pure*/ public long reclaimedCount() {
+        return reclaimed;
+    }
+
+    /**
+     * Starts a daemon thread that expunges stale entries as soon as the
+     * garbage collector discards their keys, so that they need not be
+     * expunged by ordinary operations.  Because this map is not
+     * synchronized, the thread holds the given lock while it modifies
+     * the map, and every other use of the map must hold the same lock.
+     * For a map wrapped by <tt>Collections.synchronizedMap</tt>, the lock
+     * is the wrapper.  Interrupt the returned thread to stop it.
+     *
+     * @param lock the lock that guards every use of this map.
+     * @return the cleaner thread, which has been started.
+     */
+    public Thread startCleaner(final Object lock) {
+        Thread cleaner = new Thread("WeakIdentityHashMap cleaner") {
+            public void run() {
+                try {
+                    while (true) {
+                        Entry<K,V> e = (Entry<K,V>) queue.remove(); // unchecked cast
+                        synchronized (lock) {
+                            expungeEntry(e);
+                            expungeStaleEntries(expungeLimit - 1);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // The cleaner was asked to stop.
+                }
+            }
+        };
+        cleaner.setDaemon(true);
+        cleaner.start();
+        return cleaner;
+    }
+
     /**
      * Return the table after first expunging stale entries
      */
     /*@Pure*/ private /*@Nullable*/ Entry<K,V>[] getTable() {
-        expungeStaleEntries();
+        expungeStaleEntries(expungeLimit);
         return table;
     }
 
@@ -474,7 +570,8 @@ public class WeakIdentityHashMap<K,V>
      *        is irrelevant).
      */
     void resize(int newCapacity) {
-        /*@Nullable*/ Entry<K,V>[] oldTable = getTable();
+        expungeStaleEntries();
+        /*@Nullable*/ Entry<K,V>[] oldTable = table;
         int oldCapacity = oldTable.length;
         if (oldCapacity == MAXIMUM_CAPACITY) {
             threshold = Integer.MAX_VALUE;